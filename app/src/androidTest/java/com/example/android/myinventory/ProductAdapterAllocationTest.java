@@ -0,0 +1,138 @@
+package com.example.android.myinventory;
+
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.ContextThemeWrapper;
+
+import com.example.android.myinventory.data.PictureStore;
+import com.example.android.myinventory.data.ProductContract;
+import com.example.android.myinventory.data.SaleRecorder;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that binding the rows of the product list allocates nothing, as it runs for every row scrolled in
+ * The binds go through the whole of {@link ProductAdapter#onBindViewHolder}: the texts, a sale still waiting for the
+ * provider and the thumbnails, both cached and missing
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProductAdapterAllocationTest {
+    private static final int ROWS = 40;
+    /**
+     * ID of the first row, above the Long values Java caches, so looking a boxed ID up would allocate
+     */
+    private static final long FIRST_ID = 1000;
+    /**
+     * Row with a sale waiting for the provider while the rows are bound
+     */
+    private static final int SOLD_POSITION = 7;
+    /**
+     * Fewer holders than rows, so every bind shows another product in the views, like a recycled row
+     */
+    private static final int HOLDERS = 6;
+    private static final int WARM_UP_PASSES = 20;
+    private static final int MEASURED_PASSES = 50;
+    private static final String[] COLUMNS = {ProductContract.ProductEntry._ID,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE};
+    /**
+     * References of the thumbnails put in the cache, the other rows have no picture
+     */
+    private static final String[] CACHED_PICTURES = {"allocation-test-a", "allocation-test-b",
+            "allocation-test-c"};
+
+    private ProductAdapter mAdapter;
+    private ProductAdapter.ViewHolder[] mHolders;
+
+    @Before
+    public void createRows() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ContextThemeWrapper context = new ContextThemeWrapper(InstrumentationRegistry.getTargetContext(),
+                        R.style.AppTheme);
+
+                ThumbnailCache thumbnails = ThumbnailCache.getInstance(context);
+                for (String reference : CACHED_PICTURES)
+                    thumbnails.put(reference, Bitmap.createBitmap(PictureStore.THUMBNAIL_SIZE,
+                            PictureStore.THUMBNAIL_SIZE, Bitmap.Config.RGB_565));
+
+                MatrixCursor rows = new MatrixCursor(COLUMNS, ROWS);
+                for (int i = 0; i < ROWS; i++)
+                    rows.addRow(new Object[]{FIRST_ID + i, "Product " + i, i * 7, 1000 - i * 13,
+                            i % 2 == 0 ? CACHED_PICTURES[i % CACHED_PICTURES.length] : null});
+                mAdapter = new ProductAdapter(context, new ProductAdapter.OnProductClickListener() {
+                    @Override
+                    public void onProductClick(long id) {
+                    }
+                });
+                mAdapter.submit(ProductSnapshot.fromCursor(rows), null);
+                rows.close();
+
+                RecyclerView parent = new RecyclerView(context);
+                parent.setLayoutManager(new LinearLayoutManager(context));
+                mHolders = new ProductAdapter.ViewHolder[HOLDERS];
+                for (int i = 0; i < HOLDERS; i++)
+                    mHolders[i] = mAdapter.onCreateViewHolder(parent, 0);
+            }
+        });
+    }
+
+    @Test
+    public void bind_allocatesNothing() throws Exception {
+        final int[] allocations = new int[1];
+        final int[] pendingDelta = new int[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                SaleRecorder recorder = SaleRecorder.getInstance(InstrumentationRegistry.getTargetContext());
+                long soldId = FIRST_ID + SOLD_POSITION;
+
+                /**
+                 * The first binds create what the views keep for good, e.g. the wrapper of the text buffers
+                 */
+                bindAll(WARM_UP_PASSES);
+
+                /**
+                 * The sale is recorded right before the binds, so it's still waiting for the provider while they run
+                 */
+                recorder.recordSale(soldId);
+                pendingDelta[0] = recorder.getPendingDelta(soldId);
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                try {
+                    bindAll(MEASURED_PASSES);
+                } finally {
+                    Debug.stopAllocCounting();
+                    /**
+                     * Take the sale back, the product may exist in the db of the app
+                     */
+                    recorder.record(soldId, 1);
+                }
+                allocations[0] = Debug.getThreadAllocCount();
+            }
+        });
+
+        assertEquals("Pending sale while binding", -1, pendingDelta[0]);
+        assertEquals("Objects allocated binding " + ROWS * MEASURED_PASSES + " rows", 0, allocations[0]);
+    }
+
+    /**
+     * Bind every row in turn, each one into the next holder
+     */
+    private void bindAll(int passes) {
+        for (int pass = 0; pass < passes; pass++) {
+            for (int position = 0; position < ROWS; position++)
+                mAdapter.onBindViewHolder(mHolders[position % HOLDERS], position);
+        }
+    }
+}
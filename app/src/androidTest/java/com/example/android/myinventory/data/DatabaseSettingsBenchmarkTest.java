@@ -0,0 +1,236 @@
+package com.example.android.myinventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the mixed read/write throughput and tail latency of the db with the SQLite defaults
+ * and with the {@link DatabaseSettings} of the app
+ * One thread writes sales while others read pages of the list, like the list scrolling during sales
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseSettingsBenchmarkTest {
+    private static final String LOG_TAG = DatabaseSettingsBenchmarkTest.class.getSimpleName();
+    private static final String DEFAULTS_DATABASE = "benchmark_defaults.db";
+    private static final String TUNED_DATABASE = "benchmark_tuned.db";
+    private static final int PRODUCTS = 2000;
+    private static final int PAGE_SIZE = 50;
+    private static final int READERS = 3;
+    private static final long DURATION_MS = 5000;
+
+    private Context mContext;
+
+    @Before
+    public void deleteDatabases() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DEFAULTS_DATABASE);
+        mContext.deleteDatabase(TUNED_DATABASE);
+    }
+
+    @After
+    public void cleanUp() {
+        deleteDatabases();
+    }
+
+    @Test
+    public void compareMixedLoad() throws Exception {
+        Load defaults = run(DEFAULTS_DATABASE, DatabaseSettings.SQLITE_DEFAULTS);
+        Load tuned = run(TUNED_DATABASE, DatabaseSettings.fromResources(mContext));
+
+        Log.i(LOG_TAG, "defaults: " + defaults);
+        Log.i(LOG_TAG, "tuned: " + tuned);
+        assertTrue(defaults.writes.count > 0 && defaults.reads.count > 0);
+        assertTrue(tuned.writes.count > 0 && tuned.reads.count > 0);
+    }
+
+    /**
+     * Fill a db and run the mixed load on it for {@link #DURATION_MS}
+     */
+    private Load run(String name, DatabaseSettings settings) throws Exception {
+        ProductDBHelper helper = new ProductDBHelper(mContext, name, settings);
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            fill(db);
+
+            final Load load = new Load();
+            final CountDownLatch start = new CountDownLatch(1);
+            final long end = SystemClock.elapsedRealtime() + DURATION_MS;
+            Thread[] threads = new Thread[READERS + 1];
+
+            threads[0] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    write(db, end, load.writes);
+                }
+            });
+            for (int i = 1; i <= READERS; i++) {
+                final Latencies reads = new Latencies();
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        await(start);
+                        read(db, end, reads);
+                        synchronized (load) {
+                            load.reads.addAll(reads);
+                        }
+                    }
+                });
+            }
+
+            for (Thread thread : threads)
+                thread.start();
+            start.countDown();
+            for (Thread thread : threads)
+                thread.join();
+            return load;
+        } finally {
+            helper.close();
+        }
+    }
+
+    private static void fill(SQLiteDatabase db) {
+        ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < PRODUCTS; i++) {
+                values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, "Product " + i);
+                values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, i);
+                values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, 1000);
+                values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, "benchmark");
+                db.insertOrThrow(ProductContract.ProductEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Write one sale per transaction, the way the sale button does without buffering
+     */
+    private static void write(SQLiteDatabase db, long end, Latencies writes) {
+        Random random = new Random(1);
+        SQLiteStatement sale = db.compileStatement("UPDATE " + ProductContract.ProductEntry.TABLE_NAME + " SET "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " = "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " - 1 WHERE "
+                + ProductContract.ProductEntry._ID + " = ?");
+        try {
+            while (SystemClock.elapsedRealtime() < end) {
+                long start = System.nanoTime();
+                sale.bindLong(1, random.nextInt(PRODUCTS) + 1);
+                sale.executeUpdateDelete();
+                writes.add(System.nanoTime() - start);
+            }
+        } finally {
+            sale.close();
+        }
+    }
+
+    /**
+     * Read pages of the list in name order, the way the list window is loaded
+     */
+    private static void read(SQLiteDatabase db, long end, Latencies reads) {
+        Random random = new Random(Thread.currentThread().getId());
+        String sql = "SELECT " + ProductContract.ProductEntry._ID + ", "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + ", "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + ", "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + ", "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + " FROM "
+                + ProductContract.ProductEntry.TABLE_NAME + " ORDER BY "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + ", " + ProductContract.ProductEntry._ID
+                + " LIMIT " + PAGE_SIZE + " OFFSET ?";
+        String[] args = new String[1];
+
+        while (SystemClock.elapsedRealtime() < end) {
+            long start = System.nanoTime();
+            args[0] = String.valueOf(random.nextInt(PRODUCTS - PAGE_SIZE));
+            Cursor cursor = db.rawQuery(sql, args);
+            try {
+                /**
+                 * Counting the rows fills the cursor window, which runs the query
+                 */
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            reads.add(System.nanoTime() - start);
+        }
+    }
+
+    private static void await(CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Latencies of the writes and reads of one run
+     */
+    private static class Load {
+        final Latencies writes = new Latencies();
+        final Latencies reads = new Latencies();
+
+        @Override
+        public String toString() {
+            return "writes " + writes + ", reads " + reads;
+        }
+    }
+
+    /**
+     * Latencies of one kind of operation, in ns
+     */
+    private static class Latencies {
+        long[] values = new long[1024];
+        int count;
+
+        void add(long nanos) {
+            if (count == values.length)
+                values = Arrays.copyOf(values, count * 2);
+            values[count++] = nanos;
+        }
+
+        void addAll(Latencies other) {
+            for (int i = 0; i < other.count; i++)
+                add(other.values[i]);
+        }
+
+        /**
+         * Get a percentile of the latencies in ms
+         */
+        double percentile(double percent) {
+            if (count == 0)
+                return 0;
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(count - 1, Math.ceil(percent / 100 * count) - 1);
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f ops/s p50 %.2f ms p99 %.2f ms p99.9 %.2f ms",
+                    count * 1000.0 / DURATION_MS, percentile(50), percentile(99), percentile(99.9));
+        }
+    }
+}
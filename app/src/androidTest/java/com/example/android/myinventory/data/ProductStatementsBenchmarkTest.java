@@ -0,0 +1,145 @@
+package com.example.android.myinventory.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the allocations and time per operation of the generic {@link SQLiteDatabase} writes,
+ * the way the provider made them, with the compiled {@link ProductStatements}
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation")
+public class ProductStatementsBenchmarkTest {
+    private static final String LOG_TAG = ProductStatementsBenchmarkTest.class.getSimpleName();
+    private static final String DATABASE = "benchmark_statements.db";
+    private static final int OPERATIONS = 2000;
+
+    private Context mContext;
+    private ProductDBHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void openDatabase() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE);
+        mHelper = new ProductDBHelper(mContext, DATABASE, DatabaseSettings.fromResources(mContext));
+        mDatabase = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void deleteDatabase() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE);
+    }
+
+    @Test
+    public void compiledStatementsAllocateLess() {
+        Cost generic = measure(new Operations() {
+            @Override
+            public void run(long id, int i) {
+                ContentValues values = new ContentValues();
+                values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, "Product");
+                values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, i);
+                values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, i);
+                mDatabase.update(ProductContract.ProductEntry.TABLE_NAME, new ContentValues(values),
+                        ProductContract.ProductEntry._ID + "=?", new String[]{String.valueOf(id)});
+
+                SQLiteStatement adjust = mDatabase.compileStatement("UPDATE "
+                        + ProductContract.ProductEntry.TABLE_NAME + " SET "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " = "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?1 WHERE "
+                        + ProductContract.ProductEntry._ID + " = ?2 AND "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?1 >= 0");
+                adjust.bindLong(1, 1);
+                adjust.bindLong(2, id);
+                adjust.executeUpdateDelete();
+                adjust.close();
+                DatabaseUtils.longForQuery(mDatabase, "SELECT "
+                                + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " FROM "
+                                + ProductContract.ProductEntry.TABLE_NAME + " WHERE "
+                                + ProductContract.ProductEntry._ID + " = ?",
+                        new String[]{String.valueOf(id)});
+            }
+        });
+
+        final ProductStatements statements = new ProductStatements(mDatabase);
+        Cost compiled = measure(new Operations() {
+            @Override
+            public void run(long id, int i) {
+                statements.update(id, "Product", i, i, 0, null);
+                statements.adjust(id, 1);
+                statements.getQuantity(id);
+            }
+        });
+
+        Log.i(LOG_TAG, "generic: " + generic);
+        Log.i(LOG_TAG, "compiled: " + compiled);
+        assertTrue(compiled.allocations < generic.allocations);
+    }
+
+    /**
+     * Run the operations {@link #OPERATIONS} times on a product, counting the allocations of this thread
+     */
+    private Cost measure(Operations operations) {
+        ContentValues values = new ContentValues();
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, "Product");
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, "benchmark");
+        long id = mDatabase.insertOrThrow(ProductContract.ProductEntry.TABLE_NAME, null, values);
+
+        /**
+         * Warm up, so the statement caches of the connection are filled for both
+         */
+        for (int i = 0; i < 100; i++)
+            operations.run(id, i);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++)
+            operations.run(id, i);
+        long nanos = System.nanoTime() - start;
+        Cost cost = new Cost(Debug.getThreadAllocCount(), Debug.getThreadAllocSize(), nanos);
+        Debug.stopAllocCounting();
+        return cost;
+    }
+
+    private interface Operations {
+        void run(long id, int i);
+    }
+
+    /**
+     * Allocations and time of a run
+     */
+    private static class Cost {
+        final int allocations;
+        final int bytes;
+        final long nanos;
+
+        Cost(int allocations, int bytes, long nanos) {
+            this.allocations = allocations;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f allocations, %.0f bytes, %.1f us per update, adjust and lookup",
+                    (double) allocations / OPERATIONS, (double) bytes / OPERATIONS, nanos / 1e3 / OPERATIONS);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.myinventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the throughput of one provider write per sale with the buffered {@link SaleRecorder}
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaleRecorderBenchmarkTest {
+    private static final String LOG_TAG = SaleRecorderBenchmarkTest.class.getSimpleName();
+    private static final int SALES = 1000;
+    /**
+     * Least factor the buffered sales must be faster by
+     * Buffering saves a transaction per sale, so it's expected to be an order of magnitude faster
+     */
+    private static final double MIN_SPEEDUP = 2;
+
+    private ContentResolver mResolver;
+    private Uri mProductUri;
+
+    @Before
+    public void insertProduct() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mResolver = context.getContentResolver();
+
+        ContentValues values = new ContentValues();
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, "Benchmark product");
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, 1);
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, SALES * 2);
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, new byte[]{1, 2, 3});
+        mProductUri = mResolver.insert(ProductContract.ProductEntry.CONTENT_URI, values);
+        assertNotNull(mProductUri);
+    }
+
+    @After
+    public void deleteProduct() {
+        mResolver.delete(mProductUri, null, null);
+    }
+
+    @Test
+    public void bufferedSalesOutperformOneWritePerSale() throws Exception {
+        long id = ContentUris.parseId(mProductUri);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < SALES; i++)
+            mResolver.update(ProductContract.ProductEntry.buildSaleUri(id), null, null, null);
+        long perSaleNanos = System.nanoTime() - start;
+        assertEquals(SALES, readQuantity());
+
+        SaleRecorder recorder = SaleRecorder.getInstance(InstrumentationRegistry.getTargetContext());
+        start = System.nanoTime();
+        for (int i = 0; i < SALES; i++)
+            recorder.recordSale(id);
+        recorder.flush().get();
+        long bufferedNanos = System.nanoTime() - start;
+        assertEquals(0, readQuantity());
+
+        String rates = String.format("one write per sale: %.0f sales/s, buffered: %.0f sales/s",
+                SALES * 1e9 / perSaleNanos, SALES * 1e9 / bufferedNanos);
+        Log.i(LOG_TAG, rates);
+        assertTrue("Buffered sales aren't " + MIN_SPEEDUP + "x faster, " + rates,
+                perSaleNanos >= bufferedNanos * MIN_SPEEDUP);
+    }
+
+    private int readQuantity() {
+        Cursor cursor = mResolver.query(mProductUri,
+                new String[]{ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
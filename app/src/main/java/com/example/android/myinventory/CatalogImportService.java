@@ -0,0 +1,530 @@
+package com.example.android.myinventory;
+
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.myinventory.data.CatalogReader;
+import com.example.android.myinventory.data.PictureDecoder;
+import com.example.android.myinventory.data.PictureEncoder;
+import com.example.android.myinventory.data.PictureStore;
+import com.example.android.myinventory.data.ProductContract;
+import com.example.android.myinventory.data.ProductWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports the products of a supplier catalog(CSV or JSON) in the background
+ * <p>
+ * The catalog is streamed a product at a time by a {@link CatalogReader}. The pictures of a chunk of products are
+ * decoded, encoded and stored with their thumbnails on a pool of workers while the previous chunk is written, and
+ * every chunk is written in one transaction by the {@link ProductWriter} with the references of its pictures, so the
+ * import queues behind the other product writes instead of competing with them, and holds them up only for its rows.
+ * Every chunk stores the number of catalog rows done in the transaction that writes its products, so an interrupted
+ * import of the same catalog skips exactly the products already written when it's started again.
+ */
+public class CatalogImportService extends IntentService {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = CatalogImportService.class.getSimpleName();
+    /**
+     * Action to import the catalog of the intent data
+     */
+    public static final String ACTION_IMPORT_CATALOG = "com.example.android.myinventory.action.IMPORT_CATALOG";
+
+    /**
+     * Number of products written per transaction
+     */
+    private static final int CHUNK_SIZE = 50;
+    /**
+     * Shortest time between two updates of the progress notification
+     */
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    /**
+     * ID of the import notification
+     */
+    private static final int NOTIFICATION_ID = 2;
+
+    private PictureEncoder mEncoder;
+    private PictureStore mPictureStore;
+    private byte[] mPlaceholderPicture;
+
+    public CatalogImportService() {
+        super(LOG_TAG);
+        /**
+         * Start an import again if the process dies during it, the checkpoint lets it resume
+         */
+        setIntentRedelivery(true);
+    }
+
+    /**
+     * Start importing a catalog
+     *
+     * @param context of the app
+     * @param catalog URI of the catalog, readable by the caller
+     */
+    public static void startImport(Context context, Uri catalog) {
+        Intent intent = new Intent(context, CatalogImportService.class);
+        intent.setAction(ACTION_IMPORT_CATALOG);
+        intent.setData(catalog);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        context.startService(intent);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null || !ACTION_IMPORT_CATALOG.equals(intent.getAction()) || intent.getData() == null) {
+            Log.w(LOG_TAG, "Unknown import " + intent);
+            return;
+        }
+
+        mEncoder = PictureEncoder.fromResources(this);
+        mPictureStore = new PictureStore(this);
+        try {
+            importCatalog(intent.getData());
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to import " + intent.getData(), e);
+            notify(getString(R.string.import_notification_failed), 0, 0, false);
+        }
+    }
+
+    /**
+     * Import a catalog, resuming after the products already written if it was interrupted
+     */
+    private void importCatalog(Uri catalog) throws IOException {
+        ContentResolver resolver = getContentResolver();
+        Bundle started = resolver.call(ProductContract.ProductEntry.CONTENT_URI, ProductContract.METHOD_START_IMPORT,
+                catalog.toString(), null);
+        long resumeFrom = started == null ? 0 : started.getLong(ProductContract.EXTRA_ROWS_DONE);
+
+        String format = CatalogReader.guessFormat(getDisplayName(catalog), resolver.getType(catalog));
+        AssetFileDescriptor descriptor = resolver.openAssetFileDescriptor(catalog, "r");
+        if (descriptor == null)
+            throw new IOException("Cannot open " + catalog);
+        long length = descriptor.getLength();
+        InputStream in = descriptor.createInputStream();
+        CatalogReader reader = CatalogReader.open(in, format == null ? CatalogReader.FORMAT_CSV : format);
+
+        ExecutorService workers = newWorkerPool();
+        Progress progress = new Progress(length);
+        Chunk previous = null;
+        try {
+            while (true) {
+                /**
+                 * Read the next chunk and start its pictures, then write the previous one meanwhile
+                 */
+                Chunk chunk = readChunk(reader, workers, catalog, resumeFrom, progress);
+                Chunk written = previous;
+                previous = chunk;
+                if (written != null) {
+                    writeChunk(written, progress);
+                    progress.report(reader.getBytesRead(), false);
+                }
+                if (chunk == null)
+                    break;
+            }
+        } finally {
+            /**
+             * The pictures already queued are still stored, so the pins of a chunk read ahead when the import failed
+             * can all be dropped
+             */
+            workers.shutdown();
+            reader.close();
+            if (previous != null)
+                releasePictures(previous);
+        }
+
+        resolver.call(ProductContract.ProductEntry.CONTENT_URI, ProductContract.METHOD_FINISH_IMPORT, null, null);
+        progress.report(reader.getBytesRead(), true);
+        Log.i(LOG_TAG, "Imported " + progress.mImported + " products, skipped " + progress.mSkipped + ", at "
+                + progress.getRowsPerSecond() + " rows/s");
+    }
+
+    /**
+     * Read the next products of the catalog, and start encoding their pictures
+     * The products already written by an interrupted import are skipped
+     *
+     * @return the chunk, or null at the end of the catalog
+     */
+    private Chunk readChunk(CatalogReader reader, ExecutorService workers, Uri catalog, long resumeFrom,
+                            Progress progress) throws IOException {
+        Chunk chunk = new Chunk();
+        CatalogReader.Row row = new CatalogReader.Row();
+        boolean read = false;
+        try {
+            while (chunk.values.size() < CHUNK_SIZE && reader.next(row)) {
+                read = true;
+                chunk.nextIndex = row.index + 1;
+                if (row.index < resumeFrom)
+                    continue;
+
+                ContentValues values = toValues(row);
+                if (values == null) {
+                    Log.w(LOG_TAG, "Skipping invalid product " + row.index + " of " + catalog);
+                    progress.mSkipped++;
+                    continue;
+                }
+                chunk.values.add(values);
+                chunk.pictures.add(workers.submit(new PictureTask(resolvePicture(catalog, row.image))));
+            }
+        } catch (IOException | RuntimeException e) {
+            releasePictures(chunk);
+            throw e;
+        }
+        return read ? chunk : null;
+    }
+
+    /**
+     * Wait for the pictures of a chunk, then write it in one transaction through the writer, together with the
+     * progress of the import
+     * The stored pictures stay pinned until the chunk is written, and a chunk that fails releases them
+     */
+    private void writeChunk(Chunk chunk, Progress progress) {
+        if (chunk.values.isEmpty())
+            return;
+
+        ContentValues[] values = chunk.values.toArray(new ContentValues[chunk.values.size()]);
+        boolean written = false;
+        try {
+            for (int i = 0; i < values.length; i++)
+                values[i].put(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, chunk.getPicture(i));
+
+            /**
+             * Wait for room in the queue of the writer rather than being refused, so the import slows down to the
+             * pace of the db
+             */
+            int inserted = ProductWriter.getInstance(this).bulkInsertBlocking(
+                    ProductContract.ProductEntry.buildImportUri(chunk.nextIndex), values, null).get();
+            if (inserted == 0)
+                throw new IllegalStateException("Failed to write products");
+            progress.mImported += inserted;
+            written = true;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to write products", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Import interrupted", e);
+        } finally {
+            if (written)
+                chunk.unpinPictures();
+            else
+                releasePictures(chunk);
+        }
+    }
+
+    /**
+     * Drop the pictures of a chunk that won't be written, once the workers are done with them
+     * Those already stored for products written before are kept by the provider
+     */
+    private void releasePictures(Chunk chunk) {
+        List<String> pictures = chunk.unpinPictures();
+        if (pictures.isEmpty())
+            return;
+        Bundle extras = new Bundle();
+        extras.putStringArray(ProductContract.EXTRA_PICTURES, pictures.toArray(new String[pictures.size()]));
+        try {
+            getContentResolver().call(ProductContract.ProductEntry.CONTENT_URI,
+                    ProductContract.METHOD_RELEASE_PICTURES, null, extras);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to release the pictures of a chunk", e);
+        }
+    }
+
+    /**
+     * Turn a catalog row into the values of a new product, without its picture
+     *
+     * @return the values, or null if the row isn't a valid product
+     */
+    private static ContentValues toValues(CatalogReader.Row row) {
+        if (TextUtils.isEmpty(row.name))
+            return null;
+        int price = parseCount(row.price);
+        int quantity = parseCount(row.quantity);
+        int reorderLevel = parseCount(row.reorderLevel);
+        if (price < 0 || quantity < 0 || reorderLevel < 0)
+            return null;
+
+        ContentValues values = new ContentValues();
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, row.name);
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, price);
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL, reorderLevel);
+        return values;
+    }
+
+    /**
+     * Parse a price or a quantity of a catalog, rounding decimals
+     *
+     * @return the value, 0 if it's missing, or -1 if it's invalid
+     */
+    private static int parseCount(String value) {
+        if (TextUtils.isEmpty(value))
+            return 0;
+        try {
+            double number = Double.parseDouble(value);
+            if (number < 0 || number > Integer.MAX_VALUE || Double.isNaN(number))
+                return -1;
+            return (int) Math.round(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Find the picture file of a product
+     * A location without scheme is a path relative to the folder of the catalog, which only a file catalog has
+     *
+     * @return the URI of the picture, or null if there's none
+     */
+    private static Uri resolvePicture(Uri catalog, String location) {
+        if (TextUtils.isEmpty(location))
+            return null;
+        Uri picture = Uri.parse(location);
+        if (picture.getScheme() != null)
+            return picture;
+        if (ContentResolver.SCHEME_FILE.equals(catalog.getScheme()) && catalog.getPath() != null)
+            return Uri.fromFile(new File(new File(catalog.getPath()).getParentFile(), location));
+        return null;
+    }
+
+    /**
+     * Get the picture of the products whose own picture is missing or can't be decoded, the app icon
+     */
+    private synchronized byte[] getPlaceholderPicture() {
+        if (mPlaceholderPicture == null) {
+            Bitmap icon = BitmapFactory.decodeResource(getResources(), R.drawable.product_512);
+            mPlaceholderPicture = mEncoder.encode(icon).data;
+            icon.recycle();
+        }
+        return mPlaceholderPicture;
+    }
+
+    /**
+     * Get the name of a catalog, to guess its format
+     */
+    private String getDisplayName(Uri catalog) {
+        if (ContentResolver.SCHEME_FILE.equals(catalog.getScheme()))
+            return catalog.getLastPathSegment();
+        Cursor cursor = getContentResolver().query(catalog, new String[]{OpenableColumns.DISPLAY_NAME}, null,
+                null, null);
+        if (cursor == null)
+            return null;
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Pool decoding, encoding and storing the pictures, one worker per core
+     * The queue holds at most a chunk of pictures. Once it's full the reader encodes the next picture itself,
+     * so it can't read ahead of the workers and fill the memory with pictures waiting to be encoded.
+     */
+    private static ExecutorService newWorkerPool() {
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+        return new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(CHUNK_SIZE), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, LOG_TAG + " picture " + ++mCount);
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Show the progress or the end of the import
+     *
+     * @param text     of the notification
+     * @param max      of the progress bar, 0 for none
+     * @param progress of the progress bar, or -1 for an indeterminate one
+     * @param ongoing  if the import is still running
+     */
+    private void notify(String text, int max, int progress, boolean ongoing) {
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(getString(R.string.import_notification_title))
+                .setContentText(text)
+                .setOngoing(ongoing)
+                .setContentIntent(PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                        PendingIntent.FLAG_UPDATE_CURRENT));
+        if (ongoing)
+            builder.setProgress(max, Math.max(progress, 0), progress < 0);
+        else
+            builder.setSmallIcon(android.R.drawable.stat_sys_download_done).setAutoCancel(true);
+        NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, builder.build());
+    }
+
+    /**
+     * Decodes, encodes and stores the picture of one product on a worker, and makes its thumbnail
+     */
+    private class PictureTask implements Callable<String> {
+        private final Uri mPicture;
+
+        PictureTask(Uri picture) {
+            mPicture = picture;
+        }
+
+        /**
+         * @return the reference of the stored picture, pinned, the placeholder if there's none or it can't be decoded
+         */
+        @Override
+        public String call() throws IOException {
+            byte[] picture = null;
+            try {
+                picture = encode();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to encode picture " + mPicture, e);
+            }
+
+            String reference = mPictureStore.put(picture != null ? picture : getPlaceholderPicture());
+            /**
+             * A missing thumbnail is made again when it's opened, so failing here doesn't fail the product
+             */
+            try {
+                mPictureStore.putThumbnail(reference);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to make thumbnail of picture " + reference, e);
+            }
+            return reference;
+        }
+
+        /**
+         * @return the encoded picture, or null if there's none or it can't be decoded
+         */
+        private byte[] encode() throws IOException {
+            if (mPicture == null)
+                return null;
+            Bitmap bitmap = PictureDecoder.decodeSampled(getContentResolver(), mPicture, mEncoder.getMaxDimension(),
+                    mEncoder.getMaxDimension(), null);
+            if (bitmap == null)
+                return null;
+            try {
+                return mEncoder.encode(bitmap).data;
+            } finally {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Products read together and written in one transaction
+     */
+    private class Chunk {
+        final List<ContentValues> values = new ArrayList<>(CHUNK_SIZE);
+        final List<Future<String>> pictures = new ArrayList<>(CHUNK_SIZE);
+        /**
+         * Catalog index after the last product read, where a resumed import starts
+         */
+        long nextIndex;
+
+        /**
+         * Wait for the stored picture of a product
+         *
+         * @return its reference
+         */
+        String getPicture(int index) throws ExecutionException, InterruptedException {
+            return pictures.get(index).get();
+        }
+
+        /**
+         * Drop the pins of the pictures stored for the chunk, waiting for the workers still storing them
+         *
+         * @return the references unpinned
+         */
+        List<String> unpinPictures() {
+            List<String> references = new ArrayList<>(pictures.size());
+            boolean interrupted = false;
+            for (Future<String> picture : pictures) {
+                while (true) {
+                    try {
+                        String reference = picture.get();
+                        mPictureStore.unpin(reference);
+                        references.add(reference);
+                        break;
+                    } catch (ExecutionException | CancellationException e) {
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            return references;
+        }
+    }
+
+    /**
+     * Counts of the import and the throughput, shown in the notification
+     */
+    private class Progress {
+        private final long mLength;
+        private final long mStart = SystemClock.elapsedRealtime();
+        private long mLastReport;
+        int mImported;
+        int mSkipped;
+
+        /**
+         * @param length of the catalog in bytes, or {@link AssetFileDescriptor#UNKNOWN_LENGTH}
+         */
+        Progress(long length) {
+            mLength = length;
+        }
+
+        long getRowsPerSecond() {
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mStart);
+            return mImported * 1000L / elapsed;
+        }
+
+        void report(long bytesRead, boolean done) {
+            long now = SystemClock.elapsedRealtime();
+            if (!done && now - mLastReport < PROGRESS_INTERVAL_MS)
+                return;
+            mLastReport = now;
+
+            if (done) {
+                CatalogImportService.this.notify(getString(R.string.import_notification_done, mImported, mSkipped,
+                        getRowsPerSecond()), 0, 0, false);
+            } else {
+                int percent = mLength > 0 ? (int) Math.min(100, bytesRead * 100 / mLength) : -1;
+                CatalogImportService.this.notify(getString(R.string.import_notification_progress, mImported,
+                        getRowsPerSecond()), 100, percent, true);
+            }
+        }
+    }
+}
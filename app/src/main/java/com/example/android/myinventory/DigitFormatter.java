@@ -0,0 +1,46 @@
+package com.example.android.myinventory;
+
+/**
+ * Writes integers as decimal digits into a char array, so the rows of the list can show numbers without
+ * allocating a string for each of them
+ */
+public final class DigitFormatter {
+    /**
+     * Most chars written for an int, the sign and 10 digits
+     */
+    public static final int MAX_INT_CHARS = 11;
+
+    private DigitFormatter() {
+    }
+
+    /**
+     * Write an int as decimal digits, with a leading '-' if it's negative, like {@link Integer#toString(int)}
+     *
+     * @param value  to write
+     * @param buffer receiving the chars, with room for {@link #MAX_INT_CHARS} chars from the offset
+     * @param offset of the first char written
+     * @return the offset following the last char written
+     */
+    public static int format(int value, char[] buffer, int offset) {
+        if (offset < 0 || buffer.length - offset < MAX_INT_CHARS)
+            throw new IllegalArgumentException("No room for " + MAX_INT_CHARS + " chars at " + offset);
+
+        /**
+         * Work on the negative value, which covers Integer.MIN_VALUE too
+         */
+        int negative = value < 0 ? value : -value;
+        if (value < 0)
+            buffer[offset++] = '-';
+
+        int digits = 1;
+        for (int rest = negative / 10; rest != 0; rest /= 10)
+            digits++;
+
+        int end = offset + digits;
+        for (int i = end - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' - negative % 10);
+            negative /= 10;
+        }
+        return end;
+    }
+}
@@ -2,6 +2,8 @@ package com.example.android.myinventory;
 
 import android.Manifest;
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
@@ -10,12 +12,13 @@ import android.content.Loader;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -24,6 +27,7 @@ import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.app.LoaderManager;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -33,9 +37,16 @@ import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.example.android.myinventory.data.PictureDecoder;
+import com.example.android.myinventory.data.PictureEncoder;
 import com.example.android.myinventory.data.ProductContract;
+import com.example.android.myinventory.data.ProductWriter;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by Kat on 2017-03-22.
@@ -45,10 +56,36 @@ import java.io.ByteArrayOutputStream;
  * Allows user to create a new product or edit an existing one
  */
 public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor>, View.OnClickListener {
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = EditorActivity.class.getSimpleName();
     /**
      * Identifier for the product data loader
      */
     private static final int EXISTING_PRODUCT_LOADER = 0;
+    /**
+     * Keys of the saving state kept across a recreation of the editor
+     */
+    private static final String STATE_SAVING = "saving";
+    private static final String STATE_SAVE_WHEN_ENCODED = "save_when_encoded";
+    /**
+     * Kinds of the writes handed to the {@link ProductWriter}
+     */
+    private static final int WRITE_INSERT = 0;
+    private static final int WRITE_UPDATE = 1;
+    private static final int WRITE_DELETE = 2;
+    /**
+     * Decodes the stored pictures and encodes the new ones off the UI thread, one at a time
+     */
+    private static final ExecutorService PICTURE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, LOG_TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /**
      * Content URI for the existing product(null if it's a new product)
@@ -67,6 +104,10 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      * EditText field to show the product's quantity
      */
     private EditText mQuantityEditText;
+    /**
+     * EditText field to enter the quantity at or below which the product should be restocked
+     */
+    private EditText mReorderLevelEditText;
     /**
      * ImageView filed to show the product's picture
      */
@@ -87,10 +128,29 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     private static final int REQUEST_IMAGE_CAPTURE = 1;
 
     /**
-     * Byte array to save the image data
+     * Byte array to save the image data of a newly taken picture
+     * Stays null while the product keeps its stored picture
      */
     private byte[] imageData;
 
+    /**
+     * Pictures of the product, decoded and encoded in the background and kept across configuration changes
+     */
+    private RetainedPicture mStoredPicture;
+
+    /**
+     * Boolean flag to save the product once the new picture is encoded
+     */
+    private boolean mSaveWhenEncoded = false;
+    /**
+     * True while a save or delete is being written by the {@link ProductWriter}
+     */
+    private boolean mSaving = false;
+    /**
+     * Receives the result of the save or delete being written, kept across configuration changes
+     */
+    private WriteCallback<?> mPendingWrite;
+
     private final int MY_PERMISSION_REQUEST = 100;
 
     private boolean permissionCheckedForCamera, permissionCheckedForStorage;
@@ -148,11 +208,28 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText = (EditText) findViewById(R.id.edit_product_name);
         mPriceEditText = (EditText) findViewById(R.id.edit_product_price);
         mQuantityEditText = (EditText) findViewById(R.id.show_product_quantity);
+        mReorderLevelEditText = (EditText) findViewById(R.id.edit_product_reorder_level);
         mImageView = (ImageView) findViewById(R.id.image_view_product_image);
         mTakePictureButton = (Button) findViewById(R.id.edit_product_take_picture);
 
         mTakePictureButton.setOnClickListener(this);
 
+        /**
+         * Show the picture decoded or taken before a configuration change right away, instead of decoding it again
+         */
+        Retained retained = (Retained) getLastCustomNonConfigurationInstance();
+        if (retained != null) {
+            mStoredPicture = retained.mPicture;
+            mPendingWrite = retained.mWrite;
+        } else
+            mStoredPicture = new RetainedPicture(getApplicationContext().getContentResolver());
+        mStoredPicture.mActivity = this;
+        if (mStoredPicture.mNewPicture != null) {
+            mImageView.setImageBitmap(mStoredPicture.mNewPicture);
+            imageData = mStoredPicture.mNewPictureData;
+        } else if (mStoredPicture.mBitmap != null)
+            mImageView.setImageBitmap(mStoredPicture.mBitmap);
+
         /**
          * Setup OnTouchListeners on all input field, so we can determine if the user has touched or modified them
          * This will let us know if there are unsaved changes or not, if the user tries to leave the editor without saving
@@ -160,7 +237,60 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mQuantityEditText.setOnTouchListener(mTouchListener);
+        mReorderLevelEditText.setOnTouchListener(mTouchListener);
         mTakePictureButton.setOnTouchListener(mTouchListener);
+
+        /**
+         * A write still running is only known after a configuration change, after the process was killed
+         * nothing will ever report it
+         * Its result is handed to this editor, right away if it finished while the editor was being recreated
+         */
+        if (savedInstanceState != null) {
+            mSaving = savedInstanceState.getBoolean(STATE_SAVING) && mPendingWrite != null;
+            mSaveWhenEncoded = savedInstanceState.getBoolean(STATE_SAVE_WHEN_ENCODED);
+        }
+        if (mPendingWrite != null)
+            mPendingWrite.attach(this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_SAVING, mSaving);
+        outState.putBoolean(STATE_SAVE_WHEN_ENCODED, mSaveWhenEncoded);
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Bundle savedInstanceState) {
+        super.onRestoreInstanceState(savedInstanceState);
+        /**
+         * The new picture was encoded while the editor was being recreated, so save it now that the fields are back
+         */
+        if (mSaveWhenEncoded && !mStoredPicture.isEncoding()) {
+            mSaveWhenEncoded = false;
+            saveProduct();
+        }
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return new Retained(mStoredPicture, mPendingWrite);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mStoredPicture.mActivity = null;
+        /**
+         * The write keeps going, but its result must not reach this editor anymore
+         */
+        if (mPendingWrite != null)
+            mPendingWrite.detach();
+        /**
+         * Nobody will show the picture once the editor is closed
+         */
+        if (isFinishing())
+            mStoredPicture.cancel();
     }
 
     /**
@@ -206,11 +336,24 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         String nameString = mNameEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
 
+        /**
+         * The previous save is still being written
+         */
+        if (mSaving)
+            return;
+        /**
+         * A new picture is still being encoded, so save once it's done
+         */
+        if (mStoredPicture.isEncoding()) {
+            mSaveWhenEncoded = true;
+            return;
+        }
+
         /**
          * Check if this is supposed to be a new pet and check if all fields are blank
          */
         if (mCurrentUri == null && TextUtils.isEmpty(nameString) || TextUtils.isEmpty(priceString)
-                || imageData == null) {
+                || mCurrentUri == null && imageData == null) {
             Toast.makeText(this, getString(R.string.toast_invalid_product_info), Toast.LENGTH_SHORT).show();
             return;
         }
@@ -230,7 +373,21 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             quantity = Integer.parseInt(mQuantityEditText.getText().toString().trim());
 
         values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, quantity);
-        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, imageData);
+
+        /**
+         * If the reorder level is blank, use 0 by default so the product is only low once it's out of stock
+         */
+        int reorderLevel = 0;
+        if (!mReorderLevelEditText.getText().toString().trim().equals(""))
+            reorderLevel = Integer.parseInt(mReorderLevelEditText.getText().toString().trim());
+
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL, reorderLevel);
+
+        /**
+         * Only send the picture if a new one was taken, an existing product keeps its stored picture otherwise
+         */
+        if (imageData != null)
+            values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, imageData);
 
         /**
          * Determine if this is a new or existing product by checking if {@link #mCurrentUri} is null or not
@@ -239,49 +396,72 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             /**
              * It is a new product, so insert a new product into the provider, returning the content URI for new product
              */
-            Uri newUri = getContentResolver().insert(ProductContract.ProductEntry.CONTENT_URI, values);
-            if (newUri == null)
-            /**
-             * There was an error with insertion
-             */
-                Toast.makeText(this, getString(R.string.editor_insert_product_failed), Toast.LENGTH_SHORT).show();
-            else {
-                /**
-                 * Otherwise, the insertion was successful
-                 */
-                Toast.makeText(this, getString(R.string.editor_insert_product_successful), Toast.LENGTH_SHORT).show();
-
-                /**
-                 * Exit activity
-                 */
-                finish();
-                NavUtils.navigateUpFromSameTask(EditorActivity.this);
-            }
+            WriteCallback<Uri> callback = new WriteCallback<>(WRITE_INSERT, this);
+            onWriteQueued(ProductWriter.getInstance(this).insert(ProductContract.ProductEntry.CONTENT_URI, values,
+                    callback), callback);
         } else {
             /**
              * This is an existing product, so update the product with content URI: {@link #mCurrentUri}
              * and pass in the new {@link ContentValues}
              */
-            int rowsAffected = getContentResolver().update(mCurrentUri, values, null, null);
+            WriteCallback<Integer> callback = new WriteCallback<>(WRITE_UPDATE, this);
+            onWriteQueued(ProductWriter.getInstance(this).update(mCurrentUri, values, null, null, callback), callback);
+        }
+    }
+
+    /**
+     * Called once a save or delete is handed to the {@link ProductWriter}
+     * The editor ignores saves and deletes until the result is back, so a product isn't written twice
+     *
+     * @param write    future of the write, or null if the writer refused it
+     * @param callback receiving the result of the write
+     */
+    private void onWriteQueued(Future<?> write, WriteCallback<?> callback) {
+        if (write == null) {
+            callback.detach();
+            Toast.makeText(this, getString(R.string.toast_writer_busy), Toast.LENGTH_SHORT).show();
+        } else {
+            mSaving = true;
+            mPendingWrite = callback;
+        }
+    }
+
+    /**
+     * Called on the UI thread with the result of the save or delete, on the editor showing when it's done
+     *
+     * @param kind      of the write, one of {@link #WRITE_INSERT}, {@link #WRITE_UPDATE} or {@link #WRITE_DELETE}
+     * @param succeeded whether the product was written
+     */
+    private void onWriteFinished(int kind, boolean succeeded) {
+        mSaving = false;
+        mPendingWrite = null;
 
-            if (rowsAffected == 0)
+        if (kind == WRITE_DELETE) {
+            Toast.makeText(this, getString(succeeded ? R.string.editor_delete_product_successful
+                    : R.string.editor_delete_product_failed), Toast.LENGTH_SHORT).show();
             /**
-             * There was an error with updating
+             * Close the activity
              */
-                Toast.makeText(this, getString(R.string.editor_update_product_failed), Toast.LENGTH_SHORT).show();
-            else {
-                /**
-                 * Otherwise, the update was successful
-                 */
-                Toast.makeText(this, getString(R.string.editor_update_product_successful), Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
 
-                /**
-                 * Exit activity
-                 */
-                finish();
-                NavUtils.navigateUpFromSameTask(EditorActivity.this);
-            }
+        if (!succeeded) {
+            /**
+             * There was an error with the insertion or the update
+             */
+            Toast.makeText(this, getString(kind == WRITE_INSERT ? R.string.editor_insert_product_failed
+                    : R.string.editor_update_product_failed), Toast.LENGTH_SHORT).show();
+            return;
         }
+
+        /**
+         * Otherwise, the save was successful, so exit activity
+         */
+        Toast.makeText(this, getString(kind == WRITE_INSERT ? R.string.editor_insert_product_successful
+                : R.string.editor_update_product_successful), Toast.LENGTH_SHORT).show();
+        finish();
+        NavUtils.navigateUpFromSameTask(this);
     }
 
     @Override
@@ -400,11 +580,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         /**
-         * Define a projection that contains all columns from the product table
+         * Define a projection that contains the columns shown in the editor
+         * The picture column only holds the picture reference, the picture is streamed separately from its own URI
          */
         String[] projection = {ProductContract.ProductEntry._ID, ProductContract.ProductEntry.COLUMN_PRODUCT_NAME,
                 ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY,
-                ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE};
+                ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL, ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE};
 
         /**
          * This loader will execute the {@link android.content.ContentProvider}'s query method on a background thread
@@ -430,9 +611,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             int nameColumnIndex = data.getColumnIndex(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME);
             int priceColumnIndex = data.getColumnIndex(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE);
             int quantityColumnIndex = data.getColumnIndex(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY);
-            int imageColumnIndex = data.getColumnIndex(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE);
-
-            imageData = data.getBlob(imageColumnIndex);
+            int reorderLevelColumnIndex = data.getColumnIndex(ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL);
+            int pictureColumnIndex = data.getColumnIndex(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE);
 
             /**
              * Extract out the value from the Cursor and update the views on the screen with the values from the db
@@ -440,7 +620,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             mNameEditText.setText(data.getString(nameColumnIndex));
             mPriceEditText.setText(String.valueOf(data.getInt(priceColumnIndex)));
             mQuantityEditText.setText(String.valueOf(data.getInt(quantityColumnIndex)));
-            mImageView.setImageBitmap(getBitmap(imageData));
+            mReorderLevelEditText.setText(String.valueOf(data.getInt(reorderLevelColumnIndex)));
+
+            /**
+             * Keep showing a newly taken picture that hasn't been saved yet
+             */
+            if (mStoredPicture.mNewPicture == null)
+                showStoredPicture(data.getString(pictureColumnIndex));
         }
     }
 
@@ -452,9 +638,53 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText.setText("");
         mPriceEditText.setText("");
         mQuantityEditText.setText("0");
+        mReorderLevelEditText.setText("0");
         mImageView.setImageDrawable(null);
     }
 
+    /**
+     * Show the stored picture with the given reference
+     * The picture is only decoded when its reference changed, since the loader also reloads on quantity changes
+     *
+     * @param reference of the stored picture
+     */
+    private void showStoredPicture(String reference) {
+        if (reference == null)
+            return;
+        if (reference.equals(mStoredPicture.mReference)) {
+            if (mStoredPicture.mBitmap != null)
+                mImageView.setImageBitmap(mStoredPicture.mBitmap);
+            return;
+        }
+
+        /**
+         * Stop showing the previous picture, so it can be decoded into
+         */
+        mImageView.setImageDrawable(null);
+        Uri pictureUri = ProductContract.ProductEntry.buildPictureUri(ContentUris.parseId(mCurrentUri));
+        mStoredPicture.load(reference, pictureUri, getPictureWidth(), getPictureHeight());
+    }
+
+    /**
+     * Get the width the picture is shown at, from the layout if it's fixed there, or from the screen
+     */
+    private int getPictureWidth() {
+        int width = mImageView.getLayoutParams().width;
+        if (width <= 0)
+            width = mImageView.getWidth();
+        return width > 0 ? width : getResources().getDisplayMetrics().widthPixels;
+    }
+
+    /**
+     * Get the height the picture is shown at, from the layout if it's fixed there, or from the screen
+     */
+    private int getPictureHeight() {
+        int height = mImageView.getLayoutParams().height;
+        if (height <= 0)
+            height = mImageView.getHeight();
+        return height > 0 ? height : getResources().getDisplayMetrics().heightPixels;
+    }
+
     /**
      * Prompt the user to confirm that they want to delete this product
      */
@@ -489,27 +719,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         /**
          * Only perform the delete if this is an existing product
          */
-        if (mCurrentUri != null) {
-            /**
-             * Call the {@link android.content.ContentResolver} to delete the product at the given content URI
-             */
-            int rowsDeleted = getContentResolver().delete(mCurrentUri, null, null);
-
-            if (rowsDeleted == 0)
+        if (mCurrentUri != null && !mSaving) {
             /**
-             * There was an error with deletion
-             */
-                Toast.makeText(this, getString(R.string.editor_delete_product_failed), Toast.LENGTH_SHORT).show();
-            else
-            /**
-             * Otherwise, the delete was successful
-             */
-                Toast.makeText(this, getString(R.string.editor_delete_product_successful), Toast.LENGTH_SHORT).show();
-
-            /**
-             * Close the activity
+             * Hand the delete of the product at the given content URI to the {@link ProductWriter}
              */
-            finish();
+            WriteCallback<Integer> callback = new WriteCallback<>(WRITE_DELETE, this);
+            onWriteQueued(ProductWriter.getInstance(this).delete(mCurrentUri, null, null, callback), callback);
         }
     }
 
@@ -575,24 +790,211 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     /**
-     * Change the Drawable to byte[] and save it to {@link #imageData}
+     * Encode the new picture in the background and save it to {@link #imageData} once done
      */
     public void setImageData(Bitmap bitmap) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        imageData = null;
+        mStoredPicture.encode(bitmap, PictureEncoder.fromResources(this));
+    }
+
+    /**
+     * Called once the new picture is encoded
+     *
+     * @param data encoded picture
+     */
+    private void onPictureEncoded(byte[] data) {
+        imageData = data;
+        if (mSaveWhenEncoded) {
+            mSaveWhenEncoded = false;
+            saveProduct();
+        }
+    }
+
+    /**
+     * State of the editor kept across configuration changes
+     */
+    private static class Retained {
+        final RetainedPicture mPicture;
+        final WriteCallback<?> mWrite;
 
-        imageData = stream.toByteArray();
+        Retained(RetainedPicture picture, WriteCallback<?> write) {
+            mPicture = picture;
+            mWrite = write;
+        }
     }
 
     /**
-     * Decode byte[] from db
+     * Receives the result of a save or delete on the UI thread, and hands it to the editor attached at that time
+     * The editor detaches itself when it's destroyed, so a write finishing during a rotation neither reaches nor leaks
+     * the destroyed editor, and its result waits for the new one
      *
-     * @return Bitmap to set the image
+     * @param <T> type of the result, the URI of the new product or the number of rows written
      */
-    public Bitmap getBitmap(byte[] b) {
-        return BitmapFactory.decodeByteArray(b, 0, b.length);
+    private static class WriteCallback<T> implements ProductWriter.Callback<T> {
+        private final int mKind;
+        private EditorActivity mActivity;
+        private boolean mFinished;
+        private boolean mSucceeded;
+
+        WriteCallback(int kind, EditorActivity activity) {
+            mKind = kind;
+            mActivity = activity;
+        }
+
+        @Override
+        public void onWriteFinished(T result) {
+            mFinished = true;
+            mSucceeded = result instanceof Uri || result instanceof Integer && (Integer) result != 0;
+            deliver();
+        }
+
+        void attach(EditorActivity activity) {
+            mActivity = activity;
+            deliver();
+        }
+
+        void detach() {
+            mActivity = null;
+        }
+
+        private void deliver() {
+            if (!mFinished || mActivity == null)
+                return;
+            EditorActivity activity = mActivity;
+            mActivity = null;
+            activity.onWriteFinished(mKind, mSucceeded);
+        }
     }
 
+    /**
+     * Pictures of the product: the stored one, decoded in the background down to the size of the {@link ImageView},
+     * and a newly taken one, encoded in the background
+     * It outlives the activity across configuration changes, so a rotation doesn't decode or encode a picture again
+     */
+    private static class RetainedPicture {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        /**
+         * Resolver of the app, so the background decode doesn't keep an activity alive
+         */
+        private final ContentResolver mContentResolver;
+        /**
+         * Reference of the picture being decoded or decoded
+         */
+        private String mReference;
+        /**
+         * Decoded picture, null while decoding
+         */
+        private Bitmap mBitmap;
+        private Future<?> mPending;
+        /**
+         * Activity showing the picture, null while it's being recreated
+         */
+        private EditorActivity mActivity;
+        /**
+         * Newly taken picture, null if none was taken
+         */
+        private Bitmap mNewPicture;
+        /**
+         * Encoded newly taken picture, null while encoding
+         */
+        private byte[] mNewPictureData;
+        private Future<?> mEncoding;
+
+        RetainedPicture(ContentResolver contentResolver) {
+            mContentResolver = contentResolver;
+        }
+
+        /**
+         * Decode a stored picture in the background and show it in the attached activity
+         * The previous picture, which must not be shown anymore, is decoded into if it's large enough
+         */
+        void load(final String reference, final Uri pictureUri, final int width, final int height) {
+            cancel();
+            mReference = reference;
+            final Bitmap reuse = mBitmap;
+            mBitmap = null;
+            mPending = PICTURE_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Bitmap decoded = null;
+                    try {
+                        decoded = PictureDecoder.decodeSampled(mContentResolver, pictureUri, width, height, reuse);
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Failed to decode picture " + reference, e);
+                    }
+
+                    final Bitmap result = decoded;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            /**
+                             * Drop the result of a decode superseded by a newer picture
+                             */
+                            if (!reference.equals(mReference))
+                                return;
+                            mBitmap = result;
+                            mPending = null;
+                            if (mActivity != null && result != null)
+                                mActivity.mImageView.setImageBitmap(result);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Encode a newly taken picture in the background and hand it to the attached activity
+         */
+        void encode(final Bitmap picture, final PictureEncoder encoder) {
+            if (mEncoding != null)
+                mEncoding.cancel(false);
+            mNewPicture = picture;
+            mNewPictureData = null;
+
+            mEncoding = PICTURE_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    final PictureEncoder.Result result = encoder.encode(picture);
+                    Log.i(LOG_TAG, "Encoded picture to " + result + " in "
+                            + (System.nanoTime() - start) / 1000000 + " ms");
+
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            /**
+                             * Drop the result of an encode superseded by a newer picture
+                             */
+                            if (picture != mNewPicture)
+                                return;
+                            mNewPictureData = result.data;
+                            mEncoding = null;
+                            if (mActivity != null)
+                                mActivity.onPictureEncoded(result.data);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Check if a newly taken picture is still being encoded
+         */
+        boolean isEncoding() {
+            return mEncoding != null;
+        }
+
+        /**
+         * Cancel the pending decode, if any
+         */
+        void cancel() {
+            if (mPending != null) {
+                mPending.cancel(false);
+                mPending = null;
+            }
+            mReference = null;
+        }
+    }
 
     /**
      * Check permission
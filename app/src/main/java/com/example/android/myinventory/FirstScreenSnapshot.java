@@ -0,0 +1,106 @@
+package com.example.android.myinventory;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the rows of the first screen of the product list in a small file, so a cold start can show them
+ * before the provider has opened the db and the loader has read the first window
+ * <p>
+ * The rows may be stale, they are only shown until the live rows replace them.
+ * The file is in the cache dir, losing it only costs one slower start.
+ */
+public class FirstScreenSnapshot {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = FirstScreenSnapshot.class.getSimpleName();
+    private static final String FILE_NAME = "first_screen.snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes the snapshots off the UI thread, one at a time so an older one never replaces a newer one
+     */
+    private static final ExecutorService WRITE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private FirstScreenSnapshot() {
+    }
+
+    /**
+     * Read the rows saved by the last {@link #save(Context, ProductSnapshot, int)}
+     * The file holds a screen of rows, small enough to read on the UI thread before the first frame
+     *
+     * @param context of the app
+     * @return the rows, or null if none were saved or they can't be read
+     */
+    public static ProductSnapshot read(Context context) {
+        File file = getFile(context);
+        long start = System.nanoTime();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                ProductSnapshot snapshot = ProductSnapshot.readFrom(in);
+                Log.d(LOG_TAG, "Read " + snapshot.size() + " rows of the first screen in "
+                        + (System.nanoTime() - start) / 1000 + " us");
+                return snapshot;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read the first screen snapshot", e);
+            if (!file.delete())
+                Log.w(LOG_TAG, "Failed to delete " + file);
+            return null;
+        }
+    }
+
+    /**
+     * Save the first rows of the list in the background
+     * The file is written aside then renamed, so a crash never leaves half a snapshot
+     *
+     * @param context  of the app
+     * @param snapshot rows of the list, starting at the first product
+     * @param rows     number of rows filling the screen
+     */
+    public static void save(Context context, final ProductSnapshot snapshot, final int rows) {
+        final File file = getFile(context);
+        WRITE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                File temp = new File(file.getPath() + TEMP_SUFFIX);
+                try {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                    try {
+                        snapshot.writeTo(out, rows);
+                    } finally {
+                        out.close();
+                    }
+                    if (!temp.renameTo(file))
+                        throw new IOException("Failed to rename " + temp + " to " + file);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to save the first screen snapshot", e);
+                    if (temp.exists() && !temp.delete())
+                        Log.w(LOG_TAG, "Failed to delete " + temp);
+                }
+            }
+        });
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+}
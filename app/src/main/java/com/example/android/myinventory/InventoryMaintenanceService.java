@@ -0,0 +1,539 @@
+package com.example.android.myinventory;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.util.Log;
+
+import com.example.android.myinventory.data.PictureDecoder;
+import com.example.android.myinventory.data.PictureEncoder;
+import com.example.android.myinventory.data.PictureStore;
+import com.example.android.myinventory.data.ProductContract;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Runs the slow upkeep of the inventory in the background, one job at a time
+ */
+public class InventoryMaintenanceService extends IntentService {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = InventoryMaintenanceService.class.getSimpleName();
+    /**
+     * Action to re-encode the stored pictures that are lossless or over the byte budget
+     */
+    public static final String ACTION_REENCODE_PICTURES = "com.example.android.myinventory.action.REENCODE_PICTURES";
+    /**
+     * Action to alert about the products at or below their reorder level
+     */
+    public static final String ACTION_CHECK_LOW_STOCK = "com.example.android.myinventory.action.CHECK_LOW_STOCK";
+    /**
+     * long[] of the products that just went down to their reorder level
+     */
+    public static final String EXTRA_LOW_STOCK_IDS = "com.example.android.myinventory.extra.LOW_STOCK_IDS";
+    /**
+     * Action to drop the old sales ledger entries and hourly totals, which the daily totals already cover
+     */
+    public static final String ACTION_COMPACT_SALES = "com.example.android.myinventory.action.COMPACT_SALES";
+    /**
+     * Action to export the products into the document of the intent data
+     */
+    public static final String ACTION_EXPORT = "com.example.android.myinventory.action.EXPORT";
+    /**
+     * String holding the export URI to copy into the document
+     */
+    public static final String EXTRA_EXPORT_URI = "com.example.android.myinventory.extra.EXPORT_URI";
+    /**
+     * Action to take a snapshot of the db, see {@link ProductContract#METHOD_BACKUP}
+     */
+    public static final String ACTION_BACKUP = "com.example.android.myinventory.action.BACKUP";
+    /**
+     * Action to replace the db with the one rebuilt from the snapshots
+     */
+    public static final String ACTION_RESTORE = "com.example.android.myinventory.action.RESTORE";
+    /**
+     * Action to finish the pending schema migrations, see {@link ProductContract#METHOD_MIGRATE}
+     */
+    public static final String ACTION_MIGRATE = "com.example.android.myinventory.action.MIGRATE";
+
+    /**
+     * Number of products re-encoded per transaction
+     */
+    private static final int REENCODE_CHUNK_SIZE = 20;
+    /**
+     * Name of the preferences keeping the progress of the jobs
+     */
+    private static final String PREFS_NAME = "maintenance";
+    /**
+     * Preference keys of the ID of the last product re-encoded, and of whether all pictures were re-encoded
+     */
+    private static final String KEY_REENCODE_AFTER_ID = "reencode_after_id";
+    private static final String KEY_REENCODE_DONE = "reencode_done";
+    /**
+     * First bytes of a PNG file, the format pictures used to be stored in
+     */
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G'};
+    /**
+     * ID of the low stock notification, every alert replaces the previous one
+     */
+    private static final int LOW_STOCK_NOTIFICATION_ID = 1;
+    /**
+     * Number of low stock products listed in the notification
+     */
+    private static final int LOW_STOCK_NOTIFICATION_LINES = 5;
+    /**
+     * Size of the buffer copying an export into its document
+     */
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
+    public InventoryMaintenanceService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Start re-encoding the stored pictures, unless it was already done
+     *
+     * @param context of the app
+     */
+    public static void startReencodePictures(Context context) {
+        if (context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(KEY_REENCODE_DONE, false))
+            return;
+        Intent intent = new Intent(context, InventoryMaintenanceService.class);
+        intent.setAction(ACTION_REENCODE_PICTURES);
+        context.startService(intent);
+    }
+
+    /**
+     * Alert about the low stock products, once some products went down to their reorder level
+     *
+     * @param context of the app
+     * @param ids     of the products that just went down to their reorder level
+     */
+    public static void startCheckLowStock(Context context, long[] ids) {
+        Intent intent = new Intent(context, InventoryMaintenanceService.class);
+        intent.setAction(ACTION_CHECK_LOW_STOCK);
+        intent.putExtra(EXTRA_LOW_STOCK_IDS, ids);
+        context.startService(intent);
+    }
+
+    /**
+     * Export the products into a document
+     *
+     * @param context  of the app
+     * @param export   URI of the export, see {@link ProductContract.ProductEntry#buildExportUri(String, boolean)}
+     * @param document URI of the document to write, writable by the caller
+     */
+    public static void startExport(Context context, Uri export, Uri document) {
+        Intent intent = new Intent(context, InventoryMaintenanceService.class);
+        intent.setAction(ACTION_EXPORT);
+        intent.setData(document);
+        intent.putExtra(EXTRA_EXPORT_URI, export.toString());
+        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        context.startService(intent);
+    }
+
+    /**
+     * Finish rewriting the rows of the pending schema migrations, if any
+     *
+     * @param context of the app
+     */
+    public static void startMigrate(Context context) {
+        Intent intent = new Intent(context, InventoryMaintenanceService.class);
+        intent.setAction(ACTION_MIGRATE);
+        context.startService(intent);
+    }
+
+    /**
+     * Take a snapshot of the db now
+     *
+     * @param context of the app
+     */
+    public static void startBackup(Context context) {
+        Intent intent = new Intent(context, InventoryMaintenanceService.class);
+        intent.setAction(ACTION_BACKUP);
+        context.startService(intent);
+    }
+
+    /**
+     * Replace the db with the one rebuilt from the snapshots
+     *
+     * @param context of the app
+     */
+    public static void startRestore(Context context) {
+        Intent intent = new Intent(context, InventoryMaintenanceService.class);
+        intent.setAction(ACTION_RESTORE);
+        context.startService(intent);
+    }
+
+    /**
+     * Schedule the compaction of the sales ledger about once a day, replacing any earlier schedule
+     *
+     * @param context of the app
+     */
+    public static void scheduleCompactSales(Context context) {
+        scheduleDaily(context, ACTION_COMPACT_SALES);
+    }
+
+    /**
+     * Schedule a snapshot of the db about once a day, replacing any earlier schedule
+     *
+     * @param context of the app
+     */
+    public static void scheduleBackup(Context context) {
+        scheduleDaily(context, ACTION_BACKUP);
+    }
+
+    /**
+     * Schedule an action about once a day
+     * The alarm is inexact and doesn't wake the device, so it runs along with other work
+     */
+    private static void scheduleDaily(Context context, String action) {
+        Intent intent = new Intent(context, InventoryMaintenanceService.class);
+        intent.setAction(action);
+        PendingIntent operation = PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR, AlarmManager.INTERVAL_DAY, operation);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null)
+            return;
+
+        if (ACTION_REENCODE_PICTURES.equals(intent.getAction()))
+            reencodePictures();
+        else if (ACTION_CHECK_LOW_STOCK.equals(intent.getAction()))
+            checkLowStock(intent.getLongArrayExtra(EXTRA_LOW_STOCK_IDS));
+        else if (ACTION_COMPACT_SALES.equals(intent.getAction()))
+            compactSales();
+        else if (ACTION_EXPORT.equals(intent.getAction()))
+            export(Uri.parse(intent.getStringExtra(EXTRA_EXPORT_URI)), intent.getData());
+        else if (ACTION_BACKUP.equals(intent.getAction()))
+            backup();
+        else if (ACTION_RESTORE.equals(intent.getAction()))
+            restore();
+        else if (ACTION_MIGRATE.equals(intent.getAction()))
+            migrate();
+        else
+            Log.w(LOG_TAG, "Unknown action " + intent.getAction());
+    }
+
+    /**
+     * Re-encode the stored pictures in chunks of products, in the order of their IDs
+     * Each chunk is written in one batch and checkpointed, so the job resumes where it stopped if the process dies
+     */
+    private void reencodePictures() {
+        SharedPreferences preferences = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        long afterId = preferences.getLong(KEY_REENCODE_AFTER_ID, 0);
+        PictureStore pictureStore = new PictureStore(this);
+        PictureEncoder encoder = PictureEncoder.fromResources(this);
+
+        Uri chunkUri = ProductContract.ProductEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT, String.valueOf(REENCODE_CHUNK_SIZE))
+                .build();
+        String[] projection = {ProductContract.ProductEntry._ID, ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE};
+
+        int reencoded = 0;
+        long savedBytes = 0;
+        long start = System.nanoTime();
+        while (true) {
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            int rows = 0;
+
+            Cursor cursor = getContentResolver().query(chunkUri, projection, ProductContract.ProductEntry._ID + ">?",
+                    new String[]{String.valueOf(afterId)}, ProductContract.ProductEntry._ID + " ASC");
+            if (cursor == null)
+                return;
+            try {
+                while (cursor.moveToNext()) {
+                    rows++;
+                    afterId = cursor.getLong(0);
+                    String reference = cursor.getString(1);
+                    if (!pictureStore.contains(reference))
+                        continue;
+
+                    File file = pictureStore.getFile(reference);
+                    if (!needsReencoding(file, encoder))
+                        continue;
+
+                    Bitmap picture = PictureDecoder.decodeSampled(file, encoder.getMaxDimension(),
+                            encoder.getMaxDimension());
+                    if (picture == null)
+                        continue;
+                    PictureEncoder.Result result = encoder.encode(picture);
+                    picture.recycle();
+
+                    /**
+                     * Keep the stored picture if re-encoding doesn't make it smaller
+                     */
+                    if (result.getSavedBytes(file.length()) <= 0)
+                        continue;
+                    savedBytes += result.getSavedBytes(file.length());
+                    reencoded++;
+
+                    /**
+                     * Only replace the picture if it wasn't changed meanwhile
+                     */
+                    operations.add(ContentProviderOperation.newUpdate(
+                            ContentUris.withAppendedId(ProductContract.ProductEntry.CONTENT_URI, afterId))
+                            .withSelection(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + "=?",
+                                    new String[]{reference})
+                            .withValue(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, result.data)
+                            .build());
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to read pictures", e);
+                return;
+            } finally {
+                cursor.close();
+            }
+
+            if (!operations.isEmpty()) {
+                try {
+                    getContentResolver().applyBatch(ProductContract.CONTENT_AUTHORITY, operations);
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(LOG_TAG, "Failed to write re-encoded pictures", e);
+                    return;
+                }
+            }
+            preferences.edit().putLong(KEY_REENCODE_AFTER_ID, afterId).apply();
+
+            if (rows < REENCODE_CHUNK_SIZE)
+                break;
+        }
+
+        preferences.edit().remove(KEY_REENCODE_AFTER_ID).putBoolean(KEY_REENCODE_DONE, true).apply();
+        Log.i(LOG_TAG, "Re-encoded " + reencoded + " pictures, saving " + savedBytes + " bytes in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Copy an export into a document as it's streamed by the provider
+     */
+    private void export(Uri export, Uri document) {
+        long start = System.nanoTime();
+        long bytes = 0;
+        try {
+            InputStream in = getContentResolver().openInputStream(export);
+            OutputStream out = getContentResolver().openOutputStream(document);
+            if (in == null || out == null)
+                throw new IOException("Cannot open " + (in == null ? export : document));
+            try {
+                byte[] buffer = new byte[EXPORT_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    bytes += read;
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        } catch (IOException | SecurityException e) {
+            Log.e(LOG_TAG, "Failed to export to " + document, e);
+            return;
+        }
+        Log.i(LOG_TAG, "Exported " + bytes + " bytes in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Drop the sales ledger entries and the hourly totals older than their retention
+     */
+    private void compactSales() {
+        long now = System.currentTimeMillis();
+        Bundle extras = new Bundle();
+        extras.putLong(ProductContract.EXTRA_LEDGER_BEFORE,
+                now - getResources().getInteger(R.integer.sales_ledger_retention_days)
+                        * ProductContract.SalesRollupEntry.DAY_MILLIS);
+        extras.putLong(ProductContract.EXTRA_HOURLY_BEFORE,
+                now - getResources().getInteger(R.integer.sales_hourly_retention_days)
+                        * ProductContract.SalesRollupEntry.DAY_MILLIS);
+
+        long start = System.nanoTime();
+        Bundle result = getContentResolver().call(ProductContract.ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_COMPACT_SALES, null, extras);
+        if (result != null)
+            Log.i(LOG_TAG, "Compacted " + result.getInt(ProductContract.EXTRA_DELETED) + " sales rows in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Rewrite the rows of the pending migrations one batch per call, each in its own transaction,
+     * so the app keeps reading and writing in between
+     * The provider saves a checkpoint with every batch, so starting this again resumes where it stopped
+     */
+    private void migrate() {
+        int batches = 0;
+        long start = System.nanoTime();
+        while (true) {
+            Bundle result = getContentResolver().call(ProductContract.ProductEntry.CONTENT_URI,
+                    ProductContract.METHOD_MIGRATE, null, null);
+            if (result == null || !result.getBoolean(ProductContract.EXTRA_MIGRATION_PENDING))
+                break;
+            batches++;
+        }
+        if (batches != 0)
+            Log.i(LOG_TAG, "Migrated " + batches + " batches in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Take a snapshot of the db and log what it cost
+     */
+    private void backup() {
+        Bundle result;
+        try {
+            result = getContentResolver().call(ProductContract.ProductEntry.CONTENT_URI,
+                    ProductContract.METHOD_BACKUP, null, null);
+        } catch (IllegalStateException e) {
+            Log.e(LOG_TAG, "Backup failed", e);
+            return;
+        }
+        if (result != null)
+            Log.i(LOG_TAG, (result.getBoolean(ProductContract.EXTRA_INCREMENTAL) ? "Incremental" : "Full")
+                    + " backup of " + result.getLong(ProductContract.EXTRA_SNAPSHOT_BYTES) + " bytes in "
+                    + result.getLong(ProductContract.EXTRA_ELAPSED_MILLIS) + " ms, writes held up "
+                    + result.getLong(ProductContract.EXTRA_WRITE_STALL_MILLIS) + " ms");
+    }
+
+    /**
+     * Replace the db with the one rebuilt from the snapshots and log what it cost
+     */
+    private void restore() {
+        Bundle result;
+        try {
+            result = getContentResolver().call(ProductContract.ProductEntry.CONTENT_URI,
+                    ProductContract.METHOD_RESTORE, null, null);
+        } catch (IllegalStateException e) {
+            Log.e(LOG_TAG, "Restore failed", e);
+            return;
+        }
+        if (result != null)
+            Log.i(LOG_TAG, "Restored " + result.getInt(ProductContract.EXTRA_SNAPSHOT_COUNT) + " snapshots in "
+                    + result.getLong(ProductContract.EXTRA_ELAPSED_MILLIS) + " ms, writes held up "
+                    + result.getLong(ProductContract.EXTRA_WRITE_STALL_MILLIS) + " ms");
+        /**
+         * A snapshot from an older version was upgraded, its rows may need rewriting
+         */
+        migrate();
+    }
+
+    /**
+     * Post one notification summarizing all the products at or below their reorder level
+     * Only the products that just went low are checked first, so restocking them meanwhile doesn't raise an alert
+     *
+     * @param ids of the products that just went down to their reorder level
+     */
+    private void checkLowStock(long[] ids) {
+        if (ids == null || ids.length == 0)
+            return;
+
+        String[] selectionArgs = new String[ids.length];
+        StringBuilder selection = new StringBuilder(ProductContract.ProductEntry._ID + " IN (");
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = String.valueOf(ids[i]);
+        }
+        selection.append(")");
+
+        Cursor stillLow = getContentResolver().query(ProductContract.ProductEntry.LOW_STOCK_URI,
+                new String[]{ProductContract.ProductEntry._ID}, selection.toString(), selectionArgs, null);
+        if (stillLow == null)
+            return;
+        try {
+            if (stillLow.getCount() == 0)
+                return;
+        } finally {
+            stillLow.close();
+        }
+
+        /**
+         * Read the whole low stock list, lowest quantity first, straight from its index
+         */
+        String[] projection = {ProductContract.ProductEntry.COLUMN_PRODUCT_NAME,
+                ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY,
+                ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL};
+        Cursor cursor = getContentResolver().query(ProductContract.ProductEntry.LOW_STOCK_URI, projection, null,
+                null, null);
+        if (cursor == null)
+            return;
+
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        int count;
+        try {
+            count = cursor.getCount();
+            for (int i = 0; i < LOW_STOCK_NOTIFICATION_LINES && cursor.moveToNext(); i++)
+                style.addLine(getString(R.string.low_stock_notification_line, cursor.getString(0),
+                        cursor.getInt(1), cursor.getInt(2)));
+        } finally {
+            cursor.close();
+        }
+        if (count == 0)
+            return;
+
+        String title = getString(R.string.low_stock_notification_title, count);
+        style.setBigContentTitle(title);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(android.R.drawable.ic_dialog_alert)
+                .setContentTitle(title)
+                .setContentText(getString(R.string.app_name))
+                .setNumber(count)
+                .setStyle(style)
+                .setContentIntent(contentIntent)
+                .setAutoCancel(true);
+        NotificationManagerCompat.from(this).notify(LOW_STOCK_NOTIFICATION_ID, builder.build());
+        Log.i(LOG_TAG, count + " products low on stock");
+    }
+
+    /**
+     * Check if a stored picture is lossless or over the byte budget
+     */
+    private static boolean needsReencoding(File file, PictureEncoder encoder) throws IOException {
+        if (file.length() > encoder.getMaxBytes())
+            return true;
+
+        byte[] header = new byte[PNG_SIGNATURE.length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < header.length) {
+                int count = in.read(header, read, header.length - read);
+                if (count == -1)
+                    return false;
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        for (int i = 0; i < header.length; i++) {
+            if (header[i] != PNG_SIGNATURE[i])
+                return false;
+        }
+        return true;
+    }
+}
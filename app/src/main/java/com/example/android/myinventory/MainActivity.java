@@ -4,50 +4,217 @@ import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.LoaderManager;
 import android.content.ContentUris;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.AsyncQueryHandler;
+import android.content.ComponentCallbacks2;
+import android.content.CursorLoader;
 import android.content.Loader;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import com.example.android.myinventory.data.ProductContract;
+import com.example.android.myinventory.data.ProductWriter;
+import com.example.android.myinventory.data.SaleRecorder;
+
+import java.util.concurrent.Future;
 
 /**
  * Displays list of products that were entered and stored in the app
  */
-public class MainActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class MainActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor>,
+        ProductAdapter.OnProductClickListener {
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = MainActivity.class.getSimpleName();
     /**
      * Identifier for the product data loader
      */
     private static final int PRODUCT_LOADER = 0;
     /**
-     * Adapter for the ListView
+     * Identifier for the inventory totals loader
+     */
+    private static final int STATS_LOADER = 1;
+    /**
+     * Columns of the inventory totals shown in the header
+     */
+    private static final String[] STATS_PROJECTION = {ProductContract.ProductStatsEntry.COLUMN_PRODUCT_COUNT,
+            ProductContract.ProductStatsEntry.COLUMN_TOTAL_QUANTITY, ProductContract.ProductStatsEntry.COLUMN_STOCK_VALUE,
+            ProductContract.ProductStatsEntry.COLUMN_OUT_OF_STOCK_COUNT};
+    /**
+     * Columns of the products shown by the list
+     */
+    private static final String[] LIST_PROJECTION = {ProductContract.ProductEntry._ID,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE};
+    /**
+     * Token of the queries reading a single changed product again
+     */
+    private static final int ROW_QUERY_TOKEN = 1;
+    /**
+     * Request code of picking the catalog to import
+     */
+    private static final int REQUEST_PICK_CATALOG = 1;
+    /**
+     * Request code of creating the document to export the inventory into
+     */
+    private static final int REQUEST_CREATE_EXPORT = 2;
+    /**
+     * Name suggested for the inventory export
+     */
+    private static final String EXPORT_FILE_NAME = "inventory.zip";
+    /**
+     * Adapter for the RecyclerView
+     */
+    private ProductAdapter mAdapter;
+    /**
+     * RecyclerView showing the window of products
+     */
+    private RecyclerView mProductList;
+    private LinearLayoutManager mLayoutManager;
+    /**
+     * View shown when the list has 0 items
+     */
+    private View mEmptyView;
+    /**
+     * Header showing the inventory totals
      */
-    ProductCursorAdapter mCursorAdapter;
+    private TextView mStatsHeader;
+    /**
+     * Time the activity was created, to measure how long the first rows take to show
+     * Set to 0 once the first live window is shown
+     */
+    private long mCreateTime;
+    /**
+     * Whether the rows shown are the ones saved by the last run, until the first live window replaces them
+     */
+    private boolean mShowingFirstScreenSnapshot;
+    /**
+     * Whether the loader is moving the window, so scrolling doesn't request another move meanwhile
+     */
+    private boolean mMovingWindow;
+    /**
+     * Where the window shown stands, as delivered with its rows: at the start of the list, or holding search results
+     */
+    private boolean mWindowAtStart = true;
+    private boolean mWindowIsSearch;
+    /**
+     * Lets the window move again once the rows of the new window are shown
+     */
+    private final Runnable mWindowApplied = new Runnable() {
+        @Override
+        public void run() {
+            mMovingWindow = false;
+        }
+    };
+    /**
+     * Time to wait after the last keystroke before searching
+     */
+    private static final long SEARCH_DELAY_MS = 200;
+    /**
+     * Handler delaying the searches while the user types
+     */
+    private final Handler mSearchHandler = new Handler();
+    /**
+     * Field holding the text searched
+     */
+    private EditText mSearchField;
+    /**
+     * Restarts the loader with the current search text
+     */
+    private final Runnable mSearchTask = new Runnable() {
+        @Override
+        public void run() {
+            String query = mSearchField.getText().toString().trim();
+            getLoaderManager().restartLoader(PRODUCT_LOADER, query.isEmpty() ? ProductWindowLoader.startArgs()
+                    : ProductWindowLoader.searchArgs(query), MainActivity.this);
+            mLayoutManager.scrollToPositionWithOffset(0, 0);
+        }
+    };
+
+    /**
+     * Reads a single changed product again in the background, and patches its row in the window
+     */
+    private AsyncQueryHandler mRowQueryHandler;
+    /**
+     * Watches the changes of single products, which don't reload the window
+     */
+    private final ContentObserver mRowObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            /**
+             * Before Jelly Bean the changed URI isn't known, so reload the window
+             */
+            if (uri == null) {
+                Loader<Cursor> loader = getLoaderManager().getLoader(PRODUCT_LOADER);
+                if (loader != null)
+                    loader.onContentChanged();
+                return;
+            }
+
+            /**
+             * Inserts, deletes and name changes also notify the list, which reloads the window
+             */
+            if (!ProductContract.OP_UPDATE.equals(uri.getQueryParameter(ProductContract.QUERY_PARAMETER_OP)))
+                return;
+
+            long id = ContentUris.parseId(uri);
+            if (mAdapter.getSnapshot().getPositionOf(id) != -1)
+                mRowQueryHandler.startQuery(ROW_QUERY_TOKEN, id,
+                        ContentUris.withAppendedId(ProductContract.ProductEntry.CONTENT_URI, id), LIST_PROJECTION,
+                        null, null, null);
+        }
+    };
 
     private final int MY_PERMISSION_REQUEST = 100;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mCreateTime = SystemClock.elapsedRealtime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
         checkPermission();
 
+        /**
+         * Finish the schema migrations, shrink the pictures stored before they were encoded compactly,
+         * keep the sales ledger compacted, and back the db up daily, in the background
+         */
+        if (savedInstanceState == null) {
+            InventoryMaintenanceService.startMigrate(this);
+            InventoryMaintenanceService.startReencodePictures(this);
+            InventoryMaintenanceService.scheduleCompactSales(this);
+            InventoryMaintenanceService.scheduleBackup(this);
+        }
+
         /**
          * Setup FAB to open {@link EditorActivity}
          */
@@ -61,55 +228,236 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
         });
 
         /**
-         * Find the ListView which will be populated with the product data
+         * Find the RecyclerView which will be populated with the product data
          */
-        ListView productListView = (ListView) findViewById(R.id.list);
+        mProductList = (RecyclerView) findViewById(R.id.list);
+        mLayoutManager = new LinearLayoutManager(this);
+        mProductList.setLayoutManager(mLayoutManager);
+        mProductList.setHasFixedSize(true);
 
         /**
-         * Find and set empty view on the ListView so that it only shows when the list has 0 items
+         * Find the empty view, shown only when the list has 0 items
          */
-        View emptyView = findViewById(R.id.empty_view);
-        productListView.setEmptyView(emptyView);
+        mEmptyView = findViewById(R.id.empty_view);
 
         /**
-         * Setup an adapter to create a list item for each row of product data in the Cursor
-         * There is no product data yet so pass in null for the Cursor
+         * Setup an adapter to create a list item for each product
+         * There is no product data yet, so the list starts empty
          */
-        mCursorAdapter = new ProductCursorAdapter(this, null);
-        productListView.setAdapter(mCursorAdapter);
+        mAdapter = new ProductAdapter(this, this);
+        mAdapter.setOnEmptyChanged(new Runnable() {
+            @Override
+            public void run() {
+                updateEmptyView();
+            }
+        });
+        mProductList.setAdapter(mAdapter);
 
         /**
-         * Setup the item click listener
+         * Show the first screen of the last run right away, while the provider opens the db and the loader
+         * reads the first window
+         * The live window is diffed against these rows by their IDs, so only the rows that changed since are bound again
          */
-        productListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        if (savedInstanceState == null) {
+            ProductSnapshot firstScreen = FirstScreenSnapshot.read(this);
+            if (firstScreen != null && firstScreen.size() > 0) {
+                mAdapter.submit(firstScreen, null);
+                mShowingFirstScreenSnapshot = true;
+            }
+        }
+        updateEmptyView();
+
+        /**
+         * Log the time to the first rendered row, and where the row came from
+         */
+        final long createTime = mCreateTime;
+        mProductList.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                /**
-                 * Create new intent to go to {@link EditorActivity}
-                 */
-                Intent intent = new Intent(MainActivity.this, EditorActivity.class);
+            public boolean onPreDraw() {
+                if (mProductList.getChildCount() == 0)
+                    return true;
+                mProductList.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i(LOG_TAG, "First row rendered " + (SystemClock.elapsedRealtime() - createTime) + " ms after "
+                        + "create, from the " + (mShowingFirstScreenSnapshot ? "saved first screen" : "db"));
+                return true;
+            }
+        });
 
-                /**
-                 * Form the content URI that represents the specific product that was clicked on by appending the id
-                 */
-                Uri currentProductUri = ContentUris.withAppendedId(ProductContract.ProductEntry.CONTENT_URI, id);
+        /**
+         * Load the next or previous page as the user scrolls close to the edges of the window
+         */
+        mProductList.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int firstVisibleItem = mLayoutManager.findFirstVisibleItemPosition();
+                int visibleItemCount = mLayoutManager.findLastVisibleItemPosition() - firstVisibleItem + 1;
+                moveWindowIfNeeded(firstVisibleItem, visibleItemCount, mAdapter.getItemCount());
+            }
+        });
 
-                /**
-                 * Set the URI on the data field of the intent
-                 */
-                intent.setData(currentProductUri);
+        /**
+         * Search as the user types, once the typing pauses
+         */
+        mSearchField = (EditText) findViewById(R.id.search_field);
+        mSearchField.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
 
-                /**
-                 * Launch the {@link EditorActivity} to display the data for the current product
-                 */
-                startActivity(intent);
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mSearchHandler.removeCallbacks(mSearchTask);
+                mSearchHandler.postDelayed(mSearchTask, SEARCH_DELAY_MS);
             }
         });
 
         /**
-         * Kick off the loader
+         * Kick off the loaders
+         * The totals are a single row the db keeps up to date, so reloading them never scans the products
+         */
+        mStatsHeader = (TextView) findViewById(R.id.stats_header);
+        getLoaderManager().initLoader(PRODUCT_LOADER, ProductWindowLoader.startArgs(), this);
+        getLoaderManager().initLoader(STATS_LOADER, null, this);
+
+        /**
+         * Patch the rows of the single products that change
+         */
+        mRowQueryHandler = new AsyncQueryHandler(getContentResolver()) {
+            @Override
+            protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+                if (cursor == null)
+                    return;
+                try {
+                    if (cursor.moveToFirst())
+                        patchRow(cursor);
+                } finally {
+                    cursor.close();
+                }
+            }
+        };
+        getContentResolver().registerContentObserver(ProductContract.ProductEntry.CONTENT_URI, true, mRowObserver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSearchHandler.removeCallbacks(mSearchTask);
+        getContentResolver().unregisterContentObserver(mRowObserver);
+        mRowQueryHandler.cancelOperation(ROW_QUERY_TOKEN);
+    }
+
+    /**
+     * Open the editor of a product when its row is clicked
+     */
+    @Override
+    public void onProductClick(long id) {
+        /**
+         * Create new intent to go to {@link EditorActivity}
+         */
+        Intent intent = new Intent(MainActivity.this, EditorActivity.class);
+
+        /**
+         * Form the content URI that represents the specific product that was clicked on by appending the id
+         */
+        Uri currentProductUri = ContentUris.withAppendedId(ProductContract.ProductEntry.CONTENT_URI, id);
+
+        /**
+         * Set the URI on the data field of the intent
+         */
+        intent.setData(currentProductUri);
+
+        /**
+         * Launch the {@link EditorActivity} to display the data for the current product
+         */
+        startActivity(intent);
+    }
+
+    /**
+     * Lay a product read again over its row in the window, and bind the row again if it's visible
+     * No other row is read or bound again
+     *
+     * @param row read again, moved to the product
+     */
+    private void patchRow(Cursor row) {
+        mAdapter.patch(ProductSnapshot.fromCursor(row));
+    }
+
+    /**
+     * Show the empty view only when the list has 0 items
+     */
+    private void updateEmptyView() {
+        boolean empty = mAdapter.getItemCount() == 0;
+        mEmptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+        mProductList.setVisibility(empty ? View.GONE : View.VISIBLE);
+    }
+
+    /**
+     * Slide the window of products by a page when the visible rows get close to one of its edges
+     */
+    private void moveWindowIfNeeded(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        ProductSnapshot window = mAdapter.getSnapshot();
+        if (mMovingWindow || totalItemCount == 0 || firstVisibleItem == RecyclerView.NO_POSITION)
+            return;
+
+        if (mWindowIsSearch)
+            return;
+
+        Bundle args = null;
+        /**
+         * A full window may have more products after it
+         */
+        if (totalItemCount >= ProductWindowLoader.WINDOW_SIZE
+                && firstVisibleItem + visibleItemCount >= totalItemCount - ProductWindowLoader.PAGE_SIZE / 2)
+            args = ProductWindowLoader.forwardArgs(window);
+        else if (firstVisibleItem < ProductWindowLoader.PAGE_SIZE / 2 && !mWindowAtStart)
+            args = ProductWindowLoader.backArgs(window);
+
+        if (args != null) {
+            mMovingWindow = true;
+            getLoaderManager().restartLoader(PRODUCT_LOADER, args, this);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        /**
+         * The thumbnails are cheap to decode again from their files, so give their memory back first
+         */
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            ThumbnailCache.getInstance(this).clear();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        /**
+         * Write the buffered sales as soon as the list isn't visible anymore
          */
-        getLoaderManager().initLoader(PRODUCT_LOADER, null, this);
+        SaleRecorder.getInstance(this).flush();
+        saveFirstScreen();
+    }
+
+    /**
+     * Save the rows filling the screen, to show them at the next cold start
+     * Only the window at the start of the whole list holds them, a search or a window further down keeps the last ones
+     */
+    private void saveFirstScreen() {
+        if (mShowingFirstScreenSnapshot || mWindowIsSearch || !mWindowAtStart)
+            return;
+
+        /**
+         * One more row than the visible ones covers a row partly scrolled in
+         */
+        int rows = 0;
+        int firstVisibleItem = mLayoutManager.findFirstVisibleItemPosition();
+        if (firstVisibleItem != RecyclerView.NO_POSITION)
+            rows = mLayoutManager.findLastVisibleItemPosition() - firstVisibleItem + 2;
+        FirstScreenSnapshot.save(this, mAdapter.getSnapshot(), rows);
     }
 
     /**
@@ -125,18 +473,90 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
                 }).setPositiveButton(getString(R.string.delete), new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        int rowsDeleted = getContentResolver().delete(ProductContract.ProductEntry.CONTENT_URI, null, null);
-                        Log.v("MainActivity", rowsDeleted + " rows deleted from product db");
+                        Future<Integer> delete = ProductWriter.getInstance(MainActivity.this).delete(
+                                ProductContract.ProductEntry.CONTENT_URI, null, null,
+                                new ProductWriter.Callback<Integer>() {
+                                    @Override
+                                    public void onWriteFinished(Integer rowsDeleted) {
+                                        Log.v("MainActivity", rowsDeleted + " rows deleted from product db");
+                                    }
+                                });
+                        if (delete == null)
+                            Toast.makeText(MainActivity.this, getString(R.string.toast_writer_busy),
+                                    Toast.LENGTH_SHORT).show();
                     }
                 });
 
         builder.create().show();
     }
 
+    /**
+     * Replace the products with the last backup, once the user confirms
+     */
+    private void restoreBackup() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this).setMessage(getString(R.string.restore_dialog_message))
+                .setNegativeButton(getString(R.string.cancel), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                    }
+                }).setPositiveButton(getString(R.string.restore), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        InventoryMaintenanceService.startRestore(MainActivity.this);
+                    }
+                });
+
+        builder.create().show();
+    }
+
+    /**
+     * Let the user pick a CSV or JSON catalog to import
+     */
+    private void pickCatalog() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        if (intent.resolveActivity(getPackageManager()) != null)
+            startActivityForResult(intent, REQUEST_PICK_CATALOG);
+    }
+
+    /**
+     * Let the user pick where to save the export of the products and their pictures
+     * Creating a document needs KitKat, the action is hidden before
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void createExport() {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.setType("application/zip");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_TITLE, EXPORT_FILE_NAME);
+        if (intent.resolveActivity(getPackageManager()) != null)
+            startActivityForResult(intent, REQUEST_CREATE_EXPORT);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        /**
+         * Import the picked catalog in the background, its progress is shown in a notification
+         */
+        if (requestCode == REQUEST_PICK_CATALOG && resultCode == RESULT_OK && data != null && data.getData() != null)
+            CatalogImportService.startImport(this, data.getData());
+        /**
+         * Stream the export into the created document in the background
+         */
+        if (requestCode == REQUEST_CREATE_EXPORT && resultCode == RESULT_OK && data != null && data.getData() != null)
+            InventoryMaintenanceService.startExport(this, ProductContract.ProductEntry.buildExportUri(
+                    ProductContract.EXPORT_FORMAT_ZIP, true), data.getData());
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_export_inventory).setVisible(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
         return true;
     }
 
@@ -152,38 +572,93 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
             deleteAllProducts();
             return true;
         }
+        if (id == R.id.action_import_catalog) {
+            pickCatalog();
+            return true;
+        }
+        if (id == R.id.action_export_inventory) {
+            createExport();
+            return true;
+        }
+        if (id == R.id.action_backup) {
+            InventoryMaintenanceService.startBackup(this);
+            return true;
+        }
+        if (id == R.id.action_restore) {
+            restoreBackup();
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        /**
-         * Define a projection that specifies the columns from the table we care about
-         */
-        String[] projection = {ProductContract.ProductEntry._ID, ProductContract.ProductEntry.COLUMN_PRODUCT_NAME,
-                ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY};
+        if (id == STATS_LOADER)
+            return new CursorLoader(this, ProductContract.ProductStatsEntry.CONTENT_URI, STATS_PROJECTION, null,
+                    null, null);
 
         /**
          * This loader will execute the ContentProvider's query method on a background thread
+         * It only loads a window of the products, which slides as the user scrolls
          */
-        return new CursorLoader(this, ProductContract.ProductEntry.CONTENT_URI, projection, null, null, null);
+        return new ProductWindowLoader(this, LIST_PROJECTION, args);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        if (loader.getId() == STATS_LOADER) {
+            showStats(data);
+            return;
+        }
+
         /**
-         * Update {@link ProductCursorAdapter} with this new cursor containing updated pet data
+         * Show the rows of the new window, which the loader already copied out of the cursor
+         * The rows kept when the window moves are matched by their stable IDs, so they stay on screen
          */
-        mCursorAdapter.swapCursor(data);
+        ProductSnapshot snapshot = ProductSnapshot.EMPTY;
+        if (data instanceof ProductWindowCursor) {
+            ProductWindowCursor window = (ProductWindowCursor) data;
+            snapshot = window.getSnapshot();
+            mWindowAtStart = window.isAtStart();
+            mWindowIsSearch = window.isSearch();
+        }
+        mAdapter.submit(snapshot, mWindowApplied);
+
+        if (mCreateTime != 0) {
+            Log.i(LOG_TAG, "First window loaded " + (SystemClock.elapsedRealtime() - mCreateTime) + " ms after create");
+            mCreateTime = 0;
+        }
+        mShowingFirstScreenSnapshot = false;
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        if (loader.getId() == STATS_LOADER) {
+            showStats(null);
+            return;
+        }
+
         /**
          * Callback called when the data needs to be deleted
          */
-        mCursorAdapter.swapCursor(null);
+        mAdapter.submit(ProductSnapshot.EMPTY, mWindowApplied);
+    }
+
+    /**
+     * Show the inventory totals in the header, which is hidden while there is no product
+     *
+     * @param stats cursor of the totals row, or null
+     */
+    private void showStats(Cursor stats) {
+        if (stats == null || !stats.moveToFirst() || stats.getInt(0) == 0) {
+            mStatsHeader.setVisibility(View.GONE);
+            return;
+        }
+
+        mStatsHeader.setText(getString(R.string.stats_header, stats.getInt(0), stats.getLong(1), stats.getLong(2),
+                stats.getInt(3)));
+        mStatsHeader.setVisibility(View.VISIBLE);
     }
 
     /**
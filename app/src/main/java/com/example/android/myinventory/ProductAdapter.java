@@ -0,0 +1,393 @@
+package com.example.android.myinventory;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.myinventory.data.SaleRecorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link RecyclerView.Adapter} showing a {@link ProductSnapshot} of the product list
+ * A new snapshot is diffed against the shown one in the background, so only the rows that changed are bound again
+ */
+public class ProductAdapter extends RecyclerView.Adapter<ProductAdapter.ViewHolder> {
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ProductAdapter.class.getSimpleName();
+    /**
+     * Text shown before the price
+     */
+    private static final char[] PRICE_PREFIX = {'$', ' '};
+    /**
+     * Diffs the snapshots off the UI thread, one at a time
+     */
+    private static final ExecutorService DIFF_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, LOG_TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Callback of the clicks on a product row
+     */
+    public interface OnProductClickListener {
+        void onProductClick(long id);
+    }
+
+    private final Context mContext;
+    private final LayoutInflater mInflater;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Buffers the sales and writes them to the provider in groups
+     */
+    private final SaleRecorder mSaleRecorder;
+    /**
+     * Loads the thumbnails of the products off the UI thread
+     */
+    private final ThumbnailCache mThumbnailCache;
+    private final OnProductClickListener mProductClickListener;
+    /**
+     * Called when the list becomes empty or stops being empty
+     */
+    private Runnable mOnEmptyChanged;
+
+    /**
+     * Rows shown by the list
+     */
+    private ProductSnapshot mSnapshot = ProductSnapshot.EMPTY;
+    /**
+     * Generation of the latest snapshot submitted, a diff of an older one is dropped
+     */
+    private int mGeneration;
+    /**
+     * Rows patched while a diff is running, laid over the new snapshot once the diff is done
+     * Null while no diff is running
+     */
+    private List<ProductSnapshot> mPatchesWhileDiffing;
+
+    /**
+     * One listener for the clicks on all the rows and sale buttons
+     */
+    private final View.OnClickListener mClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            ViewHolder holder = (ViewHolder) v.getTag(R.id.view_holder);
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION)
+                return;
+
+            if (v.getId() == R.id.sale_button)
+                sell(position);
+            else
+                mProductClickListener.onProductClick(mSnapshot.getId(position));
+        }
+    };
+
+    /**
+     * Constructs a new {@link ProductAdapter}
+     *
+     * @param context              of the list
+     * @param productClickListener called when a product row is clicked
+     */
+    public ProductAdapter(Context context, OnProductClickListener productClickListener) {
+        mContext = context;
+        mInflater = LayoutInflater.from(context);
+        mSaleRecorder = SaleRecorder.getInstance(context);
+        mThumbnailCache = ThumbnailCache.getInstance(context);
+        mProductClickListener = productClickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Set the callback run when the list becomes empty or stops being empty
+     */
+    public void setOnEmptyChanged(Runnable onEmptyChanged) {
+        mOnEmptyChanged = onEmptyChanged;
+    }
+
+    /**
+     * Get the rows shown by the list
+     */
+    public ProductSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Show new rows
+     * The rows are diffed with the shown ones in the background, then only the changed rows are updated
+     *
+     * @param snapshot  of the rows
+     * @param onApplied run once the rows are shown, or null
+     */
+    public void submit(final ProductSnapshot snapshot, final Runnable onApplied) {
+        final ProductSnapshot old = mSnapshot;
+        final int generation = ++mGeneration;
+
+        /**
+         * Nothing to diff against
+         */
+        if (old.size() == 0 || snapshot.size() == 0) {
+            mPatchesWhileDiffing = null;
+            mSnapshot = snapshot;
+            notifyDataSetChanged();
+            dispatchEmptyChanged(old);
+            if (onApplied != null)
+                onApplied.run();
+            return;
+        }
+
+        mPatchesWhileDiffing = new ArrayList<>();
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                TraceCompat.beginSection("ProductAdapter.diff");
+                final DiffUtil.DiffResult result;
+                try {
+                    result = DiffUtil.calculateDiff(new SnapshotDiff(old, snapshot), false);
+                } finally {
+                    TraceCompat.endSection();
+                }
+                Log.d(LOG_TAG, "Diffed " + old.size() + " to " + snapshot.size() + " rows in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration)
+                            return;
+                        ProductSnapshot shown = mSnapshot;
+                        ProductSnapshot patched = snapshot;
+                        for (ProductSnapshot rows : mPatchesWhileDiffing)
+                            patched = patched.patch(rows);
+                        mSnapshot = patched;
+                        mPatchesWhileDiffing = null;
+                        result.dispatchUpdatesTo(ProductAdapter.this);
+                        dispatchEmptyChanged(shown);
+                        if (onApplied != null)
+                            onApplied.run();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Lay rows read again over the rows of the same products, and bind only those rows again
+     *
+     * @param rows read again
+     */
+    public void patch(ProductSnapshot rows) {
+        ProductSnapshot patched = mSnapshot.patch(rows);
+        if (patched != mSnapshot) {
+            mSnapshot = patched;
+            for (int i = 0; i < rows.size(); i++) {
+                int position = mSnapshot.getPositionOf(rows.getId(i));
+                if (position != -1)
+                    notifyItemChanged(position);
+            }
+        }
+
+        /**
+         * Keep the rows for the snapshot being diffed, which may have been loaded before they changed
+         */
+        if (mPatchesWhileDiffing != null)
+            mPatchesWhileDiffing.add(rows);
+    }
+
+    private void dispatchEmptyChanged(ProductSnapshot old) {
+        if (mOnEmptyChanged != null && (old.size() == 0) != (mSnapshot.size() == 0))
+            mOnEmptyChanged.run();
+    }
+
+    /**
+     * Record the sale of one unit of a product
+     * Quantity value can't be negative
+     */
+    private void sell(int position) {
+        long id = mSnapshot.getId(position);
+        if (mSnapshot.getQuantity(position) + mSaleRecorder.getPendingDelta(id) > 0) {
+            mSaleRecorder.recordSale(id);
+            /**
+             * Show the new quantity right away, the row is patched again once the sale is written
+             */
+            notifyItemChanged(position);
+        } else {
+            Toast.makeText(mContext, mContext.getString(R.string.toast_no_more_product), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return mSnapshot.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mSnapshot.getId(position);
+    }
+
+    /**
+     * Makes a new list item view and caches its child views in a {@link ViewHolder}
+     */
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        /**
+         * Inflate a list item view using the layout specified in list_item.xml
+         */
+        View view = mInflater.inflate(R.layout.list_item, parent, false);
+        ViewHolder holder = new ViewHolder(view);
+
+        view.setTag(R.id.view_holder, holder);
+        view.setOnClickListener(mClickListener);
+        holder.saleButton.setTag(R.id.view_holder, holder);
+        holder.saleButton.setOnClickListener(mClickListener);
+        return holder;
+    }
+
+    /**
+     * Binds the product at the given position to the cached views
+     * A text is only set again when its value changed since the view was last bound
+     * The name is the string already held by the snapshot, and the numbers are formatted into the buffers of the row,
+     * so binding a row allocates nothing while the list scrolls
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        TraceCompat.beginSection("ProductAdapter.bind");
+        try {
+            long id = mSnapshot.getId(position);
+            String name = mSnapshot.getName(position);
+            int price = mSnapshot.getPrice(position);
+            /**
+             * The quantity includes the sales that are not written to the provider yet
+             */
+            int quantity = mSnapshot.getQuantity(position) + mSaleRecorder.getPendingDelta(id);
+
+            if (!name.equals(holder.boundName)) {
+                holder.nameTextView.setText(name);
+                holder.boundName = name;
+            }
+            if (!holder.bound || price != holder.boundPrice) {
+                setDigits(holder.priceTextView, holder.priceText, PRICE_PREFIX.length, price);
+                holder.boundPrice = price;
+            }
+            if (!holder.bound || quantity != holder.boundQuantity) {
+                setDigits(holder.quantityTextView, holder.quantityText, 0, quantity);
+                holder.boundQuantity = quantity;
+            }
+            holder.bound = true;
+
+            /**
+             * The picture column holds the reference of the picture, which keys the thumbnail in the cache
+             */
+            mThumbnailCache.load(id, mSnapshot.getPicture(position), holder.thumbnailView);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * Show a number in a text view, written into the buffer of the row after the text the buffer starts with
+     * The view keeps showing the buffer, which is only written again right before it's set again
+     */
+    private static void setDigits(TextView view, CharArrayBuffer text, int offset, int value) {
+        text.sizeCopied = DigitFormatter.format(value, text.data, offset);
+        view.setText(text.data, 0, text.sizeCopied);
+    }
+
+    /**
+     * Cancel the thumbnail load of a row that scrolled off screen
+     */
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        mThumbnailCache.cancel(holder.thumbnailView);
+    }
+
+    /**
+     * Caches the views of a list item, and the values they show
+     */
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView nameTextView;
+        final TextView priceTextView;
+        final TextView quantityTextView;
+        final ImageView thumbnailView;
+        final Button saleButton;
+
+        /**
+         * Text of the price and of the quantity, written again in place when their value changes
+         */
+        final CharArrayBuffer priceText = new CharArrayBuffer(PRICE_PREFIX.length + DigitFormatter.MAX_INT_CHARS);
+        final CharArrayBuffer quantityText = new CharArrayBuffer(DigitFormatter.MAX_INT_CHARS);
+
+        boolean bound;
+        String boundName;
+        int boundPrice;
+        int boundQuantity;
+
+        ViewHolder(View view) {
+            super(view);
+            System.arraycopy(PRICE_PREFIX, 0, priceText.data, 0, PRICE_PREFIX.length);
+            nameTextView = (TextView) view.findViewById(R.id.name);
+            priceTextView = (TextView) view.findViewById(R.id.price);
+            quantityTextView = (TextView) view.findViewById(R.id.quantity);
+            thumbnailView = (ImageView) view.findViewById(R.id.thumbnail);
+            saleButton = (Button) view.findViewById(R.id.sale_button);
+        }
+    }
+
+    /**
+     * Compares two snapshots of the list, products being the same if they have the same ID
+     */
+    private static class SnapshotDiff extends DiffUtil.Callback {
+        private final ProductSnapshot mOld;
+        private final ProductSnapshot mNew;
+
+        SnapshotDiff(ProductSnapshot oldSnapshot, ProductSnapshot newSnapshot) {
+            mOld = oldSnapshot;
+            mNew = newSnapshot;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.getId(oldItemPosition) == mNew.getId(newItemPosition);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.sameContents(oldItemPosition, mNew, newItemPosition);
+        }
+    }
+}
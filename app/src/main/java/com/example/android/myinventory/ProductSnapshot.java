@@ -0,0 +1,255 @@
+package com.example.android.myinventory;
+
+import android.database.Cursor;
+
+import com.example.android.myinventory.data.ProductContract;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable copy of the rows of the product list, in the order they're shown
+ * It's read out of the cursor once, off the UI thread, so binding a row is an array lookup and the old and new
+ * rows can be diffed in the background
+ */
+public final class ProductSnapshot {
+    /**
+     * Snapshot without any product
+     */
+    public static final ProductSnapshot EMPTY = new ProductSnapshot(new long[0], new String[0], new int[0],
+            new int[0], new String[0]);
+    /**
+     * Version of the binary form written by {@link #writeTo(DataOutputStream, int)}
+     * Version 2 writes the strings as length-prefixed UTF-8 bytes, with no limit on their length
+     */
+    private static final int FORMAT_VERSION = 2;
+    /**
+     * Most rows accepted when reading the binary form, so a corrupt count can't allocate huge arrays
+     */
+    private static final int MAX_READ_ROWS = ProductWindowLoader.WINDOW_SIZE;
+    /**
+     * Most bytes of a string accepted when reading the binary form, so a corrupt length can't allocate a huge array
+     */
+    private static final int MAX_READ_STRING_BYTES = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long[] mIds;
+    private final String[] mNames;
+    private final int[] mPrices;
+    private final int[] mQuantities;
+    private final String[] mPictures;
+    /**
+     * Position of every product by ID, built the first time it's needed
+     */
+    private Map<Long, Integer> mPositions;
+
+    private ProductSnapshot(long[] ids, String[] names, int[] prices, int[] quantities, String[] pictures) {
+        mIds = ids;
+        mNames = names;
+        mPrices = prices;
+        mQuantities = quantities;
+        mPictures = pictures;
+    }
+
+    /**
+     * Copy all the rows of a cursor
+     * The column indices are looked up once for the whole cursor
+     *
+     * @param cursor holding the _id, name, price, quantity and picture columns
+     */
+    public static ProductSnapshot fromCursor(Cursor cursor) {
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        String[] names = new String[count];
+        int[] prices = new int[count];
+        int[] quantities = new int[count];
+        String[] pictures = new String[count];
+
+        int idColumnIndex = cursor.getColumnIndexOrThrow(ProductContract.ProductEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndexOrThrow(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME);
+        int priceColumnIndex = cursor.getColumnIndexOrThrow(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE);
+        int quantityColumnIndex = cursor.getColumnIndexOrThrow(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY);
+        int pictureColumnIndex = cursor.getColumnIndexOrThrow(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE);
+
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < count && cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(idColumnIndex);
+            names[i] = cursor.getString(nameColumnIndex);
+            prices[i] = cursor.getInt(priceColumnIndex);
+            quantities[i] = cursor.getInt(quantityColumnIndex);
+            pictures[i] = cursor.getString(pictureColumnIndex);
+        }
+        cursor.moveToPosition(-1);
+
+        return new ProductSnapshot(ids, names, prices, quantities, pictures);
+    }
+
+    /**
+     * Write the first rows in a compact binary form, read back by {@link #readFrom(DataInputStream)}
+     *
+     * @param rows most rows written
+     */
+    public void writeTo(DataOutputStream out, int rows) throws IOException {
+        int count = Math.min(rows, mIds.length);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(mIds[i]);
+            writeString(out, mNames[i]);
+            out.writeInt(mPrices[i]);
+            out.writeInt(mQuantities[i]);
+            writeString(out, mPictures[i]);
+        }
+    }
+
+    /**
+     * Read rows written by {@link #writeTo(DataOutputStream, int)}
+     *
+     * @throws IOException if the rows can't be read, or were written in another version
+     */
+    public static ProductSnapshot readFrom(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unknown snapshot version " + version);
+        int count = in.readInt();
+        if (count < 0 || count > MAX_READ_ROWS)
+            throw new IOException("Invalid snapshot size " + count);
+
+        long[] ids = new long[count];
+        String[] names = new String[count];
+        int[] prices = new int[count];
+        int[] quantities = new int[count];
+        String[] pictures = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = in.readLong();
+            names[i] = readString(in);
+            prices[i] = in.readInt();
+            quantities[i] = in.readInt();
+            pictures[i] = readString(in);
+        }
+        return count == 0 ? EMPTY : new ProductSnapshot(ids, names, prices, quantities, pictures);
+    }
+
+    /**
+     * Write a string as its number of UTF-8 bytes, -1 for null, then the bytes
+     * Unlike {@link DataOutputStream#writeUTF(String)} there's no 64 KB limit, so a long name can't fail the snapshot
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > MAX_READ_STRING_BYTES)
+            throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Copy this snapshot with the rows of the given snapshot laid over the rows of the same products
+     * Products of the given snapshot that aren't in this one are ignored
+     *
+     * @return the patched snapshot, or this snapshot if none of the products are in it
+     */
+    public ProductSnapshot patch(ProductSnapshot rows) {
+        long[] ids = null;
+        String[] names = null;
+        int[] prices = null;
+        int[] quantities = null;
+        String[] pictures = null;
+
+        for (int i = 0; i < rows.size(); i++) {
+            int position = getPositionOf(rows.mIds[i]);
+            if (position == -1)
+                continue;
+            if (ids == null) {
+                ids = mIds;
+                names = mNames.clone();
+                prices = mPrices.clone();
+                quantities = mQuantities.clone();
+                pictures = mPictures.clone();
+            }
+            names[position] = rows.mNames[i];
+            prices[position] = rows.mPrices[i];
+            quantities[position] = rows.mQuantities[i];
+            pictures[position] = rows.mPictures[i];
+        }
+
+        if (ids == null)
+            return this;
+        ProductSnapshot patched = new ProductSnapshot(ids, names, prices, quantities, pictures);
+        patched.mPositions = mPositions;
+        return patched;
+    }
+
+    /**
+     * Get the number of products
+     */
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * Get the position of a product
+     *
+     * @return the position, or -1 if the product isn't in the snapshot
+     */
+    public int getPositionOf(long id) {
+        if (mPositions == null) {
+            Map<Long, Integer> positions = new HashMap<>(mIds.length * 2);
+            for (int i = 0; i < mIds.length; i++)
+                positions.put(mIds[i], i);
+            mPositions = positions;
+        }
+        Integer position = mPositions.get(id);
+        return position == null ? -1 : position;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    public int getPrice(int position) {
+        return mPrices[position];
+    }
+
+    public int getQuantity(int position) {
+        return mQuantities[position];
+    }
+
+    public String getPicture(int position) {
+        return mPictures[position];
+    }
+
+    /**
+     * Check if a product shows the same in both snapshots
+     */
+    public boolean sameContents(int position, ProductSnapshot other, int otherPosition) {
+        return mPrices[position] == other.mPrices[otherPosition]
+                && mQuantities[position] == other.mQuantities[otherPosition]
+                && equals(mNames[position], other.mNames[otherPosition])
+                && equals(mPictures[position], other.mPictures[otherPosition]);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.myinventory;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Window of the product list, along with the {@link ProductSnapshot} of its rows and where the window stands
+ * The snapshot is made when the window is loaded, on the loader thread, and handed to the UI with the cursor
+ */
+public class ProductWindowCursor extends CursorWrapper {
+    private final ProductSnapshot mSnapshot;
+    private final boolean mAtStart;
+    private final boolean mSearch;
+
+    /**
+     * Constructs a new {@link ProductWindowCursor}, copying the rows of the window
+     *
+     * @param window  loaded
+     * @param atStart whether the window starts at the beginning of the list
+     * @param search  whether the window holds search results
+     */
+    public ProductWindowCursor(Cursor window, boolean atStart, boolean search) {
+        super(window);
+        mSnapshot = ProductSnapshot.fromCursor(window);
+        mAtStart = atStart;
+        mSearch = search;
+    }
+
+    /**
+     * Get the rows of the window as they were loaded
+     */
+    public ProductSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Check if the window starts at the beginning of the list
+     */
+    public boolean isAtStart() {
+        return mAtStart;
+    }
+
+    /**
+     * Check if the window shows search results, which don't move
+     */
+    public boolean isSearch() {
+        return mSearch;
+    }
+}
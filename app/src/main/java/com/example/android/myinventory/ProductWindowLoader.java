@@ -0,0 +1,183 @@
+package com.example.android.myinventory;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
+
+import com.example.android.myinventory.data.ProductContract;
+
+/**
+ * Loads a bounded window of the product list, a few pages long, starting after a keyset anchor
+ * The window slides one page at a time as the user scrolls, so the memory used by the list doesn't grow with the catalog
+ * The loaded cursor is a {@link ProductWindowCursor} holding a snapshot of the rows, and where the window stands
+ */
+public class ProductWindowLoader extends CursorLoader {
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = ProductWindowLoader.class.getSimpleName();
+    /**
+     * Number of products the window slides by
+     */
+    public static final int PAGE_SIZE = 50;
+    /**
+     * Number of products held by the window
+     */
+    public static final int WINDOW_SIZE = PAGE_SIZE * 4;
+
+    /**
+     * Loader argument keys of the anchor the window starts after
+     */
+    private static final String ARG_AFTER_NAME = "after_name";
+    private static final String ARG_AFTER_ID = "after_id";
+    /**
+     * Loader argument keys of the first product of the current window, when sliding back
+     */
+    private static final String ARG_BACK_FROM_NAME = "back_from_name";
+    private static final String ARG_BACK_FROM_ID = "back_from_id";
+    /**
+     * Loader argument key of the text searched, if the window shows search results
+     */
+    private static final String ARG_QUERY = "query";
+
+    /**
+     * Name and ID of the product the window starts after, null name for the start of the list
+     * Once the loader is constructed the anchor is only used by the loads, the UI reads it from the loaded cursor
+     */
+    private String mAfterName;
+    private long mAfterId;
+    /**
+     * First product of the window to slide back from, null if not sliding back
+     */
+    private String mBackFromName;
+    private long mBackFromId;
+    /**
+     * Text searched, null when showing the whole list
+     */
+    private final String mQuery;
+
+    /**
+     * Constructs a new {@link ProductWindowLoader}
+     *
+     * @param context    of the app
+     * @param projection columns to load, must contain the _id and name
+     * @param args       built by {@link #startArgs()}, {@link #searchArgs(String)},
+     *                   {@link #forwardArgs(ProductSnapshot)} or {@link #backArgs(ProductSnapshot)}
+     */
+    public ProductWindowLoader(Context context, String[] projection, Bundle args) {
+        super(context, ProductContract.ProductEntry.buildPageUri(null, 0, WINDOW_SIZE), projection, null, null, null);
+
+        if (args != null) {
+            mAfterName = args.getString(ARG_AFTER_NAME);
+            mAfterId = args.getLong(ARG_AFTER_ID);
+            mBackFromName = args.getString(ARG_BACK_FROM_NAME);
+            mBackFromId = args.getLong(ARG_BACK_FROM_ID);
+            mQuery = args.getString(ARG_QUERY);
+        } else {
+            mQuery = null;
+        }
+
+        /**
+         * Search results are ranked rather than paged, so they only show the best window of matches
+         */
+        if (mQuery != null)
+            setUri(ProductContract.ProductEntry.buildSearchUri(mQuery, WINDOW_SIZE));
+        else
+            setUri(ProductContract.ProductEntry.buildPageUri(mAfterName, mAfterId, WINDOW_SIZE));
+    }
+
+    /**
+     * Arguments of the window at the start of the list
+     */
+    public static Bundle startArgs() {
+        return new Bundle();
+    }
+
+    /**
+     * Arguments of the window of the best matches of a search
+     *
+     * @param query text searched
+     */
+    public static Bundle searchArgs(String query) {
+        Bundle args = new Bundle();
+        args.putString(ARG_QUERY, query);
+        return args;
+    }
+
+    /**
+     * Arguments of the window one page further than the given window
+     *
+     * @param window currently shown, holding {@link #WINDOW_SIZE} products
+     */
+    public static Bundle forwardArgs(ProductSnapshot window) {
+        Bundle args = new Bundle();
+        args.putString(ARG_AFTER_NAME, window.getName(PAGE_SIZE - 1));
+        args.putLong(ARG_AFTER_ID, window.getId(PAGE_SIZE - 1));
+        return args;
+    }
+
+    /**
+     * Arguments of the window up to one page before the given window
+     *
+     * @param window currently shown, not at the start of the list
+     */
+    public static Bundle backArgs(ProductSnapshot window) {
+        Bundle args = new Bundle();
+        args.putString(ARG_BACK_FROM_NAME, window.getName(0));
+        args.putLong(ARG_BACK_FROM_ID, window.getId(0));
+        return args;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        if (mBackFromName != null) {
+            /**
+             * Find the anchor one page back: read the page before the window, nearest first,
+             * plus the product the new window starts after
+             */
+            Cursor before = getContext().getContentResolver().query(
+                    ProductContract.ProductEntry.buildPageBeforeUri(mBackFromName, mBackFromId, PAGE_SIZE + 1),
+                    new String[]{ProductContract.ProductEntry._ID, ProductContract.ProductEntry.COLUMN_PRODUCT_NAME},
+                    null, null, null);
+            if (before != null) {
+                try {
+                    if (before.moveToPosition(PAGE_SIZE)) {
+                        mAfterName = getName(before);
+                        mAfterId = getId(before);
+                    } else {
+                        mAfterName = null;
+                    }
+                } finally {
+                    before.close();
+                }
+            }
+            mBackFromName = null;
+            setUri(ProductContract.ProductEntry.buildPageUri(mAfterName, mAfterId, WINDOW_SIZE));
+        }
+
+        /**
+         * Copy the rows out of the cursor here rather than on the UI thread
+         */
+        long start = SystemClock.elapsedRealtime();
+        TraceCompat.beginSection("ProductWindowLoader.load");
+        try {
+            Cursor window = super.loadInBackground();
+            return window == null ? null : new ProductWindowCursor(window, mAfterName == null, mQuery != null);
+        } finally {
+            TraceCompat.endSection();
+            Log.d(LOG_TAG, "Loaded window in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    private static String getName(Cursor cursor) {
+        return cursor.getString(cursor.getColumnIndexOrThrow(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME));
+    }
+
+    private static long getId(Cursor cursor) {
+        return cursor.getLong(cursor.getColumnIndexOrThrow(ProductContract.ProductEntry._ID));
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.android.myinventory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.myinventory.data.PictureStore;
+import com.example.android.myinventory.data.ProductContract;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Two tier cache of the product thumbnails shown by the list
+ * Decoded thumbnails are kept in a memory LRU, backed by the thumbnail files the provider writes on disk,
+ * so a thumbnail is decoded from a small JPEG at most once while it stays in memory, and never from the full picture
+ */
+public class ThumbnailCache {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = ThumbnailCache.class.getSimpleName();
+    /**
+     * Part of the app's memory class given to the decoded thumbnails
+     */
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+    /**
+     * Number of threads decoding thumbnails
+     */
+    private static final int DECODE_THREADS = 2;
+    /**
+     * Number of evicted bitmaps kept to decode new thumbnails into
+     */
+    private static final int MAX_REUSABLE_BITMAPS = 8;
+
+    private static ThumbnailCache sInstance;
+
+    /**
+     * Decoded thumbnails by picture reference, sized in bytes
+     * Pictures are content addressed, so a changed picture has a new reference and never hits a stale entry
+     */
+    private final LruCache<String, Bitmap> mMemoryCache;
+    /**
+     * Bitmaps evicted from the memory cache, reused by the next decodes instead of allocating new ones
+     */
+    private final Deque<SoftReference<Bitmap>> mReusableBitmaps = new ArrayDeque<>();
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ContentResolver mContentResolver;
+
+    /**
+     * Get the cache of the app
+     *
+     * @param context of the app
+     */
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ThumbnailCache(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private ThumbnailCache(Context context) {
+        mContentResolver = context.getContentResolver();
+
+        int maxBytes = (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVIDER);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                /**
+                 * Only evicted bitmaps are recycled: the least recently used thumbnails are far off screen
+                 */
+                if (evicted && oldValue.isMutable())
+                    offerReusableBitmap(oldValue);
+            }
+        };
+
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, LOG_TAG);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Show the thumbnail of a product in the given view
+     * A cached thumbnail is shown right away, otherwise the view is cleared and the thumbnail is decoded in the background
+     * Any load still pending for the view is cancelled, so a recycled view never shows the thumbnail of its previous row
+     * A view already showing the thumbnail is left as is, so binding a row again allocates no new drawable
+     *
+     * @param id        of the product
+     * @param reference of the picture of the product
+     * @param view      to show the thumbnail in
+     */
+    public void load(long id, String reference, ImageView view) {
+        cancel(view);
+
+        Bitmap cached = reference == null ? null : mMemoryCache.get(reference);
+        if (cached != null) {
+            show(view, cached);
+            return;
+        }
+        if (view.getTag(R.id.thumbnail_shown) != null) {
+            view.setImageDrawable(null);
+            view.setTag(R.id.thumbnail_shown, null);
+        }
+        if (reference == null)
+            return;
+
+        LoadTask task = new LoadTask(id, reference, view);
+        view.setTag(R.id.thumbnail_task, task);
+        task.mFuture = mExecutor.submit(task);
+    }
+
+    /**
+     * Show a thumbnail in a view, unless the view already shows it
+     */
+    private static void show(ImageView view, Bitmap thumbnail) {
+        if (view.getTag(R.id.thumbnail_shown) == thumbnail)
+            return;
+        view.setImageBitmap(thumbnail);
+        view.setTag(R.id.thumbnail_shown, thumbnail);
+    }
+
+    /**
+     * Add a thumbnail decoded elsewhere, e.g. by a test that shows thumbnails without any picture stored
+     *
+     * @param reference of the picture
+     * @param thumbnail of the picture, {@link PictureStore#THUMBNAIL_SIZE} square
+     */
+    void put(String reference, Bitmap thumbnail) {
+        mMemoryCache.put(reference, thumbnail);
+    }
+
+    /**
+     * Cancel the load pending for the given view, if any
+     * Called when the view scrolls off screen
+     */
+    public void cancel(ImageView view) {
+        LoadTask task = (LoadTask) view.getTag(R.id.thumbnail_task);
+        if (task == null)
+            return;
+        task.mCancelled = true;
+        task.mFuture.cancel(false);
+        view.setTag(R.id.thumbnail_task, null);
+    }
+
+    /**
+     * Drop the decoded thumbnails, e.g. when the system is low on memory
+     */
+    public void clear() {
+        mMemoryCache.evictAll();
+        synchronized (mReusableBitmaps) {
+            mReusableBitmaps.clear();
+        }
+    }
+
+    private void offerReusableBitmap(Bitmap bitmap) {
+        synchronized (mReusableBitmaps) {
+            if (mReusableBitmaps.size() >= MAX_REUSABLE_BITMAPS)
+                mReusableBitmaps.pollLast();
+            mReusableBitmaps.addFirst(new SoftReference<>(bitmap));
+        }
+    }
+
+    /**
+     * Take an evicted bitmap to decode a thumbnail into
+     * Every thumbnail has the same size and config, so any evicted one fits
+     *
+     * @return the bitmap, or null if none is left
+     */
+    private Bitmap takeReusableBitmap() {
+        synchronized (mReusableBitmaps) {
+            while (!mReusableBitmaps.isEmpty()) {
+                Bitmap bitmap = mReusableBitmaps.pollFirst().get();
+                if (bitmap != null && !bitmap.isRecycled() && bitmap.getWidth() == PictureStore.THUMBNAIL_SIZE
+                        && bitmap.getHeight() == PictureStore.THUMBNAIL_SIZE)
+                    return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decode a thumbnail file served by the provider
+     *
+     * @return the thumbnail, or null if it can't be read
+     */
+    private Bitmap decode(long id) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        options.inBitmap = takeReusableBitmap();
+
+        Bitmap bitmap = null;
+        try {
+            bitmap = decodeStream(id, options);
+        } catch (IllegalArgumentException e) {
+            /**
+             * The bitmap to reuse didn't fit, e.g. a thumbnail made by an older version, so decode into a new one
+             */
+            options.inBitmap = null;
+            try {
+                bitmap = decodeStream(id, options);
+            } catch (IOException e2) {
+                Log.w(LOG_TAG, "Failed to read thumbnail of product " + id, e2);
+            }
+        } catch (FileNotFoundException e) {
+            Log.w(LOG_TAG, "No thumbnail for product " + id);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read thumbnail of product " + id, e);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeStream(long id, BitmapFactory.Options options) throws IOException {
+        InputStream in = mContentResolver.openInputStream(ProductContract.ProductEntry.buildThumbnailUri(id));
+        if (in == null)
+            return null;
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Background load of one thumbnail into one view
+     */
+    private class LoadTask implements Runnable {
+        private final long mId;
+        private final String mReference;
+        private final ImageView mView;
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        LoadTask(long id, String reference, ImageView view) {
+            mId = id;
+            mReference = reference;
+            mView = view;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled)
+                return;
+
+            /**
+             * Another view may have loaded the same picture meanwhile
+             */
+            Bitmap bitmap = mMemoryCache.get(mReference);
+            if (bitmap == null) {
+                bitmap = decode(mId);
+                if (bitmap == null)
+                    return;
+                mMemoryCache.put(mReference, bitmap);
+            }
+
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    /**
+                     * Only show the thumbnail if the view is still waiting for this load
+                     */
+                    if (!mCancelled && mView.getTag(R.id.thumbnail_task) == LoadTask.this) {
+                        mView.setTag(R.id.thumbnail_task, null);
+                        show(mView, result);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.android.myinventory.data;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads the products of a supplier catalog one at a time, so a catalog of any size is never held in memory
+ * <p>
+ * A CSV catalog starts with a header line naming its columns, a JSON catalog is an array of objects.
+ * Both use the column names of {@link ProductContract.ProductEntry}, with {@link #COLUMN_IMAGE} holding the
+ * location of the picture file. Unknown columns are ignored, so catalogs can carry other supplier data.
+ */
+public abstract class CatalogReader implements Closeable {
+    /**
+     * Formats of the catalogs
+     */
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSON = "json";
+    /**
+     * Column of the catalogs holding the location of the picture file, a URI or a path relative to the catalog
+     */
+    public static final String COLUMN_IMAGE = "image";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final CountingInputStream mInput;
+
+    /**
+     * Open a catalog
+     *
+     * @param in     stream of the catalog, closed with the reader
+     * @param format {@link #FORMAT_CSV} or {@link #FORMAT_JSON}
+     */
+    public static CatalogReader open(InputStream in, String format) throws IOException {
+        CountingInputStream counting = new CountingInputStream(in);
+        if (FORMAT_CSV.equals(format))
+            return new CsvReader(counting);
+        if (FORMAT_JSON.equals(format))
+            return new JsonCatalogReader(counting);
+        throw new IllegalArgumentException("Unknown catalog format " + format);
+    }
+
+    /**
+     * Guess the format of a catalog from its name or MIME type
+     *
+     * @return {@link #FORMAT_CSV} or {@link #FORMAT_JSON}, or null if it's neither
+     */
+    public static String guessFormat(String name, String mimeType) {
+        String lowerName = name == null ? "" : name.toLowerCase(Locale.US);
+        if (lowerName.endsWith(".json") || "application/json".equals(mimeType))
+            return FORMAT_JSON;
+        if (lowerName.endsWith(".csv") || "text/csv".equals(mimeType) || "text/comma-separated-values".equals(mimeType))
+            return FORMAT_CSV;
+        return null;
+    }
+
+    CatalogReader(CountingInputStream in) {
+        mInput = in;
+    }
+
+    /**
+     * Read the next product
+     *
+     * @param row receiving the product, its values are all replaced
+     * @return false at the end of the catalog
+     * @throws IOException if the catalog can't be read or is malformed
+     */
+    public abstract boolean next(Row row) throws IOException;
+
+    /**
+     * Get the number of bytes of the catalog read so far, to report the progress
+     */
+    public long getBytesRead() {
+        return mInput.mCount;
+    }
+
+    /**
+     * Reader decoding the catalog as UTF-8, buffered
+     */
+    Reader newReader() {
+        return new BufferedReader(new InputStreamReader(mInput, UTF_8));
+    }
+
+    /**
+     * Product read from a catalog
+     * The values are kept as read, they're checked when the product is imported
+     */
+    public static class Row {
+        /**
+         * Position of the product in the catalog, starting at 0
+         */
+        public long index = -1;
+        public String name;
+        public String price;
+        public String quantity;
+        public String reorderLevel;
+        public String image;
+
+        void clear() {
+            name = null;
+            price = null;
+            quantity = null;
+            reorderLevel = null;
+            image = null;
+        }
+
+        void set(String column, String value) {
+            if (ProductContract.ProductEntry.COLUMN_PRODUCT_NAME.equals(column))
+                name = value;
+            else if (ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE.equals(column))
+                price = value;
+            else if (ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY.equals(column))
+                quantity = value;
+            else if (ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL.equals(column))
+                reorderLevel = value;
+            else if (COLUMN_IMAGE.equals(column))
+                image = value;
+        }
+    }
+
+    /**
+     * Reads a CSV catalog(RFC 4180), a field at a time
+     * Quoted fields may hold commas, doubled quotes and line breaks
+     */
+    private static class CsvReader extends CatalogReader {
+        private final Reader mReader;
+        private final StringBuilder mField = new StringBuilder();
+        private final List<String> mFields = new ArrayList<>();
+        private String[] mColumns;
+        private long mIndex;
+
+        CsvReader(CountingInputStream in) {
+            super(in);
+            mReader = newReader();
+        }
+
+        @Override
+        public boolean next(Row row) throws IOException {
+            if (mColumns == null) {
+                if (!readRecord())
+                    throw new IOException("Catalog has no header line");
+                mColumns = new String[mFields.size()];
+                for (int i = 0; i < mColumns.length; i++)
+                    mColumns[i] = mFields.get(i).trim().toLowerCase(Locale.US);
+            }
+
+            /**
+             * Skip the blank lines
+             */
+            do {
+                if (!readRecord())
+                    return false;
+            } while (mFields.size() == 1 && mFields.get(0).isEmpty());
+
+            row.clear();
+            row.index = mIndex++;
+            for (int i = 0; i < mColumns.length && i < mFields.size(); i++)
+                row.set(mColumns[i], mFields.get(i).trim());
+            return true;
+        }
+
+        /**
+         * Read the fields of the next record into {@link #mFields}
+         *
+         * @return false at the end of the catalog
+         */
+        private boolean readRecord() throws IOException {
+            mFields.clear();
+            mField.setLength(0);
+            boolean quoted = false;
+            boolean read = false;
+
+            while (true) {
+                int c = mReader.read();
+                if (c == -1) {
+                    if (quoted)
+                        throw new IOException("Catalog ends inside a quoted field");
+                    if (!read)
+                        return false;
+                    mFields.add(mField.toString());
+                    return true;
+                }
+                read = true;
+
+                if (quoted) {
+                    if (c == '"') {
+                        mReader.mark(1);
+                        if (mReader.read() == '"') {
+                            mField.append('"');
+                        } else {
+                            mReader.reset();
+                            quoted = false;
+                        }
+                    } else {
+                        mField.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    mFields.add(mField.toString());
+                    mField.setLength(0);
+                } else if (c == '\n') {
+                    mFields.add(mField.toString());
+                    return true;
+                } else if (c != '\r') {
+                    mField.append((char) c);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Reads a JSON catalog, an array of product objects, one object at a time
+     */
+    private static class JsonCatalogReader extends CatalogReader {
+        private final JsonReader mReader;
+        private boolean mStarted;
+        private long mIndex;
+
+        JsonCatalogReader(CountingInputStream in) {
+            super(in);
+            mReader = new JsonReader(newReader());
+        }
+
+        @Override
+        public boolean next(Row row) throws IOException {
+            if (!mStarted) {
+                mReader.beginArray();
+                mStarted = true;
+            }
+            if (!mReader.hasNext()) {
+                mReader.endArray();
+                return false;
+            }
+
+            row.clear();
+            row.index = mIndex++;
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String column = mReader.nextName().toLowerCase(Locale.US);
+                if (mReader.peek() == JsonToken.NULL) {
+                    mReader.nextNull();
+                } else if (mReader.peek() == JsonToken.BOOLEAN) {
+                    row.set(column, String.valueOf(mReader.nextBoolean()));
+                } else if (mReader.peek() == JsonToken.BEGIN_ARRAY || mReader.peek() == JsonToken.BEGIN_OBJECT) {
+                    mReader.skipValue();
+                } else {
+                    /**
+                     * Numbers are read as strings too, and checked with the other values
+                     */
+                    row.set(column, mReader.nextString().trim());
+                }
+            }
+            mReader.endObject();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Counts the bytes read from the catalog
+     */
+    static class CountingInputStream extends FilterInputStream {
+        volatile long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0)
+                mCount += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.android.myinventory.data;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.myinventory.R;
+
+/**
+ * Journal mode and storage pragmas the product db connection is configured with
+ */
+public class DatabaseSettings {
+    private static final String LOG_TAG = DatabaseSettings.class.getSimpleName();
+
+    /**
+     * Rollback journal and every pragma left at the SQLite default, the setup the db had before these settings
+     */
+    public static final DatabaseSettings SQLITE_DEFAULTS = new DatabaseSettings(false, 0, -1, null, null);
+
+    private final boolean mWriteAheadLogging;
+    private final int mCacheSizeKib;
+    private final long mMmapSize;
+    private final String mSynchronous;
+    private final String mTempStore;
+
+    /**
+     * Constructs a new {@link DatabaseSettings}
+     *
+     * @param writeAheadLogging true to use WAL, so the list can read while a sale is written
+     * @param cacheSizeKib      page cache of a connection in KiB, or 0 to keep the default
+     * @param mmapSize          bytes of the db file mapped in memory, 0 to disable it or -1 to keep the default
+     * @param synchronous       OFF, NORMAL or FULL, or null to keep the default
+     * @param tempStore         DEFAULT, FILE or MEMORY, or null to keep the default
+     */
+    public DatabaseSettings(boolean writeAheadLogging, int cacheSizeKib, long mmapSize, String synchronous,
+                            String tempStore) {
+        if (cacheSizeKib < 0 || mmapSize < -1)
+            throw new IllegalArgumentException("Invalid cache size " + cacheSizeKib + " KiB, mmap size " + mmapSize);
+        if (synchronous != null && !synchronous.matches("OFF|NORMAL|FULL"))
+            throw new IllegalArgumentException("Invalid synchronous mode " + synchronous);
+        if (tempStore != null && !tempStore.matches("DEFAULT|FILE|MEMORY"))
+            throw new IllegalArgumentException("Invalid temp store " + tempStore);
+
+        mWriteAheadLogging = writeAheadLogging;
+        mCacheSizeKib = cacheSizeKib;
+        mMmapSize = mmapSize;
+        mSynchronous = synchronous;
+        mTempStore = tempStore;
+    }
+
+    /**
+     * Constructs {@link DatabaseSettings} configured by the app resources
+     *
+     * @param context of the app
+     */
+    public static DatabaseSettings fromResources(Context context) {
+        Resources resources = context.getResources();
+        return new DatabaseSettings(resources.getBoolean(R.bool.database_write_ahead_logging),
+                resources.getInteger(R.integer.database_cache_size_kib),
+                resources.getInteger(R.integer.database_mmap_size),
+                resources.getString(R.string.database_synchronous),
+                resources.getString(R.string.database_temp_store));
+    }
+
+    /**
+     * Configure a connection
+     * WAL is enabled first, as enabling it sets the synchronous mode of the connection again
+     * The pragmas only reach the primary connection, the extra reader connections of WAL keep the defaults
+     *
+     * @param db being opened, outside of any transaction
+     */
+    void apply(SQLiteDatabase db) {
+        if (mWriteAheadLogging && !db.enableWriteAheadLogging())
+            Log.w(LOG_TAG, "WAL not available for " + db.getPath());
+        /**
+         * A negative cache size counts KiB instead of pages since SQLite 3.7.10, older versions use its absolute value
+         */
+        if (mCacheSizeKib > 0)
+            db.execSQL("PRAGMA cache_size = -" + mCacheSizeKib);
+        /**
+         * mmap_size returns the new size, so it can't go through execSQL
+         * SQLite before 3.7.17 ignores it
+         */
+        if (mMmapSize >= 0) {
+            Cursor cursor = db.rawQuery("PRAGMA mmap_size = " + mMmapSize, null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+        if (mSynchronous != null)
+            db.execSQL("PRAGMA synchronous = " + mSynchronous);
+        if (mTempStore != null)
+            db.execSQL("PRAGMA temp_store = " + mTempStore);
+
+        Log.d(LOG_TAG, "Configured " + db.getPath() + " with " + this);
+    }
+
+    @Override
+    public String toString() {
+        return "wal=" + mWriteAheadLogging + " cache_size=" + mCacheSizeKib + "KiB mmap_size=" + mMmapSize
+                + " synchronous=" + mSynchronous + " temp_store=" + mTempStore;
+    }
+}
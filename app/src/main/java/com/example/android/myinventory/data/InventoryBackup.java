@@ -0,0 +1,956 @@
+package com.example.android.myinventory.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Takes consistent snapshots of the product db while it's read and written, and rebuilds the db from them
+ * <p>
+ * A backup is a chain: a full snapshot, then snapshots of the rows changed since the previous one. Every change of
+ * a product gets the next row version from the triggers of {@link ProductDBHelper}, a delete leaves a tombstone
+ * with its version, and the sales ledger only grows, so the changes since a snapshot are the products and
+ * tombstones past its version, the ledger entries past its last ID and the sales totals of the days since.
+ * <p>
+ * Android has no access to the SQLite online backup API. A full snapshot is a VACUUM INTO from a separate read
+ * connection when SQLite has it(3.27) and the db uses WAL, which never holds up the writes. Otherwise the changes
+ * are copied once without holding anything, then the few made meanwhile are copied again inside a transaction
+ * holding the write connection, so the snapshot is exactly the db at the end of it. Only that transaction holds
+ * up the writes, and its time is reported.
+ * <p>
+ * Every snapshot file is a product db of its own, with its SHA-256 in the manifest, checked before restoring.
+ * The pictures stay in the {@link PictureStore}, only their references are backed up. The manifest lists the
+ * pictures of every snapshot, and the store keeps them while the chain holds them, see {@link #holdsPicture(String)},
+ * so a restore never brings back a product whose picture was deleted since. They're checked before restoring too.
+ * Backups and restores must not run at the same time, the caller serializes them.
+ */
+class InventoryBackup {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = InventoryBackup.class.getSimpleName();
+    /**
+     * Directory of the snapshots, in the files of the app
+     */
+    private static final String DIRECTORY = "backups";
+    private static final String MANIFEST = "manifest.json";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String RESTORED_PREFIX = "inventory-";
+    private static final String DATABASE_SUFFIX = ".db";
+    /**
+     * Number of snapshots of changes after which the next backup is a full one, so restoring stays quick
+     */
+    private static final int MAX_INCREMENTALS = 24;
+    /**
+     * Number of rows read per query
+     */
+    private static final int PAGE_SIZE = 500;
+    /**
+     * Sales are timestamped when the buffered sales are written, a bit before they're in the ledger,
+     * so the totals are copied again from a while before the previous snapshot
+     */
+    private static final long ROLLUP_MARGIN_MILLIS = ProductContract.SalesRollupEntry.HOUR_MILLIS;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] PRODUCT_PROJECTION = {ProductContract.ProductEntry._ID,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, ProductContract.ProductEntry.COLUMN_ROW_VERSION};
+    private static final String[] TOMBSTONE_PROJECTION = {ProductContract.TombstoneEntry.COLUMN_PRODUCT_ID,
+            ProductContract.TombstoneEntry.COLUMN_ROW_VERSION};
+    private static final String[] SALE_PROJECTION = {ProductContract.SalesEntry._ID,
+            ProductContract.SalesEntry.COLUMN_PRODUCT_ID, ProductContract.SalesEntry.COLUMN_DELTA,
+            ProductContract.SalesEntry.COLUMN_TIMESTAMP};
+    private static final String[] ROLLUP_PROJECTION = {ProductContract.SalesRollupEntry.COLUMN_PRODUCT_ID,
+            ProductContract.SalesRollupEntry.COLUMN_BUCKET, ProductContract.SalesRollupEntry.COLUMN_UNITS_SOLD,
+            ProductContract.SalesRollupEntry.COLUMN_NET_CHANGE};
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final PictureStore mPictureStore;
+    /**
+     * Guards the pictures held by the chain, apart from the lock of the backups, so a release never waits for one
+     */
+    private final Object mPictureLock = new Object();
+    /**
+     * Pictures the snapshots of the manifest refer to, null until read from it
+     */
+    private Set<String> mHeldPictures;
+    /**
+     * True while a snapshot is taken, any picture is held then, as the snapshot may still read a row holding it
+     */
+    private boolean mSnapshotting;
+    /**
+     * Pictures held back while a snapshot was taken, and those the chain stopped holding, to release again
+     */
+    private final Set<String> mReleasedPictures = new HashSet<>();
+
+    /**
+     * Constructs a new {@link InventoryBackup}
+     *
+     * @param context      of the app
+     * @param pictureStore holding the pictures the snapshots refer to
+     */
+    InventoryBackup(Context context, PictureStore pictureStore) {
+        mContext = context;
+        mDirectory = new File(context.getFilesDir(), DIRECTORY);
+        mPictureStore = pictureStore;
+    }
+
+    /**
+     * Check if the picture has to be kept for the snapshots, even if no product refers to it any more
+     * A picture asked about while a snapshot is taken is held, and handed back by {@link #takeReleasedPictures()}
+     *
+     * @param reference of the picture
+     */
+    boolean holdsPicture(String reference) {
+        synchronized (mPictureLock) {
+            if (mSnapshotting) {
+                mReleasedPictures.add(reference);
+                return true;
+            }
+            if (mHeldPictures == null) {
+                try {
+                    mHeldPictures = getPictures(readManifest());
+                } catch (IOException e) {
+                    /**
+                     * Keep the picture rather than risk a snapshot losing it, it's asked about again later
+                     */
+                    Log.e(LOG_TAG, "Cannot read the pictures of the backup", e);
+                    return true;
+                }
+            }
+            return mHeldPictures.contains(reference);
+        }
+    }
+
+    /**
+     * Get the pictures {@link #holdsPicture(String)} held only for a snapshot being taken, and those a new chain
+     * stopped holding, so the caller releases them again after a backup
+     */
+    Set<String> takeReleasedPictures() {
+        synchronized (mPictureLock) {
+            Set<String> pictures = new HashSet<>(mReleasedPictures);
+            mReleasedPictures.clear();
+            return pictures;
+        }
+    }
+
+    /**
+     * Hold the pictures of the given chain from now on, and hand back the ones only the previous chain held
+     *
+     * @param previous pictures of the chain the manifest had before
+     * @param manifest just written
+     */
+    private void holdPictures(Set<String> previous, Manifest manifest) {
+        Set<String> pictures = getPictures(manifest);
+        synchronized (mPictureLock) {
+            for (String picture : previous) {
+                if (!pictures.contains(picture))
+                    mReleasedPictures.add(picture);
+            }
+            mHeldPictures = pictures;
+        }
+    }
+
+    /**
+     * Get the pictures of every snapshot of the chain
+     * A snapshot listed before the manifest had its pictures is read for them
+     */
+    private Set<String> getPictures(Manifest manifest) {
+        Set<String> pictures = new HashSet<>();
+        for (Snapshot snapshot : manifest.snapshots) {
+            if (snapshot.pictures == null) {
+                File file = new File(mDirectory, snapshot.file);
+                if (!file.isFile())
+                    continue;
+                snapshot.pictures = readPictures(file);
+            }
+            pictures.addAll(snapshot.pictures);
+        }
+        return pictures;
+    }
+
+    /**
+     * Read the distinct picture references of the products of a snapshot file
+     */
+    private static List<String> readPictures(File file) {
+        List<String> pictures = new ArrayList<>();
+        SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            Cursor cursor = snapshot.query(true, ProductContract.ProductEntry.TABLE_NAME,
+                    new String[]{ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE}, null, null,
+                    null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String picture = cursor.getString(0);
+                    if (PictureStore.isValidReference(picture))
+                        pictures.add(picture);
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            snapshot.close();
+        }
+        return pictures;
+    }
+
+    /**
+     * Get a name for a restored db file, never used before
+     */
+    static String newDatabaseName() {
+        return RESTORED_PREFIX + System.currentTimeMillis() + DATABASE_SUFFIX;
+    }
+
+    /**
+     * Take a snapshot of the db, a full one at the start of a chain, or after a restore, a schema change or
+     * {@link #MAX_INCREMENTALS} snapshots of changes, else one of the changes since the previous snapshot
+     * A new full snapshot replaces the previous chain once it's written
+     *
+     * @param helper of the db
+     * @return {@link ProductContract#EXTRA_INCREMENTAL}, {@link ProductContract#EXTRA_SNAPSHOT_BYTES},
+     * {@link ProductContract#EXTRA_ELAPSED_MILLIS} and {@link ProductContract#EXTRA_WRITE_STALL_MILLIS}
+     */
+    Bundle backup(ProductDBHelper helper) throws IOException {
+        long start = System.nanoTime();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("Cannot create " + mDirectory);
+
+        Manifest manifest = readManifest();
+        SQLiteDatabase database = helper.getWritableDatabase();
+        /**
+         * Products still at version 0 can't be told apart, the chain has to wait for their versions
+         */
+        if (helper.hasPendingMigrations(database))
+            throw new IOException("Rows are still being migrated, back up later");
+
+        /**
+         * Hold every picture until the snapshot and its pictures are in the manifest
+         */
+        synchronized (mPictureLock) {
+            mSnapshotting = true;
+        }
+        try {
+            return backup(helper, database, manifest, start);
+        } finally {
+            synchronized (mPictureLock) {
+                mSnapshotting = false;
+            }
+        }
+    }
+
+    private Bundle backup(ProductDBHelper helper, SQLiteDatabase database, Manifest manifest, long start)
+            throws IOException {
+        Snapshot previous = manifest.snapshots.isEmpty() ? null : manifest.snapshots.get(manifest.snapshots.size() - 1);
+        boolean incremental = previous != null && !manifest.restored && manifest.snapshots.size() <= MAX_INCREMENTALS
+                && previous.schemaVersion == database.getVersion();
+
+        File file = new File(mDirectory, SNAPSHOT_PREFIX + System.currentTimeMillis() + DATABASE_SUFFIX);
+        Snapshot snapshot;
+        try {
+            if (!incremental && canVacuumInto(database))
+                snapshot = vacuumInto(helper, file);
+            else
+                snapshot = copy(database, file, incremental ? previous.getMarks() : Marks.ALL);
+            snapshot.file = file.getName();
+            snapshot.incremental = incremental;
+            snapshot.schemaVersion = database.getVersion();
+            snapshot.bytes = file.length();
+            snapshot.sha256 = sha256(file);
+            snapshot.pictures = readPictures(file);
+        } catch (IOException | RuntimeException e) {
+            deleteDatabaseFiles(file);
+            throw e;
+        }
+
+        Set<String> previousPictures = getPictures(manifest);
+        List<Snapshot> replaced = new ArrayList<>();
+        if (!incremental) {
+            replaced.addAll(manifest.snapshots);
+            manifest.snapshots.clear();
+            manifest.restored = false;
+        }
+        manifest.snapshots.add(snapshot);
+        writeManifest(manifest);
+        holdPictures(previousPictures, manifest);
+
+        if (!incremental) {
+            for (Snapshot old : replaced)
+                deleteDatabaseFiles(new File(mDirectory, old.file));
+            /**
+             * The deletes up to a full snapshot are in it, no later chain needs their tombstones
+             */
+            database.delete(ProductContract.TombstoneEntry.TABLE_NAME,
+                    ProductContract.TombstoneEntry.COLUMN_ROW_VERSION + "<=?",
+                    new String[]{String.valueOf(snapshot.version)});
+        }
+
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        long stallMillis = snapshot.stallNanos / 1000000;
+        Log.i(LOG_TAG, (incremental ? "Incremental" : "Full") + " snapshot of " + snapshot.bytes + " bytes in "
+                + elapsedMillis + " ms, writes held up " + stallMillis + " ms");
+
+        Bundle result = new Bundle();
+        result.putBoolean(ProductContract.EXTRA_INCREMENTAL, incremental);
+        result.putLong(ProductContract.EXTRA_SNAPSHOT_BYTES, snapshot.bytes);
+        result.putLong(ProductContract.EXTRA_ELAPSED_MILLIS, elapsedMillis);
+        result.putLong(ProductContract.EXTRA_WRITE_STALL_MILLIS, stallMillis);
+        return result;
+    }
+
+    /**
+     * Rebuild the db from the snapshots into a new db file, after checking them all
+     * The full snapshot is copied, upgraded if it's older, and the changes of the others are applied in order.
+     * The live db isn't touched, the caller switches to the new file. The next backup is a full one then.
+     *
+     * @param name of the new db file, in the db directory, see {@link #newDatabaseName()}
+     * @return {@link ProductContract#EXTRA_SNAPSHOT_COUNT}
+     */
+    Bundle restore(String name) throws IOException {
+        Manifest manifest = readManifest();
+        if (manifest.snapshots.isEmpty())
+            throw new FileNotFoundException("No backup in " + mDirectory);
+        for (Snapshot snapshot : manifest.snapshots) {
+            File file = new File(mDirectory, snapshot.file);
+            if (!file.isFile() || !snapshot.sha256.equals(sha256(file)))
+                throw new IOException("Snapshot " + snapshot.file + " is missing or damaged");
+        }
+        for (String picture : getPictures(manifest)) {
+            if (!mPictureStore.contains(picture))
+                throw new IOException("Picture " + picture + " of the backup is missing");
+        }
+
+        File database = mContext.getDatabasePath(name);
+        boolean restored = false;
+        try {
+            copyFile(new File(mDirectory, manifest.snapshots.get(0).file), database);
+            ProductDBHelper helper = new ProductDBHelper(mContext, name, DatabaseSettings.SQLITE_DEFAULTS);
+            try {
+                SQLiteDatabase target = helper.getWritableDatabase();
+                target.beginTransaction();
+                try {
+                    for (int i = 1; i < manifest.snapshots.size(); i++) {
+                        SQLiteDatabase changes = SQLiteDatabase.openDatabase(
+                                new File(mDirectory, manifest.snapshots.get(i).file).getPath(), null,
+                                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                        try {
+                            copyChanges(changes, target, Marks.ALL);
+                        } finally {
+                            changes.close();
+                        }
+                    }
+                    target.setTransactionSuccessful();
+                } finally {
+                    target.endTransaction();
+                }
+
+                String check = DatabaseUtils.stringForQuery(target, "PRAGMA quick_check", null);
+                if (!"ok".equals(check))
+                    throw new IOException("Restored db failed its check: " + check);
+            } finally {
+                helper.close();
+            }
+
+            /**
+             * The restored db numbers its changes on its own, the old chain can't be continued from it
+             */
+            manifest.restored = true;
+            writeManifest(manifest);
+            restored = true;
+        } finally {
+            if (!restored)
+                deleteDatabaseFiles(database);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(ProductContract.EXTRA_SNAPSHOT_COUNT, manifest.snapshots.size());
+        return result;
+    }
+
+    /**
+     * Delete a db file with its journal files
+     */
+    static void deleteDatabaseFiles(File file) {
+        String[] suffixes = {"", "-journal", "-wal", "-shm"};
+        for (String suffix : suffixes) {
+            File delete = new File(file.getPath() + suffix);
+            if (delete.exists() && !delete.delete())
+                Log.w(LOG_TAG, "Failed to delete " + delete);
+        }
+    }
+
+    /**
+     * Check if VACUUM INTO can take the snapshot without holding up the writes:
+     * it needs SQLite 3.27(Android 11), and WAL so its read doesn't block the commits
+     */
+    private static boolean canVacuumInto(SQLiteDatabase database) {
+        return ProductDBHelper.isSqliteAtLeast(database, 3, 27)
+                && "wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode", null));
+    }
+
+    /**
+     * Take a full snapshot with VACUUM INTO, from a read connection of its own
+     * The marks are read from the snapshot itself, so they match it exactly
+     */
+    private Snapshot vacuumInto(ProductDBHelper helper, File file) {
+        long since = System.currentTimeMillis() - ROLLUP_MARGIN_MILLIS;
+        SQLiteDatabase reader = SQLiteDatabase.openDatabase(
+                mContext.getDatabasePath(helper.getDatabaseName()).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            reader.execSQL("VACUUM INTO ?", new Object[]{file.getPath()});
+        } finally {
+            reader.close();
+        }
+
+        SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            return new Snapshot(readMarks(snapshot, since), 0);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Copy the changes past the given marks into a new snapshot file
+     * The first pass holds nothing, so it sees some changes and misses others made meanwhile. The second pass,
+     * holding the write connection, copies again everything changed since the first started, which makes the
+     * snapshot match the db at its end.
+     */
+    private Snapshot copy(SQLiteDatabase database, File file, Marks after) {
+        Marks firstPass = readMarks(database, System.currentTimeMillis() - ROLLUP_MARGIN_MILLIS);
+        ProductDBHelper helper = new ProductDBHelper(mContext, file.getPath(), DatabaseSettings.SQLITE_DEFAULTS);
+        try {
+            SQLiteDatabase target = helper.getWritableDatabase();
+            Marks end;
+            long stallNanos;
+            target.beginTransaction();
+            try {
+                copyChanges(database, target, after);
+
+                long stallStart = System.nanoTime();
+                database.beginTransaction();
+                try {
+                    copyChanges(database, target, firstPass);
+                    end = readMarks(database, System.currentTimeMillis() - ROLLUP_MARGIN_MILLIS);
+                } finally {
+                    /**
+                     * Nothing was written, the transaction only held the writes back
+                     */
+                    database.endTransaction();
+                }
+                stallNanos = System.nanoTime() - stallStart;
+                target.setTransactionSuccessful();
+            } finally {
+                target.endTransaction();
+            }
+            return new Snapshot(end, stallNanos);
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Read the row version, the last ledger entry ID and the time a snapshot covers
+     */
+    private static Marks readMarks(SQLiteDatabase database, long since) {
+        long version = DatabaseUtils.longForQuery(database, "SELECT "
+                + ProductContract.RowVersionEntry.COLUMN_VERSION + " FROM "
+                + ProductContract.RowVersionEntry.TABLE_NAME, null);
+        long saleId = DatabaseUtils.longForQuery(database, "SELECT ifnull(max(" + ProductContract.SalesEntry._ID
+                + "), 0) FROM " + ProductContract.SalesEntry.TABLE_NAME, null);
+        return new Marks(version, saleId, since);
+    }
+
+    /**
+     * Copy the changes past the given marks from one product db to another: the deletes, the products,
+     * the ledger entries, the sales totals and the sale journal state
+     * Rows are written through the triggers of the target, so its search index and totals stay right
+     */
+    private static void copyChanges(SQLiteDatabase source, SQLiteDatabase target, Marks after) {
+        ChangeWriter writer = new ChangeWriter(target);
+        try {
+            String[] args = new String[1];
+            long afterVersion = after.version;
+            while (true) {
+                args[0] = String.valueOf(afterVersion);
+                Cursor cursor = source.query(ProductContract.TombstoneEntry.TABLE_NAME, TOMBSTONE_PROJECTION,
+                        ProductContract.TombstoneEntry.COLUMN_ROW_VERSION + ">?", args, null, null,
+                        ProductContract.TombstoneEntry.COLUMN_ROW_VERSION + " ASC", String.valueOf(PAGE_SIZE));
+                try {
+                    if (!cursor.moveToFirst())
+                        break;
+                    do {
+                        afterVersion = cursor.getLong(1);
+                        writer.deleteProduct(cursor.getLong(0));
+                    } while (cursor.moveToNext());
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            /**
+             * Every version is unique, so the products are paged by version, straight from its index
+             */
+            afterVersion = after.version;
+            while (true) {
+                args[0] = String.valueOf(afterVersion);
+                Cursor cursor = source.query(ProductContract.ProductEntry.TABLE_NAME, PRODUCT_PROJECTION,
+                        ProductContract.ProductEntry.COLUMN_ROW_VERSION + ">?", args, null, null,
+                        ProductContract.ProductEntry.COLUMN_ROW_VERSION + " ASC", String.valueOf(PAGE_SIZE));
+                try {
+                    if (!cursor.moveToFirst())
+                        break;
+                    do {
+                        afterVersion = cursor.getLong(6);
+                        writer.putProduct(cursor.getLong(0), cursor.getString(1), cursor.getLong(2),
+                                cursor.getLong(3), cursor.getLong(4), cursor.getString(5));
+                    } while (cursor.moveToNext());
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            long afterId = after.saleId;
+            while (true) {
+                args[0] = String.valueOf(afterId);
+                Cursor cursor = source.query(ProductContract.SalesEntry.TABLE_NAME, SALE_PROJECTION,
+                        ProductContract.SalesEntry._ID + ">?", args, null, null,
+                        ProductContract.SalesEntry._ID + " ASC", String.valueOf(PAGE_SIZE));
+                try {
+                    if (!cursor.moveToFirst())
+                        break;
+                    do {
+                        afterId = cursor.getLong(0);
+                        writer.putSale(afterId, cursor.getLong(1), cursor.getLong(2), cursor.getLong(3));
+                    } while (cursor.moveToNext());
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            /**
+             * The totals are copied after the ledger entries, replacing the ones the target added up from them
+             */
+            long fromBucket = after.since == Long.MIN_VALUE ? Long.MIN_VALUE
+                    : ProductContract.SalesRollupEntry.getBucket(after.since, ProductContract.SalesRollupEntry.DAY_MILLIS);
+            copyRollup(source, writer, ProductContract.SalesRollupEntry.HOURLY_TABLE_NAME, fromBucket);
+            copyRollup(source, writer, ProductContract.SalesRollupEntry.DAILY_TABLE_NAME, fromBucket);
+
+            writer.putJournalSequence(DatabaseUtils.longForQuery(source, "SELECT "
+                    + ProductContract.SaleJournalEntry.COLUMN_SEQUENCE + " FROM "
+                    + ProductContract.SaleJournalEntry.TABLE_NAME, null));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Copy the sales totals of the buckets from the given one on, paged in the order of their primary key
+     */
+    private static void copyRollup(SQLiteDatabase source, ChangeWriter writer, String table, long fromBucket) {
+        String productId = ProductContract.SalesRollupEntry.COLUMN_PRODUCT_ID;
+        String bucket = ProductContract.SalesRollupEntry.COLUMN_BUCKET;
+        String selection = bucket + ">=? AND " + productId + ">=? AND (" + productId + ">? OR " + bucket + ">?)";
+        String[] args = new String[4];
+        args[0] = String.valueOf(fromBucket);
+        long afterProductId = Long.MIN_VALUE;
+        long afterBucket = Long.MIN_VALUE;
+        while (true) {
+            args[1] = String.valueOf(afterProductId);
+            args[2] = args[1];
+            args[3] = String.valueOf(afterBucket);
+            Cursor cursor = source.query(table, ROLLUP_PROJECTION, selection, args, null, null,
+                    productId + " ASC, " + bucket + " ASC", String.valueOf(PAGE_SIZE));
+            try {
+                if (!cursor.moveToFirst())
+                    return;
+                do {
+                    afterProductId = cursor.getLong(0);
+                    afterBucket = cursor.getLong(1);
+                    writer.putRollup(table, afterProductId, afterBucket, cursor.getLong(2), cursor.getLong(3));
+                } while (cursor.moveToNext());
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private Manifest readManifest() throws IOException {
+        Manifest manifest = new Manifest();
+        File file = new File(mDirectory, MANIFEST);
+        if (!file.isFile())
+            return manifest;
+
+        JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("restored".equals(name)) {
+                    manifest.restored = reader.nextBoolean();
+                } else if ("snapshots".equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        manifest.snapshots.add(readSnapshot(reader));
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    private static Snapshot readSnapshot(JsonReader reader) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("file".equals(name))
+                snapshot.file = reader.nextString();
+            else if ("incremental".equals(name))
+                snapshot.incremental = reader.nextBoolean();
+            else if ("schema_version".equals(name))
+                snapshot.schemaVersion = reader.nextInt();
+            else if ("version".equals(name))
+                snapshot.version = reader.nextLong();
+            else if ("sale_id".equals(name))
+                snapshot.saleId = reader.nextLong();
+            else if ("since".equals(name))
+                snapshot.since = reader.nextLong();
+            else if ("bytes".equals(name))
+                snapshot.bytes = reader.nextLong();
+            else if ("sha256".equals(name))
+                snapshot.sha256 = reader.nextString();
+            else if ("pictures".equals(name)) {
+                snapshot.pictures = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext())
+                    snapshot.pictures.add(reader.nextString());
+                reader.endArray();
+            } else
+                reader.skipValue();
+        }
+        reader.endObject();
+        return snapshot;
+    }
+
+    /**
+     * Write the manifest to a temporary file first, then rename it, so it's always whole
+     */
+    private void writeManifest(Manifest manifest) throws IOException {
+        File temporary = new File(mDirectory, MANIFEST + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, UTF_8));
+            writer.beginObject();
+            writer.name("restored").value(manifest.restored);
+            writer.name("snapshots").beginArray();
+            for (Snapshot snapshot : manifest.snapshots) {
+                writer.beginObject();
+                writer.name("file").value(snapshot.file);
+                writer.name("incremental").value(snapshot.incremental);
+                writer.name("schema_version").value(snapshot.schemaVersion);
+                writer.name("version").value(snapshot.version);
+                writer.name("sale_id").value(snapshot.saleId);
+                writer.name("since").value(snapshot.since);
+                writer.name("bytes").value(snapshot.bytes);
+                writer.name("sha256").value(snapshot.sha256);
+                if (snapshot.pictures != null) {
+                    writer.name("pictures").beginArray();
+                    for (String picture : snapshot.pictures)
+                        writer.value(picture);
+                    writer.endArray();
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temporary.renameTo(new File(mDirectory, MANIFEST)))
+            throw new IOException("Cannot replace the backup manifest");
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-256", e);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        File directory = to.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * What a snapshot covers: the products and tombstones up to a version, the ledger entries up to an ID,
+     * and the sales totals complete up to a time
+     */
+    private static class Marks {
+        /**
+         * Marks before any change, to copy everything
+         */
+        static final Marks ALL = new Marks(-1, -1, Long.MIN_VALUE);
+
+        final long version;
+        final long saleId;
+        final long since;
+
+        Marks(long version, long saleId, long since) {
+            this.version = version;
+            this.saleId = saleId;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Snapshot listed in the manifest
+     */
+    private static class Snapshot {
+        String file;
+        boolean incremental;
+        int schemaVersion;
+        long version;
+        long saleId;
+        long since;
+        long bytes;
+        String sha256;
+        /**
+         * Distinct references of the pictures of its products, null if listed before the manifest had them
+         */
+        List<String> pictures;
+        /**
+         * Time the writes were held up while taking it, not kept in the manifest
+         */
+        long stallNanos;
+
+        Snapshot() {
+        }
+
+        Snapshot(Marks marks, long stallNanos) {
+            version = marks.version;
+            saleId = marks.saleId;
+            since = marks.since;
+            this.stallNanos = stallNanos;
+        }
+
+        Marks getMarks() {
+            return new Marks(version, saleId, since);
+        }
+    }
+
+    /**
+     * The chain of snapshots, oldest first, and whether the db was restored from it since the last one
+     */
+    private static class Manifest {
+        final List<Snapshot> snapshots = new ArrayList<>();
+        boolean restored;
+    }
+
+    /**
+     * Compiled statements writing the copied changes into a product db
+     */
+    private static class ChangeWriter {
+        private final SQLiteDatabase mDatabase;
+
+        private SQLiteStatement mDeleteProduct;
+        private SQLiteStatement mNextVersion;
+        private SQLiteStatement mInsertTombstone;
+        private SQLiteStatement mUpdateProduct;
+        private SQLiteStatement mInsertProduct;
+        private SQLiteStatement mInsertSale;
+        private SQLiteStatement mReplaceHourly;
+        private SQLiteStatement mReplaceDaily;
+
+        ChangeWriter(SQLiteDatabase database) {
+            mDatabase = database;
+        }
+
+        /**
+         * Delete a product, keeping its tombstone even if the target never had it
+         */
+        void deleteProduct(long id) {
+            if (mDeleteProduct == null) {
+                mDeleteProduct = mDatabase.compileStatement("DELETE FROM " + ProductContract.ProductEntry.TABLE_NAME
+                        + " WHERE " + ProductContract.ProductEntry._ID + " = ?");
+                mNextVersion = mDatabase.compileStatement("UPDATE " + ProductContract.RowVersionEntry.TABLE_NAME
+                        + " SET " + ProductContract.RowVersionEntry.COLUMN_VERSION + " = "
+                        + ProductContract.RowVersionEntry.COLUMN_VERSION + " + 1");
+                mInsertTombstone = mDatabase.compileStatement("INSERT OR IGNORE INTO "
+                        + ProductContract.TombstoneEntry.TABLE_NAME + " ("
+                        + ProductContract.TombstoneEntry.COLUMN_PRODUCT_ID + ", "
+                        + ProductContract.TombstoneEntry.COLUMN_ROW_VERSION + ") VALUES (?, (SELECT "
+                        + ProductContract.RowVersionEntry.COLUMN_VERSION + " FROM "
+                        + ProductContract.RowVersionEntry.TABLE_NAME + "))");
+            }
+            mDeleteProduct.bindLong(1, id);
+            if (mDeleteProduct.executeUpdateDelete() != 0)
+                return;
+            mNextVersion.execute();
+            mInsertTombstone.bindLong(1, id);
+            mInsertTombstone.executeInsert();
+        }
+
+        /**
+         * Update a product, or insert it with its ID if the target doesn't have it
+         */
+        void putProduct(long id, String name, long price, long quantity, long reorderLevel, String picture) {
+            if (mUpdateProduct == null) {
+                mUpdateProduct = mDatabase.compileStatement("UPDATE " + ProductContract.ProductEntry.TABLE_NAME
+                        + " SET " + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + " = ?1, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + " = ?2, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " = ?3, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL + " = ?4, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + " = ?5 WHERE "
+                        + ProductContract.ProductEntry._ID + " = ?6");
+                mInsertProduct = mDatabase.compileStatement("INSERT INTO " + ProductContract.ProductEntry.TABLE_NAME
+                        + " (" + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + ", "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + ", "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + ", "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL + ", "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + ", "
+                        + ProductContract.ProductEntry._ID + ") VALUES (?1, ?2, ?3, ?4, ?5, ?6)");
+            }
+            bindProduct(mUpdateProduct, id, name, price, quantity, reorderLevel, picture);
+            if (mUpdateProduct.executeUpdateDelete() != 0)
+                return;
+            bindProduct(mInsertProduct, id, name, price, quantity, reorderLevel, picture);
+            mInsertProduct.executeInsert();
+        }
+
+        private static void bindProduct(SQLiteStatement statement, long id, String name, long price, long quantity,
+                                        long reorderLevel, String picture) {
+            statement.bindString(1, name);
+            statement.bindLong(2, price);
+            statement.bindLong(3, quantity);
+            statement.bindLong(4, reorderLevel);
+            statement.bindString(5, picture);
+            statement.bindLong(6, id);
+        }
+
+        /**
+         * Append a ledger entry, unless the target has it already
+         */
+        void putSale(long id, long productId, long delta, long timestamp) {
+            if (mInsertSale == null)
+                mInsertSale = mDatabase.compileStatement("INSERT OR IGNORE INTO "
+                        + ProductContract.SalesEntry.TABLE_NAME + " (" + ProductContract.SalesEntry._ID + ", "
+                        + ProductContract.SalesEntry.COLUMN_PRODUCT_ID + ", "
+                        + ProductContract.SalesEntry.COLUMN_DELTA + ", "
+                        + ProductContract.SalesEntry.COLUMN_TIMESTAMP + ") VALUES (?, ?, ?, ?)");
+            mInsertSale.bindLong(1, id);
+            mInsertSale.bindLong(2, productId);
+            mInsertSale.bindLong(3, delta);
+            mInsertSale.bindLong(4, timestamp);
+            mInsertSale.executeInsert();
+        }
+
+        /**
+         * Replace the sales totals of a product over a bucket
+         */
+        void putRollup(String table, long productId, long bucket, long unitsSold, long netChange) {
+            boolean hourly = ProductContract.SalesRollupEntry.HOURLY_TABLE_NAME.equals(table);
+            SQLiteStatement replace = hourly ? mReplaceHourly : mReplaceDaily;
+            if (replace == null) {
+                replace = mDatabase.compileStatement("INSERT OR REPLACE INTO " + table + " ("
+                        + ProductContract.SalesRollupEntry.COLUMN_PRODUCT_ID + ", "
+                        + ProductContract.SalesRollupEntry.COLUMN_BUCKET + ", "
+                        + ProductContract.SalesRollupEntry.COLUMN_UNITS_SOLD + ", "
+                        + ProductContract.SalesRollupEntry.COLUMN_NET_CHANGE + ") VALUES (?, ?, ?, ?)");
+                if (hourly)
+                    mReplaceHourly = replace;
+                else
+                    mReplaceDaily = replace;
+            }
+            replace.bindLong(1, productId);
+            replace.bindLong(2, bucket);
+            replace.bindLong(3, unitsSold);
+            replace.bindLong(4, netChange);
+            replace.executeInsert();
+        }
+
+        void putJournalSequence(long sequence) {
+            mDatabase.execSQL("UPDATE " + ProductContract.SaleJournalEntry.TABLE_NAME + " SET "
+                    + ProductContract.SaleJournalEntry.COLUMN_SEQUENCE + " = ?", new Object[]{sequence});
+        }
+
+        void close() {
+            SQLiteStatement[] statements = {mDeleteProduct, mNextVersion, mInsertTombstone, mUpdateProduct,
+                    mInsertProduct, mInsertSale, mReplaceHourly, mReplaceDaily};
+            for (SQLiteStatement statement : statements) {
+                if (statement != null)
+                    statement.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.android.myinventory.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Helpers to decode pictures no bigger than they are shown
+ */
+public final class PictureDecoder {
+    /**
+     * To prevent from accidentally instantiating the helper class
+     */
+    private PictureDecoder() {
+    }
+
+    /**
+     * Calculate the largest power of 2 to divide a picture by, keeping both sides at least as large as requested
+     *
+     * @param width     of the picture
+     * @param height    of the picture
+     * @param reqWidth  requested width
+     * @param reqHeight requested height
+     * @return value for {@link BitmapFactory.Options#inSampleSize}
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0)
+            return inSampleSize;
+
+        while (width / (inSampleSize * 2) >= reqWidth && height / (inSampleSize * 2) >= reqHeight)
+            inSampleSize *= 2;
+        return inSampleSize;
+    }
+
+    /**
+     * Decode a picture file, subsampled to about the requested size
+     *
+     * @return the decoded bitmap, or null if the file can't be decoded
+     */
+    public static Bitmap decodeSampled(File file, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /**
+     * Decode a picture streamed from a content URI, subsampled to about the requested size
+     * The stream is opened twice: once to read the picture size, once to decode it
+     *
+     * @param resolver  to open the URI
+     * @param uri       of the picture
+     * @param reqWidth  requested width
+     * @param reqHeight requested height
+     * @param reuse     bitmap no longer shown to decode into if it's large enough, or null
+     * @return the decoded mutable bitmap, or null if the picture can't be decoded
+     */
+    public static Bitmap decodeSampled(ContentResolver resolver, Uri uri, int reqWidth, int reqHeight, Bitmap reuse)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(resolver, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        if (reuse != null && canReuse(reuse, options))
+            options.inBitmap = reuse;
+
+        try {
+            return decodeStream(resolver, uri, options);
+        } catch (IllegalArgumentException e) {
+            /**
+             * The decoder refused the bitmap to reuse, so decode into a new one
+             */
+            options.inBitmap = null;
+            return decodeStream(resolver, uri, options);
+        }
+    }
+
+    /**
+     * Check if a picture decoded with the given options fits in a bitmap
+     * Before KitKat the bitmap must have the exact size of a picture decoded without subsampling
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean canReuse(Bitmap candidate, BitmapFactory.Options options) {
+        if (!candidate.isMutable() || candidate.isRecycled())
+            return false;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            return width * height * 4 <= candidate.getAllocationByteCount();
+        }
+        return options.inSampleSize == 1 && candidate.getWidth() == options.outWidth
+                && candidate.getHeight() == options.outHeight;
+    }
+
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null)
+            throw new FileNotFoundException("Cannot open " + uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Crop the center square of a bitmap and scale it to the given size
+     *
+     * @param source bitmap, which is not recycled
+     * @param size   of the sides of the result
+     * @return the new square bitmap
+     */
+    public static Bitmap centerCrop(Bitmap source, int size) {
+        int side = Math.min(source.getWidth(), source.getHeight());
+        int left = (source.getWidth() - side) / 2;
+        int top = (source.getHeight() - side) / 2;
+
+        Bitmap result = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(source, new Rect(left, top, left + side, top + side), new Rect(0, 0, size, size), null);
+        return result;
+    }
+}
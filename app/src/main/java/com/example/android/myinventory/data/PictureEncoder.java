@@ -0,0 +1,180 @@
+package com.example.android.myinventory.data;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+
+import com.example.android.myinventory.R;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes the product pictures into a compact lossy format, within a byte budget and a dimension cap
+ * Encoding is slow, so it's meant to run off the UI thread
+ */
+public class PictureEncoder {
+    /**
+     * Quality is lowered by this step while the picture is over the byte budget
+     */
+    private static final int QUALITY_STEP = 10;
+    /**
+     * Lowest quality before the picture is scaled down instead
+     */
+    private static final int MIN_QUALITY = 40;
+    /**
+     * Factor the picture is scaled by when it's still over the byte budget at the lowest quality
+     */
+    private static final float SCALE_STEP = 0.75f;
+    /**
+     * The picture is never scaled below this dimension to fit the byte budget
+     */
+    private static final int MIN_DIMENSION = 64;
+
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+    private final int mMaxBytes;
+    private final int mMaxDimension;
+
+    /**
+     * Constructs a new {@link PictureEncoder}
+     *
+     * @param format       to encode into, {@link Bitmap.CompressFormat#WEBP} or {@link Bitmap.CompressFormat#JPEG}
+     * @param quality      to encode at first, from 0 to 100
+     * @param maxBytes     budget of an encoded picture, which is kept if the lowest quality and size can't meet it
+     * @param maxDimension cap of the width and height of an encoded picture
+     */
+    public PictureEncoder(Bitmap.CompressFormat format, int quality, int maxBytes, int maxDimension) {
+        if (quality < 0 || quality > 100)
+            throw new IllegalArgumentException("Invalid picture quality " + quality);
+        if (maxBytes <= 0 || maxDimension <= 0)
+            throw new IllegalArgumentException("Invalid picture budget " + maxBytes + " bytes, " + maxDimension + " px");
+
+        mFormat = format;
+        mQuality = quality;
+        mMaxBytes = maxBytes;
+        mMaxDimension = maxDimension;
+    }
+
+    /**
+     * Constructs a {@link PictureEncoder} configured by the app resources
+     *
+     * @param context of the app
+     */
+    public static PictureEncoder fromResources(Context context) {
+        Resources resources = context.getResources();
+        Bitmap.CompressFormat format = resources.getBoolean(R.bool.picture_use_webp)
+                ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+        return new PictureEncoder(format, resources.getInteger(R.integer.picture_quality),
+                resources.getInteger(R.integer.picture_max_bytes), resources.getInteger(R.integer.picture_max_dimension));
+    }
+
+    /**
+     * Get the cap of the width and height of an encoded picture
+     */
+    public int getMaxDimension() {
+        return mMaxDimension;
+    }
+
+    /**
+     * Get the budget of an encoded picture
+     */
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Encode a picture
+     * The picture is first scaled down to the dimension cap, then the quality and the size are lowered
+     * until it fits the byte budget
+     *
+     * @param bitmap to encode, which is not recycled
+     * @return the encoded picture
+     */
+    public Result encode(Bitmap bitmap) {
+        int sourceBytes = bitmap.getRowBytes() * bitmap.getHeight();
+        Bitmap scaled = scaleToFit(bitmap, mMaxDimension);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(mMaxBytes);
+        int quality = mQuality;
+        while (true) {
+            stream.reset();
+            scaled.compress(mFormat, quality, stream);
+            if (stream.size() <= mMaxBytes)
+                break;
+
+            if (quality - QUALITY_STEP >= MIN_QUALITY) {
+                quality -= QUALITY_STEP;
+            } else {
+                int dimension = (int) (Math.max(scaled.getWidth(), scaled.getHeight()) * SCALE_STEP);
+                if (dimension < MIN_DIMENSION)
+                    break;
+                Bitmap smaller = scaleToFit(scaled, dimension);
+                if (scaled != bitmap)
+                    scaled.recycle();
+                scaled = smaller;
+            }
+        }
+
+        Result result = new Result(stream.toByteArray(), sourceBytes, scaled.getWidth(), scaled.getHeight(), quality);
+        if (scaled != bitmap)
+            scaled.recycle();
+        return result;
+    }
+
+    /**
+     * Scale a bitmap down, keeping its aspect ratio, so that neither side is larger than the given dimension
+     *
+     * @return the scaled bitmap, or the same bitmap if it already fits
+     */
+    private static Bitmap scaleToFit(Bitmap bitmap, int dimension) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= dimension && height <= dimension)
+            return bitmap;
+
+        float scale = (float) dimension / Math.max(width, height);
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    /**
+     * An encoded picture, with what it took to fit the budget
+     */
+    public static class Result {
+        /**
+         * Encoded bytes
+         */
+        public final byte[] data;
+        /**
+         * Size of the picture before encoding, in bytes
+         */
+        public final int sourceBytes;
+        /**
+         * Dimensions and quality the picture was encoded at
+         */
+        public final int width;
+        public final int height;
+        public final int quality;
+
+        Result(byte[] data, int sourceBytes, int width, int height, int quality) {
+            this.data = data;
+            this.sourceBytes = sourceBytes;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+        }
+
+        /**
+         * Get the bytes saved compared to the given size
+         */
+        public long getSavedBytes(long previousBytes) {
+            return previousBytes - data.length;
+        }
+
+        @Override
+        public String toString() {
+            return data.length + " bytes (" + width + "x" + height + " at quality " + quality + ", "
+                    + (sourceBytes > 0 ? 100 - data.length * 100L / sourceBytes : 0) + "% smaller than decoded)";
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.example.android.myinventory.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed store for the product pictures
+ * Every picture is kept as a file under the app's files dir, named after the hash of its bytes,
+ * so the products table only has to hold that hash as a reference
+ * <p>
+ * The same bytes always get the same file, so a picture being stored for a new row can be the one another thread is
+ * about to delete because no row refers to it any more. A stored picture is pinned until the row holding it is
+ * committed, and a picture is only deleted through {@link #release(String, References)} while nothing pins it.
+ */
+public class PictureStore {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = PictureStore.class.getSimpleName();
+    /**
+     * Name of the directory holding the pictures
+     */
+    private static final String DIRECTORY_NAME = "pictures";
+    /**
+     * Name of the directory holding the thumbnails, named after the reference of their picture
+     */
+    private static final String THUMBNAIL_DIRECTORY_NAME = "thumbnails";
+    /**
+     * Size of the sides of the square thumbnails, in pixels
+     * Every thumbnail has exactly this size, so decoded thumbnails can reuse each other's memory
+     */
+    public static final int THUMBNAIL_SIZE = 128;
+    /**
+     * JPEG quality of the thumbnails
+     */
+    private static final int THUMBNAIL_QUALITY = 85;
+    /**
+     * Algorithm used to hash the picture bytes into a reference
+     */
+    private static final String HASH_ALGORITHM = "SHA-1";
+    /**
+     * Length of a reference, which is the hex encoded SHA-1 hash
+     */
+    private static final int REFERENCE_LENGTH = 40;
+    /**
+     * Size of the buffer used to stream the picture bytes
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Prefix and suffix of the temporary files a picture or a thumbnail is written to before being renamed
+     */
+    private static final String TEMP_PREFIX = "incoming";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Number of pins of the pictures stored for rows not committed yet, by reference, guarded by itself
+     * Every store of the process shares them, as they all store into the same directory
+     */
+    private static final Map<String, Integer> sPins = new HashMap<>();
+    /**
+     * Pictures whose references are being checked by a release, by reference, guarded by {@link #sPins}
+     * Lets a release tell if a row may have taken its picture while the references were being checked
+     */
+    private static final Map<String, Release> sReleases = new HashMap<>();
+    /**
+     * Whether the temporary files left by a previous process were deleted, guarded by the class
+     */
+    private static boolean sTempFilesDeleted;
+
+    /**
+     * Directory holding the pictures
+     */
+    private final File mDirectory;
+    /**
+     * Directory holding the thumbnails
+     */
+    private final File mThumbnailDirectory;
+
+    /**
+     * Constructs a new instance of {@link PictureStore}
+     *
+     * @param context of the app
+     */
+    public PictureStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+        mThumbnailDirectory = new File(context.getFilesDir(), THUMBNAIL_DIRECTORY_NAME);
+        deleteTempFiles(mDirectory, mThumbnailDirectory);
+    }
+
+    /**
+     * Delete the temporary files a process killed while storing a picture or a thumbnail left behind
+     * Only done by the first store of the process, the later ones could delete a file another store is writing
+     */
+    private static synchronized void deleteTempFiles(File... directories) {
+        if (sTempFilesDeleted)
+            return;
+        sTempFilesDeleted = true;
+
+        for (File directory : directories) {
+            File[] children = directory.listFiles();
+            if (children == null)
+                continue;
+            for (File file : children) {
+                String name = file.getName();
+                if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX) && !file.delete())
+                    Log.w(LOG_TAG, "Failed to delete temporary file " + file);
+            }
+        }
+    }
+
+    /**
+     * Store the given picture bytes
+     *
+     * @param data picture bytes
+     * @return reference of the stored picture, pinned until {@link #unpin(String)}
+     */
+    public String put(byte[] data) throws IOException {
+        return put(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Stream the given picture into the store
+     * The bytes are written to a temporary file while being hashed, and the file is then renamed to its hash,
+     * so a reader never sees a partially written picture
+     * The picture is pinned along with the rename, so it can't be released before the caller's row holds it
+     *
+     * @param in stream of the picture bytes, which is not closed by this method
+     * @return reference of the stored picture, pinned until {@link #unpin(String)}
+     */
+    public String put(InputStream in) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("Cannot create picture directory " + mDirectory);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, mDirectory);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        }
+        out.close();
+
+        String reference = toHex(digest.digest());
+        File target = getFile(reference);
+
+        synchronized (sPins) {
+            /**
+             * The same bytes are already stored, so just drop the copy
+             */
+            if (target.exists())
+                temp.delete();
+            else if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("Cannot store picture " + reference);
+            }
+            pinLocked(reference);
+        }
+
+        return reference;
+    }
+
+    /**
+     * Pin a picture already in the store, for a row about to refer to it
+     *
+     * @param reference of the picture
+     * @return true if the picture is stored and now pinned until {@link #unpin(String)}, false if it isn't stored
+     */
+    public boolean pin(String reference) {
+        synchronized (sPins) {
+            if (!contains(reference))
+                return false;
+            pinLocked(reference);
+            return true;
+        }
+    }
+
+    private static void pinLocked(String reference) {
+        Integer pins = sPins.get(reference);
+        sPins.put(reference, pins == null ? 1 : pins + 1);
+        Release release = sReleases.get(reference);
+        if (release != null)
+            release.pins++;
+    }
+
+    /**
+     * Drop a pin of {@link #put(InputStream)} or {@link #pin(String)}, once the row holding the picture is
+     * committed or given up
+     *
+     * @param reference of the picture
+     */
+    public void unpin(String reference) {
+        synchronized (sPins) {
+            Integer pins = sPins.get(reference);
+            if (pins == null)
+                return;
+            if (pins == 1)
+                sPins.remove(reference);
+            else
+                sPins.put(reference, pins - 1);
+        }
+    }
+
+    /**
+     * Delete a stored picture and its thumbnail unless it's pinned or still referenced
+     * The references are checked without holding the pins, as the check may wait for a transaction pinning pictures.
+     * If the picture was pinned and unpinned meanwhile, its row may have been committed after the check, so the check
+     * is done again. Only the pins of this picture count, the ones of the other pictures never repeat the check.
+     *
+     * @param reference  of the picture
+     * @param references tells if a committed row refers to the picture
+     * @return true if the picture was deleted
+     */
+    public boolean release(String reference, References references) {
+        if (!isValidReference(reference))
+            return false;
+        while (true) {
+            Release release;
+            int pins;
+            synchronized (sPins) {
+                if (sPins.containsKey(reference))
+                    return false;
+                release = sReleases.get(reference);
+                if (release == null) {
+                    release = new Release();
+                    sReleases.put(reference, release);
+                }
+                release.releasers++;
+                pins = release.pins;
+            }
+
+            boolean referenced;
+            try {
+                referenced = references.isReferenced(reference);
+            } catch (RuntimeException e) {
+                synchronized (sPins) {
+                    endRelease(reference, release);
+                }
+                throw e;
+            }
+
+            synchronized (sPins) {
+                endRelease(reference, release);
+                if (referenced || sPins.containsKey(reference))
+                    return false;
+                if (release.pins == pins)
+                    return delete(reference);
+            }
+        }
+    }
+
+    /**
+     * Stop counting the pins of a picture for a release, once no release of it checks its references any more
+     * Must hold {@link #sPins}
+     */
+    private static void endRelease(String reference, Release release) {
+        if (--release.releasers == 0)
+            sReleases.remove(reference);
+    }
+
+    /**
+     * Get the file of a stored picture
+     *
+     * @param reference of the picture
+     * @return file of the picture, which may not exist
+     */
+    public File getFile(String reference) {
+        if (!isValidReference(reference))
+            throw new IllegalArgumentException("Invalid picture reference " + reference);
+        return new File(mDirectory, reference);
+    }
+
+    /**
+     * Check if the picture with the given reference is in the store
+     */
+    public boolean contains(String reference) {
+        return isValidReference(reference) && getFile(reference).isFile();
+    }
+
+    /**
+     * Delete a stored picture and its thumbnail
+     *
+     * @param reference of the picture
+     * @return true if the picture was deleted
+     */
+    private boolean delete(String reference) {
+        getThumbnailFile(reference).delete();
+        return getFile(reference).delete();
+    }
+
+    /**
+     * Get the thumbnail file of a stored picture
+     *
+     * @param reference of the picture
+     * @return file of the thumbnail, which may not exist
+     */
+    public File getThumbnailFile(String reference) {
+        if (!isValidReference(reference))
+            throw new IllegalArgumentException("Invalid picture reference " + reference);
+        return new File(mThumbnailDirectory, reference);
+    }
+
+    /**
+     * Make the thumbnail of a stored picture, unless it already exists
+     * The thumbnail is the center square of the picture, scaled to {@link #THUMBNAIL_SIZE}
+     *
+     * @param reference of the picture
+     * @return file of the thumbnail
+     */
+    public File putThumbnail(String reference) throws IOException {
+        File target = getThumbnailFile(reference);
+        if (target.isFile())
+            return target;
+        if (!mThumbnailDirectory.isDirectory() && !mThumbnailDirectory.mkdirs())
+            throw new IOException("Cannot create thumbnail directory " + mThumbnailDirectory);
+
+        Bitmap picture = PictureDecoder.decodeSampled(getFile(reference), THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+        if (picture == null)
+            throw new IOException("Cannot decode picture " + reference);
+        Bitmap thumbnail = PictureDecoder.centerCrop(picture, THUMBNAIL_SIZE);
+        picture.recycle();
+
+        File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, mThumbnailDirectory);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            try {
+                if (!thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out))
+                    throw new IOException("Cannot compress thumbnail " + reference);
+            } finally {
+                thumbnail.recycle();
+                out.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            /**
+             * A thumbnail in place is never made again, so a partial one must not get there
+             */
+            temp.delete();
+            throw e;
+        }
+
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            if (!target.isFile())
+                throw new IOException("Cannot store thumbnail " + reference);
+        }
+        return target;
+    }
+
+    /**
+     * Check that the given value looks like a picture reference
+     * Prevents from escaping the picture directory with a crafted reference
+     */
+    public static boolean isValidReference(String reference) {
+        if (reference == null || reference.length() != REFERENCE_LENGTH)
+            return false;
+
+        for (int i = 0; i < REFERENCE_LENGTH; i++) {
+            char c = reference.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases of a picture checking its references, and the pins the picture got since the first of them started
+     */
+    private static class Release {
+        int releasers;
+        int pins;
+    }
+
+    /**
+     * Tells if a picture is still referenced
+     */
+    public interface References {
+        /**
+         * @param reference of the picture
+         * @return true if a committed row refers to the picture
+         */
+        boolean isReferenced(String reference);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
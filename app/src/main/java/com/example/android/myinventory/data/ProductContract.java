@@ -1,6 +1,7 @@
 package com.example.android.myinventory.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -30,6 +31,261 @@ public final class ProductContract {
      * Possible path appended to base content URI for possible URI's
      */
     public static final String PATH_PRODUCTS = "products";
+    /**
+     * Path appended to a single product URI to access its picture
+     */
+    public static final String PATH_PICTURE = "picture";
+    /**
+     * Path appended to a single product URI to access the thumbnail of its picture
+     */
+    public static final String PATH_THUMBNAIL = "thumbnail";
+    /**
+     * Path appended to a single product URI to record the sale of one unit
+     */
+    public static final String PATH_SALE = "sale";
+    /**
+     * Path appended to a single product URI to adjust its quantity by {@link #QUERY_PARAMETER_DELTA}
+     * An update on a sale or adjust URI returns 1 if the quantity changed, or 0 if the product doesn't exist or
+     * doesn't have enough stock left, see {@link #METHOD_ADJUST_QUANTITY} to also get the new quantity
+     */
+    public static final String PATH_ADJUST = "adjust";
+    /**
+     * Query parameter holding the signed, non-zero quantity change of an adjust URI
+     */
+    public static final String QUERY_PARAMETER_DELTA = "delta";
+    /**
+     * Path appended to the products URI to search the products by name
+     */
+    public static final String PATH_SEARCH = "search";
+    /**
+     * Query parameter holding the text searched, every word of it is matched as a prefix
+     */
+    public static final String QUERY_PARAMETER_QUERY = "q";
+    /**
+     * Query parameter limiting the number of products returned
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    /**
+     * Query parameters of the key of the last product of the previous page,
+     * the query returns the products following it in {@link ProductEntry#PAGE_SORT_ORDER}
+     */
+    public static final String QUERY_PARAMETER_AFTER_NAME = "after_name";
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+    /**
+     * Query parameters of the key of the first product of the next page,
+     * the query returns the products preceding it in {@link ProductEntry#PAGE_REVERSE_SORT_ORDER}, nearest first
+     */
+    public static final String QUERY_PARAMETER_BEFORE_NAME = "before_name";
+    public static final String QUERY_PARAMETER_BEFORE_ID = "before_id";
+    /**
+     * Path appended to the products URI to list the products at or below their reorder level
+     */
+    public static final String PATH_LOW_STOCK = "low_stock";
+    /**
+     * Path appended to the products URI to read the inventory totals
+     */
+    public static final String PATH_STATS = "stats";
+    /**
+     * Path appended to the products URI to read the ledger of quantity changes
+     */
+    public static final String PATH_SALES = "sales";
+    /**
+     * Paths appended to the sales URI to read the hourly and daily totals of the quantity changes
+     */
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_DAILY = "daily";
+    /**
+     * Path appended to the products URI to stream an export of all the products, in the format given by
+     * {@link #QUERY_PARAMETER_FORMAT}
+     */
+    public static final String PATH_EXPORT = "export";
+    /**
+     * Query parameter of the export URI holding the format, {@link #EXPORT_FORMAT_CSV}, {@link #EXPORT_FORMAT_JSON}
+     * or {@link #EXPORT_FORMAT_ZIP}
+     */
+    public static final String QUERY_PARAMETER_FORMAT = "format";
+    /**
+     * Query parameter of the export URI, true to put the pictures in a ZIP export
+     */
+    public static final String QUERY_PARAMETER_PICTURES = "pictures";
+    /**
+     * Formats of the exports
+     * A ZIP export holds the CSV export, and the pictures if asked
+     */
+    public static final String EXPORT_FORMAT_CSV = "csv";
+    public static final String EXPORT_FORMAT_JSON = "json";
+    public static final String EXPORT_FORMAT_ZIP = "zip";
+    /**
+     * Path appended to the products URI that is notified when the list of products changes its rows or their order
+     * It's only used for change notifications, so changing the values of a single product doesn't requery the lists
+     */
+    public static final String PATH_LIST = "list";
+    /**
+     * Query parameter of the change notification of a single product, holding the operation done on the product
+     */
+    public static final String QUERY_PARAMETER_OP = "op";
+    /**
+     * Operations of the change notifications of a single product
+     */
+    public static final String OP_INSERT = "insert";
+    public static final String OP_UPDATE = "update";
+    public static final String OP_DELETE = "delete";
+
+    /**
+     * Provider method applying a group of quantity changes in one transaction
+     * Takes {@link #EXTRA_IDS}, {@link #EXTRA_DELTAS} and {@link #EXTRA_SEQUENCES}, and returns the
+     * highest journal sequence applied so far in {@link #EXTRA_SEQUENCE} and the adjusted products in
+     * {@link #EXTRA_ADJUSTED_IDS}
+     * No change is notified, the caller notifies the adjusted products once it stopped showing the changes itself
+     */
+    public static final String METHOD_APPLY_ADJUSTMENTS = "apply_adjustments";
+    /**
+     * long[] of the product IDs to adjust
+     */
+    public static final String EXTRA_IDS = "ids";
+    /**
+     * int[] of the signed quantity changes, one per ID
+     */
+    public static final String EXTRA_DELTAS = "deltas";
+    /**
+     * long[] of the journal sequences of the changes, one per ID
+     * A change whose sequence was already applied is skipped, so a journal can safely be replayed
+     */
+    public static final String EXTRA_SEQUENCES = "sequences";
+    /**
+     * long holding the highest journal sequence applied
+     */
+    public static final String EXTRA_SEQUENCE = "sequence";
+    /**
+     * long[] of the products whose quantity the adjustments changed
+     */
+    public static final String EXTRA_ADJUSTED_IDS = "adjusted_ids";
+    /**
+     * long[] of the products the adjustments took from above their reorder level to at or below it
+     */
+    public static final String EXTRA_LOW_STOCK_IDS = "low_stock_ids";
+
+    /**
+     * Provider method dropping the old ledger entries and hourly totals, which the daily totals already cover
+     * Takes {@link #EXTRA_LEDGER_BEFORE} and {@link #EXTRA_HOURLY_BEFORE}, and returns the number of rows deleted
+     * in {@link #EXTRA_DELETED}
+     */
+    public static final String METHOD_COMPACT_SALES = "compact_sales";
+    /**
+     * long holding the time(ms) before which the ledger entries are dropped
+     */
+    public static final String EXTRA_LEDGER_BEFORE = "ledger_before";
+    /**
+     * long holding the time(ms) before which the hourly totals are dropped
+     */
+    public static final String EXTRA_HOURLY_BEFORE = "hourly_before";
+    /**
+     * int holding the number of rows deleted
+     */
+    public static final String EXTRA_DELETED = "deleted";
+
+    /**
+     * Provider method taking a snapshot of the db while it's read and written, a full one or one of the rows
+     * changed since the previous snapshot
+     * Returns {@link #EXTRA_INCREMENTAL}, {@link #EXTRA_SNAPSHOT_BYTES}, {@link #EXTRA_ELAPSED_MILLIS}
+     * and {@link #EXTRA_WRITE_STALL_MILLIS}
+     */
+    public static final String METHOD_BACKUP = "backup";
+    /**
+     * Provider method replacing the db with the one rebuilt from the snapshots, after checking them
+     * Returns {@link #EXTRA_SNAPSHOT_COUNT}, {@link #EXTRA_ELAPSED_MILLIS} and {@link #EXTRA_WRITE_STALL_MILLIS}
+     */
+    public static final String METHOD_RESTORE = "restore";
+    /**
+     * boolean, true if the snapshot only holds the rows changed since the previous one
+     */
+    public static final String EXTRA_INCREMENTAL = "incremental";
+    /**
+     * long holding the size of the snapshot file in bytes
+     */
+    public static final String EXTRA_SNAPSHOT_BYTES = "snapshot_bytes";
+    /**
+     * int holding the number of snapshots restored
+     */
+    public static final String EXTRA_SNAPSHOT_COUNT = "snapshot_count";
+    /**
+     * long holding the time(ms) the backup or restore took
+     */
+    public static final String EXTRA_ELAPSED_MILLIS = "elapsed_millis";
+    /**
+     * long holding the time(ms) the writes of the db were held up by the backup or restore
+     */
+    public static final String EXTRA_WRITE_STALL_MILLIS = "write_stall_millis";
+
+    /**
+     * Provider method rewriting the next batch of rows of the pending schema migrations
+     * Returns {@link #EXTRA_MIGRATION_PENDING}
+     */
+    public static final String METHOD_MIGRATE = "migrate";
+    /**
+     * boolean, true if rows are left to rewrite
+     */
+    public static final String EXTRA_MIGRATION_PENDING = "migration_pending";
+
+    /**
+     * Provider method reading the counters of the cache of the products read by ID
+     * Returns {@link #EXTRA_CACHE_HITS} and {@link #EXTRA_CACHE_MISSES}
+     */
+    public static final String METHOD_ROW_CACHE_STATS = "row_cache_stats";
+    /**
+     * int holding the number of products served from the cache
+     */
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+    /**
+     * int holding the number of products read from the db on a cache miss
+     */
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+    /**
+     * Provider method starting the import of the catalog whose URI is the argument
+     * Returns in {@link #EXTRA_ROWS_DONE} the number of rows of the catalog an interrupted import of it wrote,
+     * or 0 once the progress of any other catalog is forgotten
+     */
+    public static final String METHOD_START_IMPORT = "start_import";
+    /**
+     * Provider method changing the quantity of a product like an update on its adjust URI
+     * Takes {@link #EXTRA_PRODUCT_ID} and {@link #EXTRA_DELTA}, and returns the new quantity of the product in
+     * {@link #EXTRA_QUANTITY}, or {@link ProductEntry#ADJUST_REJECTED} if nothing was changed
+     */
+    public static final String METHOD_ADJUST_QUANTITY = "adjust_quantity";
+    /**
+     * long holding the ID of a product
+     */
+    public static final String EXTRA_PRODUCT_ID = "product_id";
+    /**
+     * int holding a signed, non-zero quantity change
+     */
+    public static final String EXTRA_DELTA = "delta";
+    /**
+     * int holding the quantity of a product
+     */
+    public static final String EXTRA_QUANTITY = "quantity";
+    /**
+     * Provider method forgetting the progress of the finished import
+     */
+    public static final String METHOD_FINISH_IMPORT = "finish_import";
+    /**
+     * long holding the number of rows of the catalog imported
+     */
+    public static final String EXTRA_ROWS_DONE = "rows_done";
+    /**
+     * Provider method dropping stored pictures a writer gave up on, unless a product or the backup refers to them
+     * Takes {@link #EXTRA_PICTURES}, whose pins the caller already dropped
+     */
+    public static final String METHOD_RELEASE_PICTURES = "release_pictures";
+    /**
+     * String[] holding picture references of the {@link PictureStore}
+     */
+    public static final String EXTRA_PICTURES = "pictures";
+    /**
+     * Query parameter of a bulk insert of products from the catalog being imported: the number of rows of the catalog
+     * done once the products are written, stored in the same transaction
+     */
+    public static final String QUERY_PARAMETER_IMPORT_ROWS_DONE = "import_rows_done";
 
     /**
      * Inner class that defines constant values for the products db table
@@ -40,6 +296,15 @@ public final class ProductContract {
          * The content URI to access the product data in the provider
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRODUCTS);
+        /**
+         * The notification URI of the cursors listing products
+         * Notified on inserts, deletes and name changes, not on changes of other values of a single product
+         */
+        public static final Uri LIST_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LIST);
+        /**
+         * The content URI listing the products at or below their reorder level, lowest quantity first
+         */
+        public static final Uri LOW_STOCK_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LOW_STOCK);
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of products
          */
@@ -50,6 +315,14 @@ public final class ProductContract {
          */
         public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE +
                 "/" + CONTENT_AUTHORITY + "/" + PATH_PRODUCTS;
+        /**
+         * The MIME type of a product picture served by {@link #buildPictureUri(long)}
+         */
+        public static final String PICTURE_MIME_TYPE = "image/*";
+        /**
+         * The MIME type of a product thumbnail served by {@link #buildThumbnailUri(long)}
+         */
+        public static final String THUMBNAIL_MIME_TYPE = "image/jpeg";
         /**
          * Name of db table for products
          */
@@ -81,10 +354,464 @@ public final class ProductContract {
          */
         public final static String COLUMN_PRODUCT_QUANTITY = "quantity";
         /**
-         * Picture of the product
+         * Quantity at or below which the product should be restocked, 0 by default
          * <p>
-         * Type: BLOB
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_REORDER_LEVEL = "reorder_level";
+        /**
+         * Reference to the picture of the product in the {@link PictureStore}
+         * Insert and update take the picture bytes(byte[]) for this key, which the provider moves into the store.
+         * Read the picture itself by opening {@link #buildPictureUri(long)}
+         * <p>
+         * Type: TEXT
          */
         public final static String COLUMN_PRODUCT_PICTURE = "picture";
+        /**
+         * Version of the last change of the product, set by the db on every insert and update
+         * Only the backups use it, to find the products changed since a snapshot
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ROW_VERSION = "row_version";
+
+        /**
+         * Selection of the products at or below their reorder level
+         * The low stock index is partial on this exact expression, so queries must use it as is to be served by it
+         */
+        public static final String LOW_STOCK_SELECTION = COLUMN_PRODUCT_QUANTITY + " <= " + COLUMN_PRODUCT_REORDER_LEVEL;
+        /**
+         * Sort order of the low stock products, matching the low stock index
+         */
+        public static final String LOW_STOCK_SORT_ORDER = COLUMN_PRODUCT_QUANTITY + " ASC";
+
+        /**
+         * Sort order of the pages of products, matching the name index
+         */
+        public static final String PAGE_SORT_ORDER = COLUMN_PRODUCT_NAME + " ASC, " + _ID + " ASC";
+        /**
+         * Sort order of the products returned before a key
+         */
+        public static final String PAGE_REVERSE_SORT_ORDER = COLUMN_PRODUCT_NAME + " DESC, " + _ID + " DESC";
+
+        /**
+         * Build the URI to stream the thumbnail of the picture of a product
+         *
+         * @param id of the product
+         * @return content URI of the thumbnail
+         */
+        public static Uri buildThumbnailUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon().appendPath(PATH_THUMBNAIL).build();
+        }
+
+        /**
+         * Build the URI notified when a single product changes
+         *
+         * @param id        of the product
+         * @param operation done on the product, {@link #OP_INSERT}, {@link #OP_UPDATE} or {@link #OP_DELETE}
+         * @return the product URI with the operation
+         */
+        public static Uri buildChangeUri(long id, String operation) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_OP, operation).build();
+        }
+
+        /**
+         * Quantity returned by {@link #METHOD_ADJUST_QUANTITY} when the product doesn't exist
+         * or doesn't have enough stock left, in which case nothing was changed
+         */
+        public static final int ADJUST_REJECTED = -1;
+
+        /**
+         * Build the URI to stream the picture of a product
+         *
+         * @param id of the product
+         * @return content URI of the picture
+         */
+        public static Uri buildPictureUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon().appendPath(PATH_PICTURE).build();
+        }
+
+        /**
+         * Build the URI to query a page of products
+         *
+         * @param afterName name of the last product of the previous page, or null for the first page
+         * @param afterId   ID of the last product of the previous page
+         * @param limit     maximum number of products in the page
+         * @return content URI of the page
+         */
+        public static Uri buildPageUri(String afterName, long afterId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if (afterName != null)
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_NAME, afterName)
+                        .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+            return builder.build();
+        }
+
+        /**
+         * Build the URI to bulk insert a chunk of the catalog being imported into, so the progress of the import is
+         * stored in the transaction of the chunk
+         *
+         * @param rowsDone number of rows of the catalog done with the chunk
+         * @return content URI of the products with the progress
+         */
+        public static Uri buildImportUri(long rowsDone) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_IMPORT_ROWS_DONE, String.valueOf(rowsDone)).build();
+        }
+
+        /**
+         * Build the URI to stream an export of all the products
+         *
+         * @param format   {@link #EXPORT_FORMAT_CSV}, {@link #EXPORT_FORMAT_JSON} or {@link #EXPORT_FORMAT_ZIP}
+         * @param pictures if the pictures go in a ZIP export
+         * @return content URI of the export, to open for reading
+         */
+        public static Uri buildExportUri(String format, boolean pictures) {
+            Uri.Builder builder = CONTENT_URI.buildUpon().appendPath(PATH_EXPORT)
+                    .appendQueryParameter(QUERY_PARAMETER_FORMAT, format);
+            if (pictures)
+                builder.appendQueryParameter(QUERY_PARAMETER_PICTURES, String.valueOf(true));
+            return builder.build();
+        }
+
+        /**
+         * Build the URI to search the products by name
+         *
+         * @param query text searched
+         * @param limit maximum number of products returned
+         * @return content URI of the search
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH)
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit)).build();
+        }
+
+        /**
+         * Build the URI to query the products preceding a key, nearest first
+         *
+         * @param beforeName name of the first product of the next page
+         * @param beforeId   ID of the first product of the next page
+         * @param limit      maximum number of products returned
+         * @return content URI of the products
+         */
+        public static Uri buildPageBeforeUri(String beforeName, long beforeId, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .appendQueryParameter(QUERY_PARAMETER_BEFORE_NAME, beforeName)
+                    .appendQueryParameter(QUERY_PARAMETER_BEFORE_ID, String.valueOf(beforeId)).build();
+        }
+
+        /**
+         * Build the URI to update in order to sell one unit of a product
+         *
+         * @param id of the product
+         * @return content URI of the sale
+         */
+        public static Uri buildSaleUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon().appendPath(PATH_SALE).build();
+        }
+
+        /**
+         * Build the URI to update in order to change the quantity of a product
+         *
+         * @param id    of the product
+         * @param delta signed quantity change, negative for units going out
+         * @return content URI of the adjustment
+         */
+        public static Uri buildAdjustUri(long id, int delta) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon().appendPath(PATH_ADJUST)
+                    .appendQueryParameter(QUERY_PARAMETER_DELTA, String.valueOf(delta)).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the sale journal db table
+     * The table has a single row remembering the last journal sequence applied to the products table
+     */
+    public static final class SaleJournalEntry implements BaseColumns {
+        /**
+         * Name of db table for the sale journal state
+         */
+        public static final String TABLE_NAME = "sale_journal";
+
+        /**
+         * Unique ID of the single row
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+        /**
+         * Last journal sequence applied
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SEQUENCE = "sequence";
+    }
+
+    /**
+     * Inner class that defines constant values for the catalog import db table
+     * The table has a single row remembering the catalog being imported and the number of its rows written
+     */
+    public static final class CatalogImportEntry implements BaseColumns {
+        /**
+         * Name of db table for the catalog import state
+         */
+        public static final String TABLE_NAME = "catalog_import";
+
+        /**
+         * Unique ID of the single row
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+        /**
+         * URI of the catalog being imported, or null
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_CATALOG = "catalog";
+        /**
+         * Number of rows of the catalog written
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ROWS_DONE = "rows_done";
+    }
+
+    /**
+     * Inner class that defines constant values for the row version db table
+     * The table has a single row holding the version of the last change of a product, which every change increments
+     */
+    public static final class RowVersionEntry implements BaseColumns {
+        /**
+         * Name of db table for the row version
+         */
+        public static final String TABLE_NAME = "row_version";
+
+        /**
+         * Unique ID of the single row
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+        /**
+         * Version of the last change
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_VERSION = "version";
+    }
+
+    /**
+     * Inner class that defines constant values for the db table of the deleted products
+     * Every deleted product leaves its ID with the version of the delete, so a backup can find the deletes since
+     * a snapshot
+     */
+    public static final class TombstoneEntry {
+        /**
+         * Name of db table for the deleted products
+         */
+        public static final String TABLE_NAME = "product_tombstones";
+
+        /**
+         * ID of the deleted product
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+        /**
+         * Version of the delete
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ROW_VERSION = "row_version";
+    }
+
+    /**
+     * Inner class that defines constant values for the inventory totals db table
+     * The table has a single row, kept up to date by triggers on every insert, update and delete of a product,
+     * so the totals are read without scanning the products
+     */
+    public static final class ProductStatsEntry implements BaseColumns {
+        /**
+         * The content URI to read the totals, notified whenever they may have changed
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(ProductEntry.CONTENT_URI, PATH_STATS);
+        /**
+         * The MIME type of the {@link #CONTENT_URI}
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_PRODUCTS + "_" + PATH_STATS;
+        /**
+         * Name of db table for the totals
+         */
+        public static final String TABLE_NAME = "product_stats";
+
+        /**
+         * Unique ID of the single row
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+        /**
+         * Number of products(SKUs)
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_COUNT = "product_count";
+        /**
+         * Sum of the quantities of all products
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOTAL_QUANTITY = "total_quantity";
+        /**
+         * Sum of price * quantity of all products
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCK_VALUE = "stock_value";
+        /**
+         * Number of products with a quantity of 0
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_OUT_OF_STOCK_COUNT = "out_of_stock_count";
+    }
+
+    /**
+     * Inner class that defines constant values for the sales ledger db table
+     * Every quantity change of a sale or an adjustment is appended to it, in the transaction of the change
+     */
+    public static final class SalesEntry implements BaseColumns {
+        /**
+         * The content URI to read the ledger, also notified whenever the hourly and daily totals change
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(ProductEntry.CONTENT_URI, PATH_SALES);
+        /**
+         * The MIME type of the {@link #CONTENT_URI}
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_SALES;
+        /**
+         * Name of db table for the ledger
+         */
+        public static final String TABLE_NAME = "sales";
+
+        /**
+         * Unique ID of the entry
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+        /**
+         * ID of the product whose quantity changed
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+        /**
+         * Signed quantity change actually applied, negative for a sale
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DELTA = "delta";
+        /**
+         * Time the change was applied, in ms since the epoch
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TIMESTAMP = "timestamp";
+    }
+
+    /**
+     * Inner class that defines constant values for the hourly and daily totals of the sales ledger
+     * A trigger adds every new ledger entry to the totals of its hour and day, so the sales of a product over a period
+     * are read from a few rows of the (product_id, bucket) primary key instead of scanning the ledger
+     */
+    public static final class SalesRollupEntry {
+        /**
+         * The content URIs to read the hourly and daily totals
+         */
+        public static final Uri HOURLY_URI = Uri.withAppendedPath(SalesEntry.CONTENT_URI, PATH_HOURLY);
+        public static final Uri DAILY_URI = Uri.withAppendedPath(SalesEntry.CONTENT_URI, PATH_DAILY);
+        /**
+         * The MIME type of the {@link #HOURLY_URI} and {@link #DAILY_URI}
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_SALES + "_rollup";
+        /**
+         * Names of db tables for the totals
+         */
+        public static final String HOURLY_TABLE_NAME = "sales_hourly";
+        public static final String DAILY_TABLE_NAME = "sales_daily";
+        /**
+         * Length of the buckets in ms
+         * The buckets start on whole UTC hours and days
+         */
+        public static final long HOUR_MILLIS = 60 * 60 * 1000L;
+        public static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+        /**
+         * ID of the product
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRODUCT_ID = "product_id";
+        /**
+         * Start of the hour or day, in ms since the epoch
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BUCKET = "bucket";
+        /**
+         * Number of units sold(taken out) in the bucket
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_UNITS_SOLD = "units_sold";
+        /**
+         * Sum of the signed quantity changes in the bucket
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_NET_CHANGE = "net_change";
+
+        /**
+         * Get the start of the bucket holding the given time
+         *
+         * @param time   in ms since the epoch
+         * @param length of the buckets, {@link #HOUR_MILLIS} or {@link #DAY_MILLIS}
+         */
+        public static long getBucket(long time, long length) {
+            return time - time % length;
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the full-text index of the products
+     * Each entry holds the searchable text of the product whose _id is its docid
+     */
+    public static final class ProductSearchEntry {
+        /**
+         * Name of the FTS table
+         */
+        public static final String TABLE_NAME = "products_fts";
+
+        /**
+         * ID of the indexed product
+         * <p>
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DOCID = "docid";
+        /**
+         * Name of the product
+         * <p>
+         * Type: TEXT
+         */
+        public final static String COLUMN_PRODUCT_NAME = ProductEntry.COLUMN_PRODUCT_NAME;
     }
 }
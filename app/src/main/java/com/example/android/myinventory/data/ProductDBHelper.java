@@ -1,8 +1,20 @@
 package com.example.android.myinventory.data;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Kat on 2017-03-22.
@@ -22,7 +34,213 @@ public class ProductDBHelper extends SQLiteOpenHelper {
      * DB version
      * To change the db schema, you must increment the db version
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 11;
+    /**
+     * Name of the preferences remembering the name of the current db file, which a restore changes
+     */
+    private static final String PREFS_NAME = "database";
+    private static final String KEY_DATABASE_NAME = "name";
+    /**
+     * Name of the index on the product names
+     */
+    private static final String NAME_INDEX = "products_name_index";
+    /**
+     * Name of the partial index on the quantities of the products at or below their reorder level
+     */
+    private static final String LOW_STOCK_INDEX = "products_low_stock_index";
+    /**
+     * Name of the index on the times of the sales ledger entries, which are compacted oldest first
+     */
+    private static final String SALES_TIMESTAMP_INDEX = "sales_timestamp_index";
+    /**
+     * Name of the indexes on the row versions of the products and of the deleted products
+     */
+    private static final String ROW_VERSION_INDEX = "products_row_version_index";
+    private static final String TOMBSTONE_VERSION_INDEX = "product_tombstones_row_version_index";
+    /**
+     * Name of the index on the picture references, which a picture is looked up in before being released
+     */
+    private static final String PICTURE_INDEX = "products_picture_index";
+    /**
+     * Name of the table of the migrations whose rows are still being rewritten in the background,
+     * with the checkpoint each one resumes from
+     */
+    private static final String MIGRATIONS_TABLE = "pending_migrations";
+    private static final String MIGRATION_VERSION = "version";
+    private static final String MIGRATION_CHECKPOINT = "checkpoint";
+    /**
+     * Number of products a background migration rewrites per transaction
+     * Small enough that the writes of the app wait at most a few ms for a batch
+     */
+    private static final int MIGRATION_BATCH_SIZE = 200;
+    /**
+     * Number of picture bytes read from a row at once when upgrading to version 2
+     * Stays well below the 2 MB limit of a CursorWindow
+     */
+    private static final int PICTURE_MIGRATION_CHUNK_SIZE = 256 * 1024;
+    /**
+     * Prefix of the reference a picture still stored as a BLOB is read as, followed by the ID of its product
+     * It's never a valid {@link PictureStore} reference, so the readers of the store skip it
+     */
+    private static final String LEGACY_PICTURE_PREFIX = "blob:";
+    /**
+     * Expression reading the picture column as a reference, also while the version 2 migration hasn't moved the
+     * BLOB of the product to the {@link PictureStore} yet
+     */
+    static final String PICTURE_REFERENCE = "CASE WHEN typeof(" + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE
+            + ") = 'blob' THEN '" + LEGACY_PICTURE_PREFIX + "' || " + ProductContract.ProductEntry._ID + " ELSE "
+            + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + " END";
+    /**
+     * Selection of the products referring to the picture given as argument, read from the picture index
+     * The index is partial on the pictures stored as references, so a BLOB the version 2 migration hasn't moved yet
+     * isn't copied into it; queries must use this exact expression to be served by it
+     */
+    private static final String PICTURE_INDEX_SELECTION = "typeof("
+            + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + ") = 'text'";
+    static final String PICTURE_SELECTION = ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + " = ? AND "
+            + PICTURE_INDEX_SELECTION;
+
+    /**
+     * Store holding the product pictures
+     */
+    private final PictureStore mPictureStore;
+    /**
+     * Pictures moved into the store by the transaction running on the current thread
+     * They stay pinned until the rows referring to them are committed
+     */
+    private final ThreadLocal<List<String>> mMovedPictures = new ThreadLocal<List<String>>() {
+        @Override
+        protected List<String> initialValue() {
+            return new ArrayList<>();
+        }
+    };
+    /**
+     * Journal mode and pragmas of the connection
+     */
+    private final DatabaseSettings mSettings;
+    /**
+     * True once a restored db took the place of this one, it's never opened again then
+     */
+    private boolean mReplaced;
+    /**
+     * Steps of the schema migration, oldest first
+     */
+    private final Migration[] mMigrations = {
+            /**
+             * Version 2 keeps the pictures in the {@link PictureStore} and only a reference in the table
+             * The pictures are moved in the background, meanwhile the picture column is read through
+             * {@link #PICTURE_REFERENCE} and a picture still in the table is moved when it's opened
+             */
+            new Migration(2, true) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                }
+
+                @Override
+                long migrateBatch(SQLiteDatabase db, long checkpoint) {
+                    return movePicturesToStore(db, checkpoint);
+                }
+            },
+            /**
+             * Version 3 adds the sale journal state
+             */
+            new Migration(3, false) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createSaleJournalTable(db);
+                }
+            },
+            /**
+             * Version 4 adds the index of the pages of products
+             */
+            new Migration(4, false) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createNameIndex(db);
+                }
+            },
+            /**
+             * Version 5 adds the full-text index of the product names
+             * The index is filled in the background, the search only misses the products not in it yet meanwhile
+             */
+            new Migration(5, true) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createSearchIndex(db);
+                }
+
+                @Override
+                long migrateBatch(SQLiteDatabase db, long checkpoint) {
+                    return fillSearchIndex(db, checkpoint);
+                }
+            },
+            /**
+             * Version 6 adds the inventory totals
+             * They're summed up right away, the triggers can only keep totals right that start right
+             */
+            new Migration(6, false) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createStatsTable(db);
+                }
+            },
+            /**
+             * Version 7 adds the reorder level of the products and the index of the low stock products
+             * Adding a column with a default doesn't rewrite the table
+             */
+            new Migration(7, false) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ProductContract.ProductEntry.TABLE_NAME + " ADD COLUMN "
+                            + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL + " INTEGER NOT NULL DEFAULT 0;");
+                    createLowStockIndex(db);
+                }
+            },
+            /**
+             * Version 8 adds the sales ledger and its totals, starting empty
+             */
+            new Migration(8, false) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createSalesTables(db);
+                }
+            },
+            /**
+             * Version 9 adds the row versions the backups find the changes with
+             * The existing products get their version in the background, backups wait for it
+             */
+            new Migration(9, true) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ProductContract.ProductEntry.TABLE_NAME + " ADD COLUMN "
+                            + ProductContract.ProductEntry.COLUMN_ROW_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+                    createRowVersionTables(db);
+                }
+
+                @Override
+                long migrateBatch(SQLiteDatabase db, long checkpoint) {
+                    return assignRowVersions(db, checkpoint);
+                }
+            },
+            /**
+             * Version 10 adds the catalog import state
+             */
+            new Migration(10, false) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createCatalogImportTable(db);
+                }
+            },
+            /**
+             * Version 11 adds the index of the picture references
+             */
+            new Migration(11, false) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createPictureIndex(db);
+                }
+            },
+    };
 
     /**
      * Constructs a new instance of {@link ProductDBHelper}
@@ -30,7 +248,89 @@ public class ProductDBHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public ProductDBHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, getCurrentDatabaseName(context), DatabaseSettings.fromResources(context));
+    }
+
+    /**
+     * Constructs a new instance of {@link ProductDBHelper} on another db file
+     *
+     * @param context  of the app
+     * @param name     of the db file
+     * @param settings of the connection
+     */
+    public ProductDBHelper(Context context, String name, DatabaseSettings settings) {
+        super(context, name, null, DATABASE_VERSION);
+        mPictureStore = new PictureStore(context);
+        mSettings = settings;
+    }
+
+    /**
+     * Get the name of the current db file, {@link #DATABASE_NAME} until a backup is restored
+     *
+     * @param context of the app
+     */
+    public static String getCurrentDatabaseName(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_DATABASE_NAME, DATABASE_NAME);
+    }
+
+    /**
+     * Make another db file the current one
+     * It's written at once, so the app opens the right file however the process ends
+     *
+     * @param context of the app
+     * @param name    of the db file
+     * @return true if it was written
+     */
+    static boolean setCurrentDatabaseName(Context context, String name) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_DATABASE_NAME, name).commit();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (mReplaced)
+            throw new IllegalStateException(getDatabaseName() + " was replaced by a restored db");
+        return super.getWritableDatabase();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        if (mReplaced)
+            throw new IllegalStateException(getDatabaseName() + " was replaced by a restored db");
+        return super.getReadableDatabase();
+    }
+
+    /**
+     * Close the db for good, once a restored db took its place
+     * Operations already running on it finish, later ones fail instead of opening it again
+     */
+    synchronized void closeReplaced() {
+        mReplaced = true;
+        close();
+    }
+
+    /**
+     * Called when the connection is opened, before the db is created or upgraded
+     *
+     * @param db being configured
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        mSettings.apply(db);
+    }
+
+    /**
+     * Called when the db is opened
+     * Before Jelly Bean there's no onConfigure, so the connection is configured here, after create or upgrade
+     *
+     * @param db opened
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+            mSettings.apply(db);
     }
 
     /**
@@ -48,21 +348,637 @@ public class ProductDBHelper extends SQLiteOpenHelper {
                 + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + " TEXT NOT NULL, "
                 + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + " INTEGER NOT NULL DEFAULT 0, "
                 + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
-                + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + " BLOB NOT NULL);";
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + " TEXT NOT NULL, "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL + " INTEGER NOT NULL DEFAULT 0, "
+                + ProductContract.ProductEntry.COLUMN_ROW_VERSION + " INTEGER NOT NULL DEFAULT 0);";
 
         /**
          * execute the SQL statement
          */
         db.execSQL(SQL_CREATE_PRODUCTS_TABLE);
+        createSaleJournalTable(db);
+        createCatalogImportTable(db);
+        createNameIndex(db);
+        createPictureIndex(db);
+        createSearchIndex(db);
+        createStatsTable(db);
+        createLowStockIndex(db);
+        createSalesTables(db);
+        createRowVersionTables(db);
+        createMigrationsTable(db);
+    }
+
+    /**
+     * Create the table of the background migrations, if it's not there yet
+     */
+    private void createMigrationsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MIGRATIONS_TABLE + " (" + MIGRATION_VERSION
+                + " INTEGER PRIMARY KEY, " + MIGRATION_CHECKPOINT + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    /**
+     * Create the row version, the table of the deleted products, and the triggers giving every insert, update
+     * and delete of a product the next version
+     * The existing products keep version 0 until {@link #assignRowVersions} gives them one
+     * <p>
+     * The triggers only watch the columns of the product, so setting the version doesn't trigger them again.
+     */
+    private void createRowVersionTables(SQLiteDatabase db) {
+        String products = ProductContract.ProductEntry.TABLE_NAME;
+        String rowVersion = ProductContract.ProductEntry.COLUMN_ROW_VERSION;
+        String versionTable = ProductContract.RowVersionEntry.TABLE_NAME;
+        String version = ProductContract.RowVersionEntry.COLUMN_VERSION;
+        String tombstones = ProductContract.TombstoneEntry.TABLE_NAME;
+        String tombstoneVersion = ProductContract.TombstoneEntry.COLUMN_ROW_VERSION;
+
+        db.execSQL("CREATE TABLE " + versionTable + " (" + ProductContract.RowVersionEntry._ID
+                + " INTEGER PRIMARY KEY, " + version + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO " + versionTable + " (" + ProductContract.RowVersionEntry._ID + ") VALUES (1);");
+        db.execSQL("CREATE TABLE " + tombstones + " (" + ProductContract.TombstoneEntry.COLUMN_PRODUCT_ID
+                + " INTEGER PRIMARY KEY, " + tombstoneVersion + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + ROW_VERSION_INDEX + " ON " + products + " (" + rowVersion + ");");
+        db.execSQL("CREATE INDEX " + TOMBSTONE_VERSION_INDEX + " ON " + tombstones + " (" + tombstoneVersion
+                + ");");
+
+        String next = "UPDATE " + versionTable + " SET " + version + " = " + version + " + 1; ";
+        String current = "(SELECT " + version + " FROM " + versionTable + ")";
+        String setVersion = "UPDATE " + products + " SET " + rowVersion + " = " + current + " WHERE "
+                + ProductContract.ProductEntry._ID + " = new." + ProductContract.ProductEntry._ID + "; ";
+
+        db.execSQL("CREATE TRIGGER " + products + "_version_insert AFTER INSERT ON " + products + " BEGIN "
+                + next + setVersion + "END;");
+        db.execSQL("CREATE TRIGGER " + products + "_version_update AFTER UPDATE OF "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + ", "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + ", "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + ", "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL + ", "
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + " ON " + products + " BEGIN "
+                + next + setVersion + "END;");
+        db.execSQL("CREATE TRIGGER " + products + "_version_delete AFTER DELETE ON " + products + " BEGIN "
+                + next + "INSERT OR REPLACE INTO " + tombstones + " (" + ProductContract.TombstoneEntry.COLUMN_PRODUCT_ID
+                + ", " + tombstoneVersion + ") VALUES (old." + ProductContract.ProductEntry._ID + ", " + current
+                + "); END;");
+    }
+
+    /**
+     * Create the sales ledger, its hourly and daily totals, and the trigger adding every new entry to the totals
+     */
+    private void createSalesTables(SQLiteDatabase db) {
+        String sales = ProductContract.SalesEntry.TABLE_NAME;
+        String productId = ProductContract.SalesEntry.COLUMN_PRODUCT_ID;
+        String delta = ProductContract.SalesEntry.COLUMN_DELTA;
+        String timestamp = ProductContract.SalesEntry.COLUMN_TIMESTAMP;
+
+        db.execSQL("CREATE TABLE " + sales + " (" + ProductContract.SalesEntry._ID + " INTEGER PRIMARY KEY, "
+                + productId + " INTEGER NOT NULL, "
+                + delta + " INTEGER NOT NULL, "
+                + timestamp + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + SALES_TIMESTAMP_INDEX + " ON " + sales + " (" + timestamp + ");");
+
+        StringBuilder trigger = new StringBuilder("CREATE TRIGGER " + sales + "_rollup AFTER INSERT ON " + sales
+                + " BEGIN ");
+        String[] tables = {ProductContract.SalesRollupEntry.HOURLY_TABLE_NAME,
+                ProductContract.SalesRollupEntry.DAILY_TABLE_NAME};
+        long[] lengths = {ProductContract.SalesRollupEntry.HOUR_MILLIS, ProductContract.SalesRollupEntry.DAY_MILLIS};
+        for (int i = 0; i < tables.length; i++) {
+            String rollupProductId = ProductContract.SalesRollupEntry.COLUMN_PRODUCT_ID;
+            String bucket = ProductContract.SalesRollupEntry.COLUMN_BUCKET;
+            String unitsSold = ProductContract.SalesRollupEntry.COLUMN_UNITS_SOLD;
+            String netChange = ProductContract.SalesRollupEntry.COLUMN_NET_CHANGE;
+            String newBucket = "new." + timestamp + " - new." + timestamp + " % " + lengths[i];
+
+            /**
+             * The primary key is the index the totals of a product over a period are read from
+             */
+            db.execSQL("CREATE TABLE " + tables[i] + " (" + rollupProductId + " INTEGER NOT NULL, "
+                    + bucket + " INTEGER NOT NULL, "
+                    + unitsSold + " INTEGER NOT NULL DEFAULT 0, "
+                    + netChange + " INTEGER NOT NULL DEFAULT 0, "
+                    + "PRIMARY KEY (" + rollupProductId + ", " + bucket + "));");
+
+            /**
+             * Make sure the row of the bucket exists, then add the entry to it
+             */
+            trigger.append("INSERT OR IGNORE INTO ").append(tables[i]).append(" (").append(rollupProductId)
+                    .append(", ").append(bucket).append(") VALUES (new.").append(productId).append(", ")
+                    .append(newBucket).append("); UPDATE ").append(tables[i]).append(" SET ").append(unitsSold)
+                    .append(" = ").append(unitsSold).append(" + max(-new.").append(delta).append(", 0), ")
+                    .append(netChange).append(" = ").append(netChange).append(" + new.").append(delta)
+                    .append(" WHERE ").append(rollupProductId).append(" = new.").append(productId).append(" AND ")
+                    .append(bucket).append(" = ").append(newBucket).append("; ");
+        }
+        trigger.append("END;");
+        db.execSQL(trigger.toString());
+    }
+
+    /**
+     * Create the partial index of the products at or below their reorder level
+     * Only those rows are in it, so listing them takes index time however many products are stocked
+     * Partial indexes need SQLite 3.8.0(Lollipop), older versions list them with a scan instead
+     */
+    private void createLowStockIndex(SQLiteDatabase db) {
+        if (!isSqliteAtLeast(db, 3, 8)) {
+            Log.i(LOG_TAG, "No partial index support, low stock products are found with a scan");
+            return;
+        }
+        db.execSQL("CREATE INDEX " + LOW_STOCK_INDEX + " ON " + ProductContract.ProductEntry.TABLE_NAME + " ("
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + ") WHERE "
+                + ProductContract.ProductEntry.LOW_STOCK_SELECTION + ";");
+    }
+
+    /**
+     * Check if the SQLite library is at least the given version
+     */
+    static boolean isSqliteAtLeast(SQLiteDatabase db, int major, int minor) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+        int libraryMajor = Integer.parseInt(version[0]);
+        int libraryMinor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+        return libraryMajor > major || libraryMajor == major && libraryMinor >= minor;
+    }
+
+    /**
+     * Create the table of the inventory totals, filled from the existing products,
+     * and the triggers applying the change of every insert, update and delete of a product to it
+     */
+    private void createStatsTable(SQLiteDatabase db) {
+        String stats = ProductContract.ProductStatsEntry.TABLE_NAME;
+        String count = ProductContract.ProductStatsEntry.COLUMN_PRODUCT_COUNT;
+        String totalQuantity = ProductContract.ProductStatsEntry.COLUMN_TOTAL_QUANTITY;
+        String value = ProductContract.ProductStatsEntry.COLUMN_STOCK_VALUE;
+        String outOfStock = ProductContract.ProductStatsEntry.COLUMN_OUT_OF_STOCK_COUNT;
+        String products = ProductContract.ProductEntry.TABLE_NAME;
+        String price = ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE;
+        String quantity = ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY;
+
+        db.execSQL("CREATE TABLE " + stats + " (" + ProductContract.ProductStatsEntry._ID + " INTEGER PRIMARY KEY, "
+                + count + " INTEGER NOT NULL DEFAULT 0, "
+                + totalQuantity + " INTEGER NOT NULL DEFAULT 0, "
+                + value + " INTEGER NOT NULL DEFAULT 0, "
+                + outOfStock + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO " + stats + " (" + ProductContract.ProductStatsEntry._ID + ", " + count + ", "
+                + totalQuantity + ", " + value + ", " + outOfStock + ") SELECT 1, count(*), ifnull(sum(" + quantity
+                + "), 0), ifnull(sum(" + price + " * " + quantity + "), 0), ifnull(sum(" + quantity + " = 0), 0) FROM "
+                + products + ";");
+
+        /**
+         * Every trigger adds the new row and takes the old row away
+         */
+        String add = count + " = " + count + " + 1, "
+                + totalQuantity + " = " + totalQuantity + " + new." + quantity + ", "
+                + value + " = " + value + " + new." + price + " * new." + quantity + ", "
+                + outOfStock + " = " + outOfStock + " + (new." + quantity + " = 0)";
+        String remove = count + " = " + count + " - 1, "
+                + totalQuantity + " = " + totalQuantity + " - old." + quantity + ", "
+                + value + " = " + value + " - old." + price + " * old." + quantity + ", "
+                + outOfStock + " = " + outOfStock + " - (old." + quantity + " = 0)";
+        String change = totalQuantity + " = " + totalQuantity + " + new." + quantity + " - old." + quantity + ", "
+                + value + " = " + value + " + new." + price + " * new." + quantity + " - old." + price + " * old."
+                + quantity + ", " + outOfStock + " = " + outOfStock + " + (new." + quantity + " = 0) - (old."
+                + quantity + " = 0)";
+
+        db.execSQL("CREATE TRIGGER " + products + "_stats_insert AFTER INSERT ON " + products + " BEGIN UPDATE "
+                + stats + " SET " + add + "; END;");
+        db.execSQL("CREATE TRIGGER " + products + "_stats_update AFTER UPDATE OF " + price + ", " + quantity
+                + " ON " + products + " BEGIN UPDATE " + stats + " SET " + change + "; END;");
+        db.execSQL("CREATE TRIGGER " + products + "_stats_delete AFTER DELETE ON " + products + " BEGIN UPDATE "
+                + stats + " SET " + remove + "; END;");
+    }
+
+    /**
+     * Create the full-text index of the product names, and the triggers keeping it in sync with the products table
+     * A plain FTS4 table is used instead of an external content one, which needs SQLite 3.7.9
+     * The existing products are added by {@link #fillSearchIndex}
+     */
+    private void createSearchIndex(SQLiteDatabase db) {
+        String fts = ProductContract.ProductSearchEntry.TABLE_NAME;
+        String docid = ProductContract.ProductSearchEntry.COLUMN_DOCID;
+        String ftsName = ProductContract.ProductSearchEntry.COLUMN_PRODUCT_NAME;
+        String products = ProductContract.ProductEntry.TABLE_NAME;
+        String id = ProductContract.ProductEntry._ID;
+        String name = ProductContract.ProductEntry.COLUMN_PRODUCT_NAME;
+
+        db.execSQL("CREATE VIRTUAL TABLE " + fts + " USING fts4(" + ftsName + ");");
+
+        db.execSQL("CREATE TRIGGER " + products + "_fts_insert AFTER INSERT ON " + products + " BEGIN INSERT INTO "
+                + fts + " (" + docid + ", " + ftsName + ") VALUES (new." + id + ", new." + name + "); END;");
+        db.execSQL("CREATE TRIGGER " + products + "_fts_update AFTER UPDATE OF " + name + " ON " + products
+                + " BEGIN UPDATE " + fts + " SET " + ftsName + " = new." + name + " WHERE " + docid + " = old."
+                + id + "; END;");
+        db.execSQL("CREATE TRIGGER " + products + "_fts_delete AFTER DELETE ON " + products + " BEGIN DELETE FROM "
+                + fts + " WHERE " + docid + " = old." + id + "; END;");
+    }
+
+    /**
+     * Create the index the pages of products are read from
+     * SQLite appends the rowid(_id) to every index entry, so it serves the (name, _id) order
+     */
+    private void createNameIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + NAME_INDEX + " ON " + ProductContract.ProductEntry.TABLE_NAME + " ("
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + ");");
+    }
+
+    /**
+     * Create the index a picture is looked up in before it's released, so a release doesn't scan the products
+     * Without partial index support the BLOBs not moved to the {@link PictureStore} yet are indexed as well
+     */
+    private void createPictureIndex(SQLiteDatabase db) {
+        String partial = isSqliteAtLeast(db, 3, 8) ? " WHERE " + PICTURE_INDEX_SELECTION : "";
+        db.execSQL("CREATE INDEX " + PICTURE_INDEX + " ON " + ProductContract.ProductEntry.TABLE_NAME + " ("
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + ")" + partial + ";");
+    }
+
+    /**
+     * Create the table remembering the last sale journal sequence applied
+     */
+    private void createSaleJournalTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ProductContract.SaleJournalEntry.TABLE_NAME + " ("
+                + ProductContract.SaleJournalEntry._ID + " INTEGER PRIMARY KEY, "
+                + ProductContract.SaleJournalEntry.COLUMN_SEQUENCE + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO " + ProductContract.SaleJournalEntry.TABLE_NAME + " ("
+                + ProductContract.SaleJournalEntry._ID + ") VALUES (1);");
+    }
+
+    /**
+     * Create the table remembering the progress of the catalog import
+     */
+    private void createCatalogImportTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ProductContract.CatalogImportEntry.TABLE_NAME + " ("
+                + ProductContract.CatalogImportEntry._ID + " INTEGER PRIMARY KEY, "
+                + ProductContract.CatalogImportEntry.COLUMN_CATALOG + " TEXT, "
+                + ProductContract.CatalogImportEntry.COLUMN_ROWS_DONE + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT INTO " + ProductContract.CatalogImportEntry.TABLE_NAME + " ("
+                + ProductContract.CatalogImportEntry._ID + ") VALUES (1);");
     }
 
     /**
      * Called when db needs to be upgraded
-     * As the db is still at version 1, there's nothing to do be done here
      *
      * @param db to be upgraded
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        /**
+         * Only the schema changes run here, inside the first getWritableDatabase(), the rows they need rewritten
+         * are queued for {@link #migrateNextBatch()}
+         */
+        createMigrationsTable(db);
+        for (Migration migration : mMigrations) {
+            if (migration.version <= oldVersion || migration.version > newVersion)
+                continue;
+            migration.upgrade(db);
+            if (migration.background)
+                db.execSQL("INSERT OR REPLACE INTO " + MIGRATIONS_TABLE + " (" + MIGRATION_VERSION + ", "
+                        + MIGRATION_CHECKPOINT + ") VALUES (?, 0);", new Object[]{migration.version});
+        }
+    }
+
+    /**
+     * Check if some migration still has rows to rewrite in the background
+     *
+     * @param db opened by this helper
+     */
+    boolean hasPendingMigrations(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, MIGRATIONS_TABLE) != 0;
+    }
+
+    /**
+     * Rewrite the next batch of rows of the oldest pending migration, in one transaction with its checkpoint,
+     * so the migration resumes from there whenever the process dies
+     * The app keeps reading and writing between the batches.
+     *
+     * @return true if rows are left to rewrite
+     */
+    boolean migrateNextBatch() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(MIGRATIONS_TABLE, new String[]{MIGRATION_VERSION, MIGRATION_CHECKPOINT},
+                    null, null, null, null, MIGRATION_VERSION + " ASC", "1");
+            int version;
+            long checkpoint;
+            try {
+                if (!cursor.moveToFirst())
+                    return false;
+                version = cursor.getInt(0);
+                checkpoint = cursor.getLong(1);
+            } finally {
+                cursor.close();
+            }
+
+            Migration migration = null;
+            for (Migration candidate : mMigrations) {
+                if (candidate.version == version)
+                    migration = candidate;
+            }
+            long next = migration == null ? Migration.DONE : migration.migrateBatch(db, checkpoint);
+            if (next == Migration.DONE) {
+                db.delete(MIGRATIONS_TABLE, MIGRATION_VERSION + "=?", new String[]{String.valueOf(version)});
+                Log.i(LOG_TAG, "Migration to version " + version + " finished");
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(MIGRATION_CHECKPOINT, next);
+                db.update(MIGRATIONS_TABLE, values, MIGRATION_VERSION + "=?", new String[]{String.valueOf(version)});
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+            unpinMovedPictures();
+        }
+    }
+
+    /**
+     * Add the next batch of products missing from the full-text index, in the order of their IDs
+     * Products inserted since the upgrade are already in it through the trigger
+     *
+     * @return the last ID done, or {@link Migration#DONE}
+     */
+    private long fillSearchIndex(SQLiteDatabase db, long afterId) {
+        long lastId = getLastIdOfBatch(db, afterId);
+        if (lastId == Migration.DONE)
+            return Migration.DONE;
+
+        String fts = ProductContract.ProductSearchEntry.TABLE_NAME;
+        String docid = ProductContract.ProductSearchEntry.COLUMN_DOCID;
+        String id = ProductContract.ProductEntry._ID;
+        db.execSQL("INSERT INTO " + fts + " (" + docid + ", " + ProductContract.ProductSearchEntry.COLUMN_PRODUCT_NAME
+                + ") SELECT " + id + ", " + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + " FROM "
+                + ProductContract.ProductEntry.TABLE_NAME + " WHERE " + id + " > ? AND " + id + " <= ? AND NOT EXISTS "
+                + "(SELECT 1 FROM " + fts + " WHERE " + docid + " = " + id + ");", new Object[]{afterId, lastId});
+        return lastId;
+    }
+
+    /**
+     * Give the next batch of products still at version 0 their own version, in the order of their IDs
+     * Products changed since the upgrade already got one through the triggers
+     *
+     * @return the last ID done, or {@link Migration#DONE}
+     */
+    private long assignRowVersions(SQLiteDatabase db, long afterId) {
+        long lastId = getLastIdOfBatch(db, afterId);
+        if (lastId == Migration.DONE)
+            return Migration.DONE;
+
+        SQLiteStatement next = db.compileStatement("UPDATE " + ProductContract.RowVersionEntry.TABLE_NAME + " SET "
+                + ProductContract.RowVersionEntry.COLUMN_VERSION + " = "
+                + ProductContract.RowVersionEntry.COLUMN_VERSION + " + 1");
+        SQLiteStatement assign = db.compileStatement("UPDATE " + ProductContract.ProductEntry.TABLE_NAME + " SET "
+                + ProductContract.ProductEntry.COLUMN_ROW_VERSION + " = (SELECT "
+                + ProductContract.RowVersionEntry.COLUMN_VERSION + " FROM " + ProductContract.RowVersionEntry.TABLE_NAME
+                + ") WHERE " + ProductContract.ProductEntry._ID + " = ?");
+        Cursor cursor = db.query(ProductContract.ProductEntry.TABLE_NAME, new String[]{ProductContract.ProductEntry._ID},
+                ProductContract.ProductEntry._ID + ">? AND " + ProductContract.ProductEntry._ID + "<=? AND "
+                        + ProductContract.ProductEntry.COLUMN_ROW_VERSION + "=0",
+                new String[]{String.valueOf(afterId), String.valueOf(lastId)}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                next.execute();
+                assign.bindLong(1, cursor.getLong(0));
+                assign.execute();
+            }
+        } finally {
+            cursor.close();
+            next.close();
+            assign.close();
+        }
+        return lastId;
+    }
+
+    /**
+     * Get the ID closing the batch of products after the given ID
+     *
+     * @return the ID, or {@link Migration#DONE} if no product is left
+     */
+    private static long getLastIdOfBatch(SQLiteDatabase db, long afterId) {
+        Cursor cursor = db.rawQuery("SELECT max(" + ProductContract.ProductEntry._ID + ") FROM (SELECT "
+                + ProductContract.ProductEntry._ID + " FROM " + ProductContract.ProductEntry.TABLE_NAME + " WHERE "
+                + ProductContract.ProductEntry._ID + " > ? ORDER BY " + ProductContract.ProductEntry._ID + " LIMIT "
+                + MIGRATION_BATCH_SIZE + ")", new String[]{String.valueOf(afterId)});
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : Migration.DONE;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Move the pictures of the next batch of products still stored as a BLOB in the products table into the
+     * {@link PictureStore} and replace them with their reference, in the order of their IDs
+     * The pictures are read in chunks, so a large picture never has to fit in a CursorWindow
+     *
+     * @return the last ID done, or {@link Migration#DONE}
+     */
+    private long movePicturesToStore(SQLiteDatabase db, long afterId) {
+        long lastId = getLastIdOfBatch(db, afterId);
+        if (lastId == Migration.DONE)
+            return Migration.DONE;
+
+        String picture = ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE;
+        String id = ProductContract.ProductEntry._ID;
+        Cursor cursor = db.rawQuery("SELECT " + id + ", length(" + picture + ") FROM "
+                + ProductContract.ProductEntry.TABLE_NAME + " WHERE " + id + " > ? AND " + id + " <= ? AND typeof("
+                + picture + ") = 'blob'", new String[]{String.valueOf(afterId), String.valueOf(lastId)});
+        try {
+            while (cursor.moveToNext()) {
+                try {
+                    movePicture(db, cursor.getLong(0), cursor.getLong(1));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot move picture of product " + cursor.getLong(0), e);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return lastId;
+    }
+
+    /**
+     * Move the picture of a single product into the {@link PictureStore} right away if it's still stored as a BLOB,
+     * for a reader that can't wait for the background migration
+     *
+     * @param id of the product
+     * @return the reference of the picture, or null if there is no such product
+     */
+    String movePictureToStore(long id) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            String picture = ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE;
+            Cursor cursor = db.rawQuery("SELECT typeof(" + picture + "), length(" + picture + "), "
+                    + PICTURE_REFERENCE + " FROM " + ProductContract.ProductEntry.TABLE_NAME + " WHERE "
+                    + ProductContract.ProductEntry._ID + " = ?", new String[]{String.valueOf(id)});
+            String reference;
+            try {
+                if (!cursor.moveToFirst())
+                    return null;
+                reference = "blob".equals(cursor.getString(0)) ? movePicture(db, id, cursor.getLong(1))
+                        : cursor.getString(2);
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+            return reference;
+        } finally {
+            db.endTransaction();
+            unpinMovedPictures();
+        }
+    }
+
+    /**
+     * Move the BLOB picture of a product into the {@link PictureStore} and replace it with its reference
+     *
+     * @return the reference of the picture
+     */
+    private String movePicture(SQLiteDatabase db, long id, long length) throws IOException {
+        String reference = mPictureStore.put(new BlobInputStream(db, id, length));
+        mMovedPictures.get().add(reference);
+        ContentValues values = new ContentValues();
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, reference);
+        db.update(ProductContract.ProductEntry.TABLE_NAME, values, ProductContract.ProductEntry._ID + "=?",
+                new String[]{String.valueOf(id)});
+        return reference;
+    }
+
+    /**
+     * Unpin the pictures moved by the transaction of the current thread, once it's committed or rolled back
+     */
+    private void unpinMovedPictures() {
+        List<String> pictures = mMovedPictures.get();
+        for (String picture : pictures)
+            mPictureStore.unpin(picture);
+        pictures.clear();
+    }
+
+    /**
+     * Check if a reference read through {@link #PICTURE_REFERENCE} is a picture still stored as a BLOB
+     */
+    static boolean isLegacyPicture(String reference) {
+        return reference != null && reference.startsWith(LEGACY_PICTURE_PREFIX);
+    }
+
+    /**
+     * Get the given projection of the products table with the picture column read through
+     * {@link #PICTURE_REFERENCE}, so a picture still stored as a BLOB never reaches a Cursor
+     */
+    static String[] readPictureAsReference(String[] projection) {
+        if (projection == null)
+            return null;
+        String[] columns = null;
+        for (int i = 0; i < projection.length; i++) {
+            if (!ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE.equals(projection[i]))
+                continue;
+            if (columns == null)
+                columns = projection.clone();
+            columns[i] = PICTURE_REFERENCE + " AS " + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE;
+        }
+        return columns == null ? projection : columns;
+    }
+
+    /**
+     * Step of the schema migration to one version
+     * <p>
+     * The schema change runs in {@link #onUpgrade}, inside the first getWritableDatabase(), so it has to be quick:
+     * creating tables, indexes and triggers, adding columns. A step whose existing rows need rewriting does it in
+     * {@link #migrateBatch}, called in the background one bounded batch at a time once the db is open, so the
+     * readers must cope with the rows not rewritten yet.
+     */
+    private abstract static class Migration {
+        /**
+         * Checkpoint of a finished background migration
+         */
+        static final long DONE = -1;
+
+        /**
+         * Version the step migrates to
+         */
+        final int version;
+        /**
+         * True if the step rewrites rows in the background
+         */
+        final boolean background;
+
+        Migration(int version, boolean background) {
+            this.version = version;
+            this.background = background;
+        }
+
+        /**
+         * Change the schema, in the upgrade transaction
+         */
+        abstract void upgrade(SQLiteDatabase db);
+
+        /**
+         * Rewrite the next batch of rows, in the transaction that also saves the checkpoint
+         *
+         * @param checkpoint returned by the previous batch, 0 for the first one
+         * @return the checkpoint to continue from, or {@link #DONE}
+         */
+        long migrateBatch(SQLiteDatabase db, long checkpoint) {
+            return DONE;
+        }
+    }
+
+    /**
+     * {@link InputStream} reading the picture BLOB of a single product in chunks
+     */
+    private static class BlobInputStream extends InputStream {
+        private final SQLiteDatabase mDb;
+        private final String[] mArgs = new String[3];
+        private final long mLength;
+        /**
+         * Offset of the next chunk to read, starting at 0
+         */
+        private long mOffset;
+        private byte[] mChunk;
+        private int mChunkPosition;
+
+        BlobInputStream(SQLiteDatabase db, long id, long length) {
+            mDb = db;
+            mLength = length;
+            mArgs[2] = String.valueOf(id);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mChunk == null || mChunkPosition == mChunk.length) {
+                if (mOffset >= mLength)
+                    return -1;
+                readChunk();
+            }
+
+            int read = Math.min(count, mChunk.length - mChunkPosition);
+            System.arraycopy(mChunk, mChunkPosition, buffer, offset, read);
+            mChunkPosition += read;
+            return read;
+        }
+
+        private void readChunk() throws IOException {
+            /**
+             * substr() on a BLOB counts bytes and starts at 1
+             */
+            mArgs[0] = String.valueOf(mOffset + 1);
+            mArgs[1] = String.valueOf(PICTURE_MIGRATION_CHUNK_SIZE);
+            Cursor cursor = mDb.rawQuery("SELECT substr(" + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE
+                    + ", ?, ?) FROM " + ProductContract.ProductEntry.TABLE_NAME + " WHERE "
+                    + ProductContract.ProductEntry._ID + " = ?", mArgs);
+            try {
+                if (!cursor.moveToFirst())
+                    throw new IOException("Product " + mArgs[2] + " disappeared while moving its picture");
+                mChunk = cursor.getBlob(0);
+            } finally {
+                cursor.close();
+            }
+
+            if (mChunk == null || mChunk.length == 0)
+                throw new IOException("Unexpected end of picture of product " + mArgs[2]);
+            mOffset += mChunk.length;
+            mChunkPosition = 0;
+        }
     }
 }
@@ -0,0 +1,355 @@
+package com.example.android.myinventory.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams the products into the pipe of an export URI, as CSV, JSON or a ZIP holding the CSV and maybe the pictures
+ * <p>
+ * The products are read in pages of {@link #PAGE_SIZE} in the order of their IDs, each page with its own short query,
+ * so the export holds only one page in memory and never keeps a read open on the db while it waits for the pipe.
+ * A product changed during the export is written as it was when its page was read.
+ * The columns are the ones {@link CatalogReader} takes, so an export can be imported again.
+ */
+class ProductExporter implements ContentProvider.PipeDataWriter<String> {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = ProductExporter.class.getSimpleName();
+    /**
+     * Number of products read per query
+     */
+    private static final int PAGE_SIZE = 500;
+    /**
+     * Size of the buffer between the export and the pipe
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Names of the entries of a ZIP export: the CSV of the products, and the pictures named after their product ID
+     */
+    private static final String CSV_ENTRY = "products.csv";
+    private static final String PICTURE_ENTRY_PREFIX = "pictures/";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] PROJECTION = ProductDBHelper.readPictureAsReference(new String[]{
+            ProductContract.ProductEntry._ID, ProductContract.ProductEntry.COLUMN_PRODUCT_NAME,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE});
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int PRICE = 2;
+    private static final int QUANTITY = 3;
+    private static final int REORDER_LEVEL = 4;
+    private static final int PICTURE = 5;
+
+    private final ProductDBHelper mDBHelper;
+    private final PictureStore mPictureStore;
+    /**
+     * Directory the CSV of a ZIP export with pictures is written to, until its entry follows the pictures
+     */
+    private final File mCacheDir;
+
+    /**
+     * Constructs a new {@link ProductExporter}
+     *
+     * @param helper       of the db the products are read from
+     * @param pictureStore holding the pictures
+     * @param cacheDir     of the app
+     */
+    ProductExporter(ProductDBHelper helper, PictureStore pictureStore, File cacheDir) {
+        mDBHelper = helper;
+        mPictureStore = pictureStore;
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Get the MIME type of an export format
+     *
+     * @return the MIME type, or null if the format is unknown
+     */
+    static String getMimeType(String format) {
+        if (ProductContract.EXPORT_FORMAT_CSV.equals(format))
+            return "text/csv";
+        if (ProductContract.EXPORT_FORMAT_JSON.equals(format))
+            return "application/json";
+        if (ProductContract.EXPORT_FORMAT_ZIP.equals(format))
+            return "application/zip";
+        return null;
+    }
+
+    /**
+     * Called on a background thread to write the export into the pipe
+     * A reader closing its end early just stops the export
+     *
+     * @param format of the export
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, String format) {
+        OutputStream out = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(output),
+                BUFFER_SIZE);
+        long start = System.nanoTime();
+        try {
+            int products;
+            if (ProductContract.EXPORT_FORMAT_JSON.equals(format)) {
+                products = writeJson(out);
+            } else if (ProductContract.EXPORT_FORMAT_ZIP.equals(format)) {
+                products = writeZip(out, Boolean.parseBoolean(
+                        uri.getQueryParameter(ProductContract.QUERY_PARAMETER_PICTURES)));
+            } else {
+                Writer writer = newWriter(out);
+                products = writeCsv(writer, null);
+                writer.flush();
+            }
+            Log.i(LOG_TAG, "Exported " + products + " products as " + format + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException | IllegalStateException e) {
+            /**
+             * A restore closing the db also stops the export
+             */
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close export of " + uri, e);
+            }
+        }
+    }
+
+    /**
+     * Write the products as CSV, with a header line
+     *
+     * @param pictures ZIP export the picture of every product is written to before its row, which names its entry
+     *                 in the image column, or null to leave the pictures out
+     * @return the number of products written
+     */
+    private int writeCsv(Writer writer, ZipOutputStream pictures) throws IOException {
+        writer.write(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + ","
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + ","
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + ","
+                + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL
+                + (pictures != null ? "," + CatalogReader.COLUMN_IMAGE : "") + "\n");
+
+        byte[] buffer = pictures != null ? new byte[BUFFER_SIZE] : null;
+        int products = 0;
+        long afterId = 0;
+        while (true) {
+            Cursor cursor = queryPage(afterId);
+            try {
+                if (!cursor.moveToFirst())
+                    return products;
+                do {
+                    afterId = cursor.getLong(ID);
+                    writeCsvField(writer, cursor.getString(NAME));
+                    writer.write(',');
+                    writer.write(Long.toString(cursor.getLong(PRICE)));
+                    writer.write(',');
+                    writer.write(Long.toString(cursor.getLong(QUANTITY)));
+                    writer.write(',');
+                    writer.write(Long.toString(cursor.getLong(REORDER_LEVEL)));
+                    if (pictures != null) {
+                        writer.write(',');
+                        /**
+                         * Only a picture written to its entry is named, the others are left out of the image column
+                         */
+                        if (writePicture(cursor, pictures, buffer))
+                            writer.write(PICTURE_ENTRY_PREFIX + afterId);
+                    }
+                    writer.write('\n');
+                    products++;
+                } while (cursor.moveToNext());
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Write a CSV field, quoted if it holds a separator, a quote or a line break
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null)
+            return;
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"')
+                writer.write('"');
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Write the products as a JSON array of objects
+     *
+     * @return the number of products written
+     */
+    private int writeJson(OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(newWriter(out));
+        writer.beginArray();
+
+        int products = 0;
+        long afterId = 0;
+        while (true) {
+            Cursor cursor = queryPage(afterId);
+            try {
+                if (!cursor.moveToFirst())
+                    break;
+                do {
+                    afterId = cursor.getLong(ID);
+                    writer.beginObject();
+                    writer.name(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME).value(cursor.getString(NAME));
+                    writer.name(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE).value(cursor.getLong(PRICE));
+                    writer.name(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY).value(cursor.getLong(QUANTITY));
+                    writer.name(ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL)
+                            .value(cursor.getLong(REORDER_LEVEL));
+                    writer.endObject();
+                    products++;
+                } while (cursor.moveToNext());
+            } finally {
+                cursor.close();
+            }
+        }
+
+        writer.endArray();
+        writer.flush();
+        return products;
+    }
+
+    /**
+     * Write a ZIP holding the CSV of the products, and their pictures if asked
+     * The pictures are written in the same pass as the CSV rows naming them, so a product changed or deleted during
+     * the export never leaves a row naming a missing entry. The CSV goes to a temporary file meanwhile, and is
+     * appended as the last entry.
+     *
+     * @return the number of products written
+     */
+    private int writeZip(OutputStream out, boolean pictures) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        int products;
+        if (!pictures) {
+            zip.putNextEntry(new ZipEntry(CSV_ENTRY));
+            Writer writer = newWriter(zip);
+            products = writeCsv(writer, null);
+            writer.flush();
+            zip.closeEntry();
+            zip.finish();
+            return products;
+        }
+
+        File csv = File.createTempFile("export", ".csv", mCacheDir);
+        try {
+            Writer writer = newWriter(new FileOutputStream(csv));
+            try {
+                /**
+                 * The pictures are compressed already, deflating them again only costs time
+                 */
+                zip.setLevel(Deflater.NO_COMPRESSION);
+                products = writeCsv(writer, zip);
+            } finally {
+                writer.close();
+            }
+
+            zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+            zip.putNextEntry(new ZipEntry(CSV_ENTRY));
+            copy(csv, zip, new byte[BUFFER_SIZE]);
+            zip.closeEntry();
+        } finally {
+            csv.delete();
+        }
+
+        zip.finish();
+        return products;
+    }
+
+    /**
+     * Write the picture of the product at the cursor to its entry of a ZIP export
+     * The picture is pinned while it's copied, so it can't be released meanwhile
+     *
+     * @return true if the entry was written, false if the picture isn't in the store
+     */
+    private boolean writePicture(Cursor cursor, ZipOutputStream zip, byte[] buffer) throws IOException {
+        String reference = getStoredPicture(cursor);
+        if (reference == null || !mPictureStore.pin(reference))
+            return false;
+        try {
+            zip.putNextEntry(new ZipEntry(PICTURE_ENTRY_PREFIX + cursor.getLong(ID)));
+            copy(mPictureStore.getFile(reference), zip, buffer);
+            zip.closeEntry();
+        } finally {
+            mPictureStore.unpin(reference);
+        }
+        return true;
+    }
+
+    /**
+     * Read the page of products following the given ID
+     */
+    private Cursor queryPage(long afterId) {
+        SQLiteDatabase database = mDBHelper.getReadableDatabase();
+        return database.query(ProductContract.ProductEntry.TABLE_NAME, PROJECTION,
+                ProductContract.ProductEntry._ID + ">?", new String[]{String.valueOf(afterId)}, null, null,
+                ProductContract.ProductEntry._ID + " ASC", String.valueOf(PAGE_SIZE));
+    }
+
+    /**
+     * Get the reference of the picture of the product at the cursor, moving a picture still stored as a BLOB
+     * into the {@link PictureStore} first
+     *
+     * @return the reference, or null if the picture isn't in the store
+     */
+    private String getStoredPicture(Cursor cursor) throws IOException {
+        String reference = cursor.getString(PICTURE);
+        if (ProductDBHelper.isLegacyPicture(reference))
+            reference = mDBHelper.movePictureToStore(cursor.getLong(ID));
+        return mPictureStore.contains(reference) ? reference : null;
+    }
+
+    private static Writer newWriter(OutputStream out) {
+        return new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+    }
+
+    private static void copy(File file, OutputStream out, byte[] buffer) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+    }
+}
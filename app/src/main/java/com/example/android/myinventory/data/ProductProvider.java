@@ -1,16 +1,39 @@
 package com.example.android.myinventory.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.sql.Blob;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.example.android.myinventory.R.id.price;
 
@@ -34,6 +57,61 @@ public class ProductProvider extends ContentProvider {
      * URI matcher code for the content URI for a single product int the products table
      */
     private static final int PRODUCT_ID = 101;
+    /**
+     * URI matcher code for the content URI for the picture of a single product
+     */
+    private static final int PRODUCT_PICTURE = 102;
+    /**
+     * URI matcher code for the content URI recording the sale of a single product
+     */
+    private static final int PRODUCT_SALE = 103;
+    /**
+     * URI matcher code for the content URI adjusting the quantity of a single product
+     */
+    private static final int PRODUCT_ADJUST = 104;
+    /**
+     * URI matcher code for the content URI searching the products by name
+     */
+    private static final int PRODUCT_SEARCH = 105;
+    /**
+     * URI matcher code for the content URI for the thumbnail of a single product
+     */
+    private static final int PRODUCT_THUMBNAIL = 106;
+    /**
+     * URI matcher code for the content URI for the inventory totals
+     */
+    private static final int PRODUCT_STATS = 107;
+    /**
+     * URI matcher code for the content URI listing the products at or below their reorder level
+     */
+    private static final int PRODUCT_LOW_STOCK = 108;
+    /**
+     * URI matcher codes for the content URIs of the sales ledger and of its hourly and daily totals
+     */
+    private static final int SALES = 109;
+    private static final int SALES_HOURLY = 110;
+    private static final int SALES_DAILY = 111;
+    /**
+     * URI matcher code for the content URI streaming an export of the products
+     */
+    private static final int PRODUCT_EXPORT = 112;
+    /**
+     * Default number of products returned by a search
+     */
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    /**
+     * Number of rows written by {@link #bulkInsert(Uri, ContentValues[])} between two chances to yield the db
+     */
+    private static final int BULK_INSERT_YIELD_INTERVAL = 500;
+    /**
+     * Columns a product is written with, the only ones accepted by {@link #bulkInsert(Uri, ContentValues[])}
+     * Writes of only these columns are bound straight into the {@link ProductStatements}
+     */
+    private static final Set<String> PRODUCT_COLUMNS = new HashSet<>(Arrays.asList(
+            ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL));
 
     /**
      * {@link UriMatcher} object to match a content URI to a corresponding code
@@ -54,22 +132,188 @@ public class ProductProvider extends ContentProvider {
          * Provide access to ONE single row of the products table
          */
         sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#", PRODUCT_ID);
+        /**
+         * Provide access to the picture of ONE single product
+         */
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#/"
+                + ProductContract.PATH_PICTURE, PRODUCT_PICTURE);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#/"
+                + ProductContract.PATH_THUMBNAIL, PRODUCT_THUMBNAIL);
+        /**
+         * Provide full-text search of the products table
+         */
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/"
+                + ProductContract.PATH_SEARCH, PRODUCT_SEARCH);
+        /**
+         * Provide the inventory totals, a single row kept up to date by the db
+         */
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/"
+                + ProductContract.PATH_STATS, PRODUCT_STATS);
+        /**
+         * Provide the products at or below their reorder level
+         */
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/"
+                + ProductContract.PATH_LOW_STOCK, PRODUCT_LOW_STOCK);
+        /**
+         * Provide the sales ledger and its totals, read only
+         */
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/"
+                + ProductContract.PATH_SALES, SALES);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/"
+                + ProductContract.PATH_SALES + "/" + ProductContract.PATH_HOURLY, SALES_HOURLY);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/"
+                + ProductContract.PATH_SALES + "/" + ProductContract.PATH_DAILY, SALES_DAILY);
+        /**
+         * Provide a streamed export of the products
+         */
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/"
+                + ProductContract.PATH_EXPORT, PRODUCT_EXPORT);
+        /**
+         * Provide atomic quantity changes of ONE single product
+         */
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#/"
+                + ProductContract.PATH_SALE, PRODUCT_SALE);
+        sUriMatcher.addURI(ProductContract.CONTENT_AUTHORITY, ProductContract.PATH_PRODUCTS + "/#/"
+                + ProductContract.PATH_ADJUST, PRODUCT_ADJUST);
     }
 
     /**
      * DB helper object
+     * A restore replaces it with the helper of the restored db
+     */
+    private volatile ProductDBHelper mDBHelper;
+    /**
+     * Store holding the product pictures
+     */
+    private PictureStore mPictureStore;
+    /**
+     * Writes the exports into their pipes
+     */
+    private volatile ProductExporter mExporter;
+    /**
+     * Takes the snapshots of the db and restores them, also the lock serializing backups and restores
+     */
+    private InventoryBackup mBackup;
+    /**
+     * URIs changed by the batch running on the current thread, null outside of a batch
+     */
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<>();
+    /**
+     * Pictures released by the batch running on the current thread, null outside of a batch
+     * Their files are only deleted once the batch is committed, so a rolled back batch never loses a picture
+     */
+    private final ThreadLocal<Set<String>> mBatchReleasedPictures = new ThreadLocal<>();
+    /**
+     * Pictures stored by the batch running on the current thread, null outside of a batch
+     * They stay pinned in the {@link PictureStore} until the batch is committed or rolled back
+     */
+    private final ThreadLocal<List<String>> mBatchPinnedPictures = new ThreadLocal<>();
+    /**
+     * Compiled statements of the hot writes and lookups, one set per thread calling the provider
+     */
+    private final ThreadLocal<ProductStatements> mStatements = new ThreadLocal<>();
+    /**
+     * Every open set of {@link #mStatements} with the helper of its db, guarded by itself
+     * The sets of a replaced db are closed all at once, even those of threads that never call again
+     */
+    private final Map<ProductStatements, ProductDBHelper> mOpenStatements = new HashMap<>();
+    /**
+     * Rows of the products recently read by ID
+     */
+    private final ProductRowCache mRowCache = new ProductRowCache();
+    /**
+     * Held shared by every operation on the db, and exclusively by a restore while it switches to the restored db
+     * An operation never sees its db closed under it, it finishes before the switch or starts after it
      */
-    private ProductDBHelper mDBHelper;
+    private final ReentrantReadWriteLock mSwitchLock = new ReentrantReadWriteLock();
 
     @Override
     public boolean onCreate() {
         mDBHelper = new ProductDBHelper(getContext());
+        mPictureStore = new PictureStore(getContext());
+        mExporter = new ProductExporter(mDBHelper, mPictureStore, getContext().getCacheDir());
+        mBackup = new InventoryBackup(getContext(), mPictureStore);
+        warmUp(mDBHelper);
         return false;
     }
 
+    /**
+     * Open the db on a background thread as soon as the provider is created, while the first activity is being
+     * inflated, so the first query doesn't pay for opening the file, configuring it and upgrading the schema
+     * A query arriving meanwhile waits for the same open instead of starting another one
+     */
+    private static void warmUp(final ProductDBHelper helper) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    helper.getWritableDatabase();
+                    Log.d(LOG_TAG, "Opened db in " + (System.nanoTime() - start) / 1000000 + " ms");
+                } catch (SQLException | IllegalStateException e) {
+                    Log.w(LOG_TAG, "Failed to open db early", e);
+                }
+            }
+        }, "ProductDBWarmUp").start();
+    }
+
+    /**
+     * Get the compiled statements of the current thread
+     * They're compiled again if the db was opened again since, and then the sets of the old db are closed
+     */
+    private ProductStatements getStatements() {
+        ProductDBHelper helper = mDBHelper;
+        SQLiteDatabase database = helper.getWritableDatabase();
+        ProductStatements statements = mStatements.get();
+        if (statements == null || statements.getDatabase() != database) {
+            if (statements != null)
+                closeStaleStatements(helper, database);
+            statements = new ProductStatements(database);
+            synchronized (mOpenStatements) {
+                mOpenStatements.put(statements, helper);
+            }
+            mStatements.set(statements);
+        }
+        return statements;
+    }
+
+    /**
+     * Close the compiled statements of every thread that don't run on the current db
+     *
+     * @param helper   of the current db, the sets of any other helper are closed
+     * @param database currently open by the helper, or null to keep all the sets of the helper
+     */
+    private void closeStaleStatements(ProductDBHelper helper, SQLiteDatabase database) {
+        synchronized (mOpenStatements) {
+            Iterator<Map.Entry<ProductStatements, ProductDBHelper>> iterator = mOpenStatements.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<ProductStatements, ProductDBHelper> entry = iterator.next();
+                ProductStatements statements = entry.getKey();
+                if (entry.getValue() != helper || database != null && statements.getDatabase() != database) {
+                    statements.close();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
     @Nullable
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        Lock lock = mSwitchLock.readLock();
+        lock.lock();
+        try {
+            return queryProducts(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run a query while the db can't be switched
+     */
+    private Cursor queryProducts(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                 String sortOrder) {
         /**
          * Get readable db
          */
@@ -89,8 +333,50 @@ public class ProductProvider extends ContentProvider {
                  * Query the products table directly with the given projection, selection, selection arguments, and sort order
                  * The cursor could contain multiple rows of the products table
                  */
-                cursor = database.query(ProductContract.ProductEntry.TABLE_NAME, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                String limit = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT);
+                String afterName = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_AFTER_NAME);
+                String beforeName = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_BEFORE_NAME);
+
+                if (afterName != null || beforeName != null) {
+                    /**
+                     * Keyset page: continue from the given (name, _id) key in the order of the name index,
+                     * so the cost of a page doesn't depend on how deep into the list it is
+                     */
+                    if (sortOrder != null)
+                        throw new IllegalArgumentException("Pages have a fixed sort order " + uri);
+
+                    String keyName = afterName != null ? afterName : beforeName;
+                    String keyId = uri.getQueryParameter(afterName != null
+                            ? ProductContract.QUERY_PARAMETER_AFTER_ID : ProductContract.QUERY_PARAMETER_BEFORE_ID);
+                    if (keyId == null)
+                        throw new IllegalArgumentException("Pages require both a name and an ID " + uri);
+
+                    String name = ProductContract.ProductEntry.COLUMN_PRODUCT_NAME;
+                    String id = ProductContract.ProductEntry._ID;
+                    String keyset = afterName != null
+                            ? name + " >= ? AND (" + name + " > ? OR " + id + " > ?)"
+                            : name + " <= ? AND (" + name + " < ? OR " + id + " < ?)";
+                    selection = DatabaseUtils.concatenateWhere(selection, keyset);
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            new String[]{keyName, keyName, String.valueOf(Long.parseLong(keyId))});
+                    sortOrder = afterName != null ? ProductContract.ProductEntry.PAGE_SORT_ORDER
+                            : ProductContract.ProductEntry.PAGE_REVERSE_SORT_ORDER;
+                } else if (limit != null && sortOrder == null) {
+                    /**
+                     * First page
+                     */
+                    sortOrder = ProductContract.ProductEntry.PAGE_SORT_ORDER;
+                }
+                if (limit != null)
+                    limit = String.valueOf(Integer.parseInt(limit));
+
+                cursor = database.query(ProductContract.ProductEntry.TABLE_NAME,
+                        ProductDBHelper.readPictureAsReference(projection), selection, selectionArgs, null, null,
+                        sortOrder, limit);
+                /**
+                 * Lists only requery when their rows or their order change, single product changes are notified per product
+                 */
+                uri = ProductContract.ProductEntry.LIST_URI;
                 break;
             case PRODUCT_ID:
                 /**
@@ -98,15 +384,72 @@ public class ProductProvider extends ContentProvider {
                  * For every "?" in the selection, we need to have an element in the selection arguments that will fill in the "?"
                  * Since we have 1 question mark in the selection, we have 1 String in the selection arguments' String array
                  */
+                long productId = ContentUris.parseId(uri);
                 selection = ProductContract.ProductEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                selectionArgs = new String[]{String.valueOf(productId)};
+
+                /**
+                 * Serve the usual columns from the rows recently read, and cache the row read on a miss
+                 */
+                if (ProductRowCache.canServe(projection)) {
+                    cursor = mRowCache.get(productId, projection);
+                    if (cursor == null) {
+                        long generation = mRowCache.getGeneration();
+                        cursor = mRowCache.put(productId, database.query(ProductContract.ProductEntry.TABLE_NAME,
+                                ProductDBHelper.readPictureAsReference(ProductRowCache.COLUMNS), selection,
+                                selectionArgs, null, null, null), generation, projection);
+                    }
+                    break;
+                }
 
                 /**
                  * This will perform a query on the products table where the _id equals 3 to return Cursor containing that row of the table
                  */
-                cursor = database.query(ProductContract.ProductEntry.TABLE_NAME, projection, selection,
+                cursor = database.query(ProductContract.ProductEntry.TABLE_NAME,
+                        ProductDBHelper.readPictureAsReference(projection), selection, selectionArgs, null, null,
+                        sortOrder);
+                break;
+            case PRODUCT_SEARCH:
+                cursor = searchProducts(database, uri, projection, selection, selectionArgs);
+                /**
+                 * The results change with the names of any product, so watch the list of products
+                 */
+                uri = ProductContract.ProductEntry.LIST_URI;
+                break;
+            case PRODUCT_LOW_STOCK:
+                /**
+                 * The selection is the one the low stock index is partial on, so only the low stock rows are read,
+                 * in the order of the index
+                 */
+                cursor = database.query(ProductContract.ProductEntry.TABLE_NAME,
+                        ProductDBHelper.readPictureAsReference(projection),
+                        DatabaseUtils.concatenateWhere(ProductContract.ProductEntry.LOW_STOCK_SELECTION, selection),
+                        selectionArgs, null, null,
+                        sortOrder == null ? ProductContract.ProductEntry.LOW_STOCK_SORT_ORDER : sortOrder);
+                /**
+                 * Any quantity or reorder level change can add or remove a product, so watch all the products
+                 */
+                uri = ProductContract.ProductEntry.CONTENT_URI;
+                break;
+            case PRODUCT_STATS:
+                /**
+                 * A single row, whatever the number of products
+                 */
+                cursor = database.query(ProductContract.ProductStatsEntry.TABLE_NAME, projection, selection,
                         selectionArgs, null, null, sortOrder);
                 break;
+            case SALES:
+            case SALES_HOURLY:
+            case SALES_DAILY:
+                String table = match == SALES ? ProductContract.SalesEntry.TABLE_NAME
+                        : match == SALES_HOURLY ? ProductContract.SalesRollupEntry.HOURLY_TABLE_NAME
+                        : ProductContract.SalesRollupEntry.DAILY_TABLE_NAME;
+                cursor = database.query(table, projection, selection, selectionArgs, null, null, sortOrder);
+                /**
+                 * The ledger and the totals change together, so they're all watched through the ledger URI
+                 */
+                uri = ProductContract.SalesEntry.CONTENT_URI;
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -120,15 +463,103 @@ public class ProductProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Search the products through the full-text index of their names
+     * Every word of the query matches as a prefix, and the results are ranked with the names starting with the query
+     * first, then the shortest(closest) names, then by name
+     */
+    private Cursor searchProducts(SQLiteDatabase database, Uri uri, String[] projection, String selection,
+                                  String[] selectionArgs) {
+        String query = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_QUERY);
+        String limit = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_LIMIT);
+        String match = buildMatchExpression(query);
+
+        /**
+         * Nothing searchable in the query, so nothing matches
+         */
+        if (match.isEmpty()) {
+            selection = "0";
+            selectionArgs = null;
+        } else {
+            selection = DatabaseUtils.concatenateWhere(selection, ProductContract.ProductEntry._ID + " IN (SELECT "
+                    + ProductContract.ProductSearchEntry.COLUMN_DOCID + " FROM "
+                    + ProductContract.ProductSearchEntry.TABLE_NAME + " WHERE "
+                    + ProductContract.ProductSearchEntry.TABLE_NAME + " MATCH ?)");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new String[]{match});
+        }
+
+        String name = ProductContract.ProductEntry.COLUMN_PRODUCT_NAME;
+        String prefixPattern = DatabaseUtils.sqlEscapeString(escapeLikePattern(query == null ? "" : query.trim()) + "%");
+        String rankOrder = "CASE WHEN " + name + " LIKE " + prefixPattern + " ESCAPE '\\' THEN 0 ELSE 1 END, length("
+                + name + "), " + ProductContract.ProductEntry.PAGE_SORT_ORDER;
+
+        return database.query(ProductContract.ProductEntry.TABLE_NAME,
+                ProductDBHelper.readPictureAsReference(projection), selection, selectionArgs, null, null, rankOrder,
+                String.valueOf(limit == null ? DEFAULT_SEARCH_LIMIT : Integer.parseInt(limit)));
+    }
+
+    /**
+     * Turn the text typed by the user into an FTS MATCH expression, matching every word as a prefix
+     * Anything but letters and digits is dropped, so the user can't type FTS syntax
+     */
+    private static String buildMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        if (query == null)
+            return "";
+
+        int length = query.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordCharacter = i < length && Character.isLetterOrDigit(query.charAt(i));
+            if (wordCharacter && start == -1) {
+                start = i;
+            } else if (!wordCharacter && start != -1) {
+                if (match.length() > 0)
+                    match.append(' ');
+                match.append(query, start, i).append('*');
+                start = -1;
+            }
+        }
+        return match.toString();
+    }
+
+    /**
+     * Escape the wildcards of a LIKE pattern with a backslash
+     */
+    private static String escapeLikePattern(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
     @Nullable
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
+            case PRODUCT_SEARCH:
+            case PRODUCT_LOW_STOCK:
                 return ProductContract.ProductEntry.CONTENT_LIST_TYPE;
             case PRODUCT_ID:
+            case PRODUCT_SALE:
+            case PRODUCT_ADJUST:
                 return ProductContract.ProductEntry.CONTENT_ITEM_TYPE;
+            case PRODUCT_PICTURE:
+                return ProductContract.ProductEntry.PICTURE_MIME_TYPE;
+            case PRODUCT_THUMBNAIL:
+                return ProductContract.ProductEntry.THUMBNAIL_MIME_TYPE;
+            case PRODUCT_STATS:
+                return ProductContract.ProductStatsEntry.CONTENT_ITEM_TYPE;
+            case SALES:
+                return ProductContract.SalesEntry.CONTENT_LIST_TYPE;
+            case SALES_HOURLY:
+            case SALES_DAILY:
+                return ProductContract.SalesRollupEntry.CONTENT_LIST_TYPE;
+            case PRODUCT_EXPORT:
+                String mimeType = ProductExporter.getMimeType(uri.getQueryParameter(
+                        ProductContract.QUERY_PARAMETER_FORMAT));
+                if (mimeType == null)
+                    throw new IllegalArgumentException("Unknown export format " + uri);
+                return mimeType;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri + " with match " + match);
         }
@@ -138,11 +569,15 @@ public class ProductProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PRODUCTS:
-                return insertProduct(uri, values);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        if (match != PRODUCTS)
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+
+        Lock lock = mSwitchLock.readLock();
+        lock.lock();
+        try {
+            return insertProduct(uri, values);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -152,6 +587,68 @@ public class ProductProvider extends ContentProvider {
      * @return a new content URI for the specific row in the db
      */
     private Uri insertProduct(Uri uri, ContentValues values) {
+        validateNewProduct(values);
+
+        /**
+         * Move the picture into the picture store
+         */
+        values = new ContentValues(values);
+        if (!storePicture(values)) {
+            Log.e(LOG_TAG, "Failed to store picture for " + uri);
+            return null;
+        }
+
+        /**
+         * Insert the new product with the given values
+         * The usual columns are bound straight into the compiled insert, any other column needs a generic insert
+         */
+        Set<String> picture = Collections.singleton(
+                values.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE));
+        long id;
+        try {
+            if (PRODUCT_COLUMNS.containsAll(values.keySet())) {
+                try {
+                    id = getStatements().insert(values.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME),
+                            getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, 0),
+                            getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, 0),
+                            getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL, 0),
+                            values.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE));
+                } catch (SQLException e) {
+                    Log.e(LOG_TAG, "Error inserting " + uri, e);
+                    id = -1;
+                }
+            } else {
+                id = mDBHelper.getWritableDatabase().insert(ProductContract.ProductEntry.TABLE_NAME, null, values);
+            }
+        } finally {
+            unpinPictures(picture);
+        }
+        /**
+         * If the ID is -1, then the insertion is failed
+         */
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            releasePictures(mDBHelper.getWritableDatabase(), picture);
+            return null;
+        }
+
+        /**
+         * Notify the listeners of the new product and of the lists it's added to
+         */
+        notifyChange(ProductContract.ProductEntry.buildChangeUri(id, ProductContract.OP_INSERT));
+        notifyChange(ProductContract.ProductEntry.LIST_URI);
+        notifyChange(ProductContract.ProductStatsEntry.CONTENT_URI);
+
+        /**
+         * Return the new URI with the ID of the newly inserted row appended at the end
+         */
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Check that the given values describe a valid new product
+     */
+    private void validateNewProduct(ContentValues values) {
         /**
          * Check that the name is not null
          */
@@ -162,54 +659,187 @@ public class ProductProvider extends ContentProvider {
         /**
          * Check that the quantity is valid
          */
-        Integer quantity = values.getAsInteger(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY);
-        if (quantity != null && quantity < 0)
+        if (getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, 0) < 0)
             throw new IllegalArgumentException("Product requires valid quantity");
 
         /**
          * Check that the price is valid
          */
-        Integer price = values.getAsInteger(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE);
-        if (price != null && price < 0)
+        if (getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, 0) < 0)
             throw new IllegalArgumentException("Product requires valid price");
 
         /**
-         * Check that the picture is valid
+         * Check that the reorder level is valid
          */
-        byte[] picture = values.getAsByteArray(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE);
-        if (picture == null)
-            throw new IllegalArgumentException("Product requires valid picture");
+        if (getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL, 0) < 0)
+            throw new IllegalArgumentException("Product requires valid reorder level");
 
         /**
-         * Get the writable db
+         * Check that the picture is present, its value is checked when it's moved into the picture store
          */
-        SQLiteDatabase database = mDBHelper.getWritableDatabase();
+        if (!values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE))
+            throw new IllegalArgumentException("Product requires valid picture");
+    }
+
+    /**
+     * Read an integer column of the given values as a primitive
+     * Numbers and numeric strings are accepted, like {@link ContentValues#getAsInteger(String)} does,
+     * but anything else is rejected instead of being written as is
+     *
+     * @return the value, or the given default if the column is missing or null
+     */
+    private static int getInt(ContentValues values, String key, int defaultValue) {
+        Object value = values.get(key);
+        if (value == null)
+            return defaultValue;
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Product requires valid " + key);
+        }
+    }
+
+    /**
+     * Insert many products in a single transaction
+     * Every row is validated before anything is written, the pictures are moved into the picture store outside
+     * of the transaction, and the rows are then written with one compiled statement and a single notification
+     * A caller with many pictures stores them on its own threads and passes their references, so the writer
+     * only has to pin them
+     * The progress of the catalog import given by {@link ProductContract#QUERY_PARAMETER_IMPORT_ROWS_DONE} is stored
+     * in the same transaction, so an import never writes a chunk again after its process died
+     *
+     * @return the number of products inserted
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        Lock lock = mSwitchLock.readLock();
+        lock.lock();
+        try {
+            return bulkInsertProducts(uri, values);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Insert many products while the db can't be switched
+     */
+    private int bulkInsertProducts(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != PRODUCTS)
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        if (values.length == 0)
+            return 0;
+        String importRowsDone = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_IMPORT_ROWS_DONE);
+        if (importRowsDone != null)
+            importRowsDone = String.valueOf(Long.parseLong(importRowsDone));
 
         /**
-         * Insert the new product with the given values
-         */
-        long id = database.insert(ProductContract.ProductEntry.TABLE_NAME, null, values);
-        /**
-         * If the ID is -1, then the insertion is failed
+         * Validate every row up front, so a bad row can't leave half of the batch written
          */
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        ContentValues[] rows = new ContentValues[values.length];
+        for (int i = 0; i < values.length; i++) {
+            for (String key : values[i].keySet()) {
+                if (!PRODUCT_COLUMNS.contains(key))
+                    throw new IllegalArgumentException("Bulk insertion does not support column " + key);
+            }
+            validateNewProduct(values[i]);
+            rows[i] = new ContentValues(values[i]);
         }
 
+        ProductStatements statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+
         /**
-         * Notify all listeners that the data has changed for the product content URI
+         * Remember the stored pictures, so the ones no row ends up holding can be dropped
+         * A picture shared by rows is pinned once per row
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        List<String> storedPictures = new ArrayList<>();
+        boolean stored = false;
+        try {
+            for (ContentValues row : rows) {
+                if (!storePicture(row)) {
+                    Log.e(LOG_TAG, "Failed to store picture for " + uri);
+                    return 0;
+                }
+                storedPictures.add(row.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE));
+            }
+            stored = true;
+        } finally {
+            if (!stored) {
+                unpinPictures(storedPictures);
+                releasePictures(database, new HashSet<>(storedPictures));
+            }
+        }
+
+        int inserted = 0;
+        Set<String> failedPictures = new HashSet<>();
+        boolean committed = false;
+
+        database.beginTransaction();
+        try {
+            for (ContentValues row : rows) {
+                String picture = row.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE);
+                long id = statements.insert(row.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME),
+                        getInt(row, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, 0),
+                        getInt(row, ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, 0),
+                        getInt(row, ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL, 0), picture);
+                if (id == -1) {
+                    failedPictures.add(picture);
+                    continue;
+                }
+                inserted++;
+
+                /**
+                 * Let the readers and other writers in now and then during a large import
+                 */
+                if (inserted % BULK_INSERT_YIELD_INTERVAL == 0)
+                    database.yieldIfContendedSafely();
+            }
+            if (importRowsDone != null)
+                database.execSQL("UPDATE " + ProductContract.CatalogImportEntry.TABLE_NAME + " SET "
+                        + ProductContract.CatalogImportEntry.COLUMN_ROWS_DONE + " = ?", new Object[]{importRowsDone});
+            database.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            database.endTransaction();
+
+            /**
+             * Drop the pictures of the rows that weren't inserted, or of the whole batch if it was rolled back,
+             * once no uncommitted row can hold them
+             * A picture shared with a row that was committed, by this batch or before, is kept
+             */
+            unpinPictures(storedPictures);
+            releasePictures(database, committed ? failedPictures : new HashSet<>(storedPictures));
+        }
 
         /**
-         * Return the new URI with the ID of the newly inserted row appended at the end
+         * Notify the listeners of the lists once for the whole batch
          */
-        return ContentUris.withAppendedId(uri, id);
+        if (inserted != 0) {
+            notifyChange(ProductContract.ProductEntry.LIST_URI);
+            notifyChange(ProductContract.ProductStatsEntry.CONTENT_URI);
+        }
+
+        return inserted;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        Lock lock = mSwitchLock.readLock();
+        lock.lock();
+        try {
+            return deleteProducts(uri, selection, selectionArgs);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete products while the db can't be switched
+     */
+    private int deleteProducts(Uri uri, String selection, String[] selectionArgs) {
         /**
          * Get writable db
          */
@@ -221,12 +851,14 @@ public class ProductProvider extends ContentProvider {
         int rowsDeleted;
 
         final int match = sUriMatcher.match(uri);
+        Uri changeUri;
         switch (match) {
             case PRODUCTS:
                 /**
                  * Delete all rows that match the selection and selection arguments
+                 * The deleted rows are unknown, so every listener of the products is notified
                  */
-                rowsDeleted = database.delete(ProductContract.ProductEntry.TABLE_NAME, selection, selectionArgs);
+                changeUri = ProductContract.ProductEntry.CONTENT_URI;
                 break;
             case PRODUCT_ID:
                 /**
@@ -234,17 +866,29 @@ public class ProductProvider extends ContentProvider {
                  */
                 selection = ProductContract.ProductEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = database.delete(ProductContract.ProductEntry.TABLE_NAME, selection, selectionArgs);
+                changeUri = ProductContract.ProductEntry.buildChangeUri(ContentUris.parseId(uri),
+                        ProductContract.OP_DELETE);
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
         /**
-         * If 1 or more rows were deleted, then notify all listeners that the data at the given URI has changed
+         * Remember the pictures of the deleted rows, so the ones that are no longer used can be dropped
          */
-        if (rowsDeleted != 0)
-            getContext().getContentResolver().notifyChange(uri, null);
+        Set<String> pictures = match == PRODUCT_ID ? getPictureReferences(ContentUris.parseId(uri))
+                : getPictureReferences(database, selection, selectionArgs);
+        rowsDeleted = database.delete(ProductContract.ProductEntry.TABLE_NAME, selection, selectionArgs);
+        releasePictures(database, pictures);
+
+        /**
+         * If 1 or more rows were deleted, then notify the listeners of the deleted rows and of the lists
+         */
+        if (rowsDeleted != 0) {
+            notifyChange(changeUri);
+            notifyChange(ProductContract.ProductEntry.LIST_URI);
+            notifyChange(ProductContract.ProductStatsEntry.CONTENT_URI);
+        }
 
         /**
          * Return the number of rows deleted
@@ -254,29 +898,252 @@ public class ProductProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        Lock lock = mSwitchLock.readLock();
+        lock.lock();
+        try {
+            return updateProducts(uri, values, selection, selectionArgs);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Update products while the db can't be switched
+     */
+    private int updateProducts(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PRODUCTS:
                 return updateProduct(uri, values, selection, selectionArgs);
             case PRODUCT_ID:
+                /**
+                 * A whole product, as saved by the editor, goes through the compiled update
+                 */
+                if (selection == null && isWholeProduct(values))
+                    return updateProductById(ContentUris.parseId(uri), values);
                 /**
                  * For the PRODUCT_ID code, extract the ID from the URI to know which row to update
-                 * Selection will be "_id=?" and selection arguments will be a String array containing the actual ID
+                 * Selection will be "_id=?" and selection arguments will be a String array containing the actual ID,
+                 * followed by the given selection if any, so a caller can update the product only if it didn't change
                  */
-                selection = ProductContract.ProductEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                selection = DatabaseUtils.concatenateWhere(ProductContract.ProductEntry._ID + "=?", selection);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(
+                        new String[]{String.valueOf(ContentUris.parseId(uri))}, selectionArgs);
                 return updateProduct(uri, values, selection, selectionArgs);
+            /**
+             * An update counts the product it changed, the new quantity is returned by
+             * {@link ProductContract#METHOD_ADJUST_QUANTITY}
+             */
+            case PRODUCT_SALE:
+                return adjustQuantity(Long.parseLong(uri.getPathSegments().get(1)), -1)
+                        == ProductContract.ProductEntry.ADJUST_REJECTED ? 0 : 1;
+            case PRODUCT_ADJUST:
+                String delta = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_DELTA);
+                if (delta == null)
+                    throw new IllegalArgumentException("Adjustment requires a delta " + uri);
+                return adjustQuantity(Long.parseLong(uri.getPathSegments().get(1)), Integer.parseInt(delta))
+                        == ProductContract.ProductEntry.ADJUST_REJECTED ? 0 : 1;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
+    /**
+     * Change the quantity of a product by the given delta with a single conditional UPDATE,
+     * so concurrent sales can never lose an update or push the quantity below 0
+     *
+     * @param id    of the product
+     * @param delta signed quantity change, never 0
+     * @return the new quantity, or {@link ProductContract.ProductEntry#ADJUST_REJECTED} if nothing was changed
+     */
+    private int adjustQuantity(long id, int delta) {
+        /**
+         * A change of nothing would still write a ledger row and wake every listener
+         */
+        if (delta == 0)
+            throw new IllegalArgumentException("Adjustment requires a non-zero delta");
+
+        ProductStatements statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+        int newQuantity = ProductContract.ProductEntry.ADJUST_REJECTED;
+
+        /**
+         * Read back the new quantity in the same transaction, so it's the value this update produced,
+         * and append the change to the sales ledger in it too
+         */
+        database.beginTransaction();
+        try {
+            if (statements.adjust(id, delta) != 0) {
+                newQuantity = (int) statements.getQuantity(id);
+                statements.insertSale(id, delta, System.currentTimeMillis());
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        /**
+         * Notify the listeners of the product once the change is committed
+         */
+        if (newQuantity != ProductContract.ProductEntry.ADJUST_REJECTED) {
+            notifyChange(ProductContract.ProductEntry.buildChangeUri(id, ProductContract.OP_UPDATE));
+            notifyChange(ProductContract.ProductStatsEntry.CONTENT_URI);
+            notifyChange(ProductContract.SalesEntry.CONTENT_URI);
+        }
+
+        return newQuantity;
+    }
+
     /**
      * Update products in the db with the given content values
      *
      * @return the number of rows that were successfully updated
      */
     private int updateProduct(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        validateProductUpdate(values);
+
+        /**
+         * If there are no values to update, then don't try to update the db
+         */
+        if (values.size() == 0)
+            return 0;
+
+        /**
+         * Otherwise, get the writable db to update the data
+         */
+        SQLiteDatabase database = mDBHelper.getWritableDatabase();
+
+        /**
+         * If the {@link com.example.android.myinventory.data.ProductContract.ProductEntry#COLUMN_PRODUCT_PICTURE} key is present,
+         * check that the picture value is valid, move it into the picture store
+         * and remember the pictures being replaced
+         */
+        Set<String> replacedPictures = null;
+        Set<String> picture = null;
+        if (values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE)) {
+            values = new ContentValues(values);
+            if (!storePicture(values)) {
+                Log.e(LOG_TAG, "Failed to store picture for " + uri);
+                return 0;
+            }
+            picture = Collections.singleton(values.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE));
+        }
+
+        /**
+         * Perform the update on the db and get the number of rows affected
+         * The new picture is released too, so it's dropped if no row took it
+         */
+        int rowsUpdated;
+        try {
+            if (picture != null) {
+                replacedPictures = getPictureReferences(database, selection, selectionArgs);
+                replacedPictures.addAll(picture);
+            }
+            rowsUpdated = database.update(ProductContract.ProductEntry.TABLE_NAME, values, selection, selectionArgs);
+        } finally {
+            if (picture != null)
+                unpinPictures(picture);
+        }
+        if (replacedPictures != null)
+            releasePictures(database, replacedPictures);
+
+        /**
+         * If 1 or more rows were updated, then notify the listeners of the updated rows
+         * A single product is patched in place by the lists, unless its name changed and so did its place in them
+         * Otherwise the updated rows are unknown, so every listener of the products is notified
+         */
+        if (rowsUpdated != 0) {
+            if (sUriMatcher.match(uri) == PRODUCT_ID) {
+                notifyChange(ProductContract.ProductEntry.buildChangeUri(ContentUris.parseId(uri),
+                        ProductContract.OP_UPDATE));
+                if (values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME))
+                    notifyChange(ProductContract.ProductEntry.LIST_URI);
+                if (values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE)
+                        || values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY))
+                    notifyChange(ProductContract.ProductStatsEntry.CONTENT_URI);
+            } else
+                notifyChange(ProductContract.ProductEntry.CONTENT_URI);
+        }
+
+        /**
+         * Return the number of rows updated
+         */
+        return rowsUpdated;
+    }
+
+    /**
+     * Check if the given values hold the name, price, quantity and reorder level of a product, and maybe its picture,
+     * and nothing else
+     */
+    private static boolean isWholeProduct(ContentValues values) {
+        return values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME)
+                && values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE)
+                && values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY)
+                && values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL)
+                && PRODUCT_COLUMNS.containsAll(values.keySet());
+    }
+
+    /**
+     * Update a whole product with the compiled update, binding the values without copying them
+     *
+     * @param id     of the product
+     * @param values holding the name, price, quantity and reorder level, and maybe a new picture
+     * @return the number of rows that were successfully updated
+     */
+    private int updateProductById(long id, ContentValues values) {
+        validateProductUpdate(values);
+        ProductStatements statements = getStatements();
+
+        /**
+         * Move a new picture into the picture store, and remember the one it replaces
+         */
+        String picture = null;
+        Set<String> replacedPictures = null;
+        if (values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE)) {
+            values = new ContentValues(values);
+            if (!storePicture(values)) {
+                Log.e(LOG_TAG, "Failed to store picture for product " + id);
+                return 0;
+            }
+            picture = values.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE);
+        }
+
+        /**
+         * The new picture is released along with the replaced one, so it's dropped if the product is gone
+         */
+        int rowsUpdated;
+        try {
+            if (picture != null) {
+                replacedPictures = new HashSet<>(getPictureReferences(id));
+                replacedPictures.add(picture);
+            }
+            rowsUpdated = statements.update(id, values.getAsString(ProductContract.ProductEntry.COLUMN_PRODUCT_NAME),
+                    getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, 0),
+                    getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, 0),
+                    getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL, 0), picture);
+        } finally {
+            if (picture != null)
+                unpinPictures(Collections.singleton(picture));
+        }
+        if (replacedPictures != null)
+            releasePictures(statements.getDatabase(), replacedPictures);
+
+        /**
+         * The name, price and quantity are part of the update, so the lists and the totals are notified
+         * as well as the product
+         */
+        if (rowsUpdated != 0) {
+            notifyChange(ProductContract.ProductEntry.buildChangeUri(id, ProductContract.OP_UPDATE));
+            notifyChange(ProductContract.ProductEntry.LIST_URI);
+            notifyChange(ProductContract.ProductStatsEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Check that the given values are valid for the columns of a product they hold
+     */
+    private void validateProductUpdate(ContentValues values) {
         /**
          * If the {@link com.example.android.myinventory.data.ProductContract.ProductEntry#COLUMN_PRODUCT_NAME} key is present,
          * check that the name value is not null
@@ -291,57 +1158,645 @@ public class ProductProvider extends ContentProvider {
          * If the {@link com.example.android.myinventory.data.ProductContract.ProductEntry#COLUMN_PRODUCT_QUANTITY} key is present,
          * check that the quantity value is valid
          */
-        if (values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY)) {
-            Integer quantity = values.getAsInteger(ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY);
-            if (quantity != null && quantity < 0)
-                throw new IllegalArgumentException("Product requires valid quantity");
-        }
+        if (getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, 0) < 0)
+            throw new IllegalArgumentException("Product requires valid quantity");
 
         /**
          * If the {@link com.example.android.myinventory.data.ProductContract.ProductEntry#COLUMN_PRODUCT_PRICE} key is present,
          * check that the price value is valid
          */
-        if (values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE)) {
-            Integer price = values.getAsInteger(ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE);
-            if (price != null && price < 0)
-                throw new IllegalArgumentException("Product requires valid price");
-        }
+        if (getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE, 0) < 0)
+            throw new IllegalArgumentException("Product requires valid price");
 
         /**
-         * If the {@link com.example.android.myinventory.data.ProductContract.ProductEntry#COLUMN_PRODUCT_PICTURE} key is present,
-         * check that the picture value is valid
+         * If the {@link com.example.android.myinventory.data.ProductContract.ProductEntry#COLUMN_PRODUCT_REORDER_LEVEL} key is present,
+         * check that the reorder level value is valid
          */
-        if (values.containsKey(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE)) {
-            byte[] picture = values.getAsByteArray(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE);
-            if (picture == null)
-                throw new IllegalArgumentException("Product requires valid picture");
+        if (getInt(values, ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL, 0) < 0)
+            throw new IllegalArgumentException("Product requires valid reorder level");
+    }
+
+    /**
+     * Apply a batch of operations in a single transaction
+     * The change notifications are held back until the batch is committed and then sent once per URI,
+     * so the loaders only requery once for the whole batch
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        Lock lock = mSwitchLock.readLock();
+        lock.lock();
+        try {
+            return applyOperations(operations);
+        } finally {
+            lock.unlock();
         }
+    }
 
+    /**
+     * Apply a batch of operations while the db can't be switched
+     */
+    private ContentProviderResult[] applyOperations(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDBHelper.getWritableDatabase();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        Set<Uri> changes = new LinkedHashSet<>();
+        Set<String> releasedPictures = new HashSet<>();
+        List<String> pinnedPictures = new ArrayList<>();
+        boolean committed = false;
+
+        mBatchChanges.set(changes);
+        mBatchReleasedPictures.set(releasedPictures);
+        mBatchPinnedPictures.set(pinnedPictures);
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                /**
+                 * A yield commits the operations applied so far
+                 */
+                if (i > 0 && operation.isYieldAllowed() && database.yieldIfContendedSafely())
+                    committed = true;
+                /**
+                 * The operation resolves its back references against the results applied so far
+                 */
+                results[i] = operation.apply(this, results, i);
+            }
+            database.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            database.endTransaction();
+            mBatchChanges.remove();
+            mBatchReleasedPictures.remove();
+            mBatchPinnedPictures.remove();
+
+            /**
+             * Notify all listeners once per changed URI, and drop the released pictures no committed row holds,
+             * even if the batch failed after a yield committed part of it
+             * If nothing was committed, the rows still hold their pictures
+             * The pictures the batch stored are dropped too if no committed row took them
+             */
+            unpinPictures(pinnedPictures);
+            if (committed) {
+                for (Uri uri : changes)
+                    notifyChange(uri);
+                releasedPictures.addAll(pinnedPictures);
+                releasePictures(database, releasedPictures);
+            } else
+                releasePictures(database, new HashSet<>(pinnedPictures));
+        }
+
+        return results;
+    }
+
+    @Nullable
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
         /**
-         * If there are no values to update, then don't try to update the db
+         * A backup runs on the db like any operation, but it's serialized with the restores, which switch the db
          */
-        if (values.size() == 0)
-            return 0;
+        if (ProductContract.METHOD_BACKUP.equals(method))
+            return backup();
+        if (ProductContract.METHOD_RESTORE.equals(method))
+            return restore();
+
+        Lock lock = mSwitchLock.readLock();
+        lock.lock();
+        try {
+            return callMethod(method, arg, extras);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run a provider method other than a backup or a restore while the db can't be switched
+     */
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if (ProductContract.METHOD_APPLY_ADJUSTMENTS.equals(method))
+            return applyAdjustments(extras);
+        if (ProductContract.METHOD_COMPACT_SALES.equals(method))
+            return compactSales(extras);
+        if (ProductContract.METHOD_MIGRATE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putBoolean(ProductContract.EXTRA_MIGRATION_PENDING, mDBHelper.migrateNextBatch());
+            return result;
+        }
+        if (ProductContract.METHOD_ADJUST_QUANTITY.equals(method)) {
+            if (extras == null || !extras.containsKey(ProductContract.EXTRA_PRODUCT_ID)
+                    || !extras.containsKey(ProductContract.EXTRA_DELTA))
+                throw new IllegalArgumentException("Adjustment requires a product ID and a delta");
+            Bundle result = new Bundle();
+            result.putInt(ProductContract.EXTRA_QUANTITY, adjustQuantity(
+                    extras.getLong(ProductContract.EXTRA_PRODUCT_ID), extras.getInt(ProductContract.EXTRA_DELTA)));
+            return result;
+        }
+        if (ProductContract.METHOD_START_IMPORT.equals(method))
+            return startImport(arg);
+        if (ProductContract.METHOD_RELEASE_PICTURES.equals(method)) {
+            String[] pictures = extras == null ? null : extras.getStringArray(ProductContract.EXTRA_PICTURES);
+            if (pictures == null)
+                throw new IllegalArgumentException("Release requires pictures");
+            releasePictures(mDBHelper.getWritableDatabase(), new HashSet<>(Arrays.asList(pictures)));
+            return new Bundle();
+        }
+        if (ProductContract.METHOD_FINISH_IMPORT.equals(method)) {
+            setImportProgress(mDBHelper.getWritableDatabase(), null, 0);
+            return new Bundle();
+        }
+        if (ProductContract.METHOD_ROW_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(ProductContract.EXTRA_CACHE_HITS, mRowCache.hitCount());
+            result.putInt(ProductContract.EXTRA_CACHE_MISSES, mRowCache.missCount());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Start importing a catalog, keeping the progress of an interrupted import of the same catalog
+     *
+     * @param catalog URI of the catalog
+     * @return the number of rows of the catalog already written
+     */
+    private Bundle startImport(String catalog) {
+        if (catalog == null)
+            throw new IllegalArgumentException("Import requires a catalog");
+
+        SQLiteDatabase database = mDBHelper.getWritableDatabase();
+        long rowsDone = 0;
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.query(ProductContract.CatalogImportEntry.TABLE_NAME,
+                    new String[]{ProductContract.CatalogImportEntry.COLUMN_CATALOG,
+                            ProductContract.CatalogImportEntry.COLUMN_ROWS_DONE}, null, null, null, null, null);
+            try {
+                if (cursor.moveToFirst() && catalog.equals(cursor.getString(0)))
+                    rowsDone = cursor.getLong(1);
+            } finally {
+                cursor.close();
+            }
+            setImportProgress(database, catalog, rowsDone);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(ProductContract.EXTRA_ROWS_DONE, rowsDone);
+        return result;
+    }
+
+    /**
+     * Set the catalog being imported and the number of its rows written
+     */
+    private static void setImportProgress(SQLiteDatabase database, String catalog, long rowsDone) {
+        ContentValues values = new ContentValues();
+        values.put(ProductContract.CatalogImportEntry.COLUMN_CATALOG, catalog);
+        values.put(ProductContract.CatalogImportEntry.COLUMN_ROWS_DONE, rowsDone);
+        database.update(ProductContract.CatalogImportEntry.TABLE_NAME, values, null, null);
+    }
+
+    /**
+     * Apply a group of quantity changes in a single transaction, together with the journal sequence they cover
+     * Changes already covered by the stored sequence are skipped, and a quantity is never pushed below 0
+     * The change actually applied to every product is appended to the sales ledger in the same transaction
+     * The listeners aren't notified, the caller does it for the adjusted products
+     *
+     * @param extras holding the changes
+     * @return the highest journal sequence applied, the adjusted products, and the products the changes took down
+     * to their reorder level
+     */
+    private Bundle applyAdjustments(Bundle extras) {
+        long[] ids = extras == null ? null : extras.getLongArray(ProductContract.EXTRA_IDS);
+        int[] deltas = extras == null ? null : extras.getIntArray(ProductContract.EXTRA_DELTAS);
+        long[] sequences = extras == null ? null : extras.getLongArray(ProductContract.EXTRA_SEQUENCES);
+        if (ids == null || deltas == null || sequences == null || ids.length != deltas.length
+                || ids.length != sequences.length)
+            throw new IllegalArgumentException("Adjustments require matching ids, deltas and sequences");
+
+        ProductStatements statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+        Set<Long> adjustedIds = new HashSet<>();
+        Set<Long> lowStockIds = new LinkedHashSet<>();
+        long timestamp = System.currentTimeMillis();
+        long appliedSequence;
+
+        database.beginTransaction();
+        try {
+            appliedSequence = DatabaseUtils.longForQuery(database, "SELECT "
+                    + ProductContract.SaleJournalEntry.COLUMN_SEQUENCE + " FROM "
+                    + ProductContract.SaleJournalEntry.TABLE_NAME, null);
+            long highestSequence = appliedSequence;
+
+            for (int i = 0; i < ids.length; i++) {
+                if (sequences[i] <= appliedSequence || deltas[i] == 0)
+                    continue;
+
+                /**
+                 * Remember the products this change takes from above their reorder level to at or below it
+                 */
+                boolean wasLowStock = statements.isLowStock(ids[i]);
+                long oldQuantity = statements.getQuantity(ids[i]);
+                if (statements.adjustClamped(ids[i], deltas[i]) != 0) {
+                    adjustedIds.add(ids[i]);
+                    /**
+                     * The quantity stops at 0, so the ledger gets the change that was actually made
+                     */
+                    long applied = Math.max(oldQuantity + deltas[i], 0) - oldQuantity;
+                    if (applied != 0)
+                        statements.insertSale(ids[i], applied, timestamp);
+                    if (!wasLowStock && statements.isLowStock(ids[i]))
+                        lowStockIds.add(ids[i]);
+                }
+                highestSequence = Math.max(highestSequence, sequences[i]);
+            }
+
+            if (highestSequence != appliedSequence) {
+                ContentValues values = new ContentValues();
+                values.put(ProductContract.SaleJournalEntry.COLUMN_SEQUENCE, highestSequence);
+                database.update(ProductContract.SaleJournalEntry.TABLE_NAME, values, null, null);
+                appliedSequence = highestSequence;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
 
         /**
-         * Otherwise, get the writable db to update the data
+         * Only drop the cached rows: the caller still shows the changes on top of the stored quantities, so it
+         * notifies the listeners itself once it stopped doing so, or a row read in between would count them twice
          */
+        for (long id : adjustedIds)
+            mRowCache.invalidate(id);
+
+        long[] adjusted = new long[adjustedIds.size()];
+        int index = 0;
+        for (long id : adjustedIds)
+            adjusted[index++] = id;
+        long[] lowStock = new long[lowStockIds.size()];
+        index = 0;
+        for (long id : lowStockIds)
+            lowStock[index++] = id;
+
+        Bundle result = new Bundle();
+        result.putLong(ProductContract.EXTRA_SEQUENCE, appliedSequence);
+        result.putLongArray(ProductContract.EXTRA_ADJUSTED_IDS, adjusted);
+        result.putLongArray(ProductContract.EXTRA_LOW_STOCK_IDS, lowStock);
+        return result;
+    }
+
+    /**
+     * Drop the ledger entries and the hourly totals older than the given times, in one transaction
+     * Every entry was added to the totals when it was appended, so nothing is lost from the daily totals
+     *
+     * @param extras holding the times
+     * @return the number of rows deleted
+     */
+    private Bundle compactSales(Bundle extras) {
+        if (extras == null || !extras.containsKey(ProductContract.EXTRA_LEDGER_BEFORE)
+                || !extras.containsKey(ProductContract.EXTRA_HOURLY_BEFORE))
+            throw new IllegalArgumentException("Compaction requires the ledger and hourly cut-off times");
+
         SQLiteDatabase database = mDBHelper.getWritableDatabase();
+        int deleted;
+        database.beginTransaction();
+        try {
+            deleted = database.delete(ProductContract.SalesEntry.TABLE_NAME,
+                    ProductContract.SalesEntry.COLUMN_TIMESTAMP + "<?",
+                    new String[]{String.valueOf(extras.getLong(ProductContract.EXTRA_LEDGER_BEFORE))});
+            deleted += database.delete(ProductContract.SalesRollupEntry.HOURLY_TABLE_NAME,
+                    ProductContract.SalesRollupEntry.COLUMN_BUCKET + "<?",
+                    new String[]{String.valueOf(extras.getLong(ProductContract.EXTRA_HOURLY_BEFORE))});
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (deleted != 0)
+            notifyChange(ProductContract.SalesEntry.CONTENT_URI);
+
+        Bundle result = new Bundle();
+        result.putInt(ProductContract.EXTRA_DELETED, deleted);
+        return result;
+    }
+
+    /**
+     * Take a snapshot of the db while it's read and written, see {@link InventoryBackup}
+     *
+     * @return the kind, size and time of the snapshot, and how long the writes were held up
+     */
+    private Bundle backup() {
+        synchronized (mBackup) {
+            try {
+                return mBackup.backup(mDBHelper);
+            } catch (IOException e) {
+                throw new IllegalStateException("Backup failed", e);
+            } finally {
+                /**
+                 * Drop the pictures held back while the snapshot was taken, and those of a replaced chain
+                 */
+                releasePictures(mDBHelper.getWritableDatabase(), mBackup.takeReleasedPictures());
+            }
+        }
+    }
+
+    /**
+     * Rebuild the db from the snapshots into a new db file, then switch to it
+     * The db stays in use while it's rebuilt. The switch waits for the operations already running on the old db to
+     * finish there, and the operations starting meanwhile wait for the switch and then run on the restored db.
+     * Only then are the statements of the old db closed and the old db itself, so no operation fails halfway.
+     * An export already streaming reads the old db on its own thread, without the switch waiting for it, and fails
+     * once the old db is closed. Changes made since the last snapshot are lost, as with any restore.
+     *
+     * @return the number of snapshots restored, the time it took, and how long the switch held the writes up
+     */
+    private Bundle restore() {
+        synchronized (mBackup) {
+            long start = System.nanoTime();
+            String name = InventoryBackup.newDatabaseName();
+            Bundle result;
+            try {
+                result = mBackup.restore(name);
+            } catch (IOException e) {
+                throw new IllegalStateException("Restore failed", e);
+            }
+
+            long switchStart = System.nanoTime();
+            if (!ProductDBHelper.setCurrentDatabaseName(getContext(), name)) {
+                InventoryBackup.deleteDatabaseFiles(getContext().getDatabasePath(name));
+                throw new IllegalStateException("Cannot switch to the restored db");
+            }
+            ProductDBHelper replaced;
+            Lock lock = mSwitchLock.writeLock();
+            lock.lock();
+            try {
+                replaced = mDBHelper;
+                mDBHelper = new ProductDBHelper(getContext(), name, DatabaseSettings.fromResources(getContext()));
+                mExporter = new ProductExporter(mDBHelper, mPictureStore, getContext().getCacheDir());
+                closeStaleStatements(mDBHelper, null);
+                replaced.closeReplaced();
+            } finally {
+                lock.unlock();
+            }
+            long stallMillis = (System.nanoTime() - switchStart) / 1000000;
+
+            /**
+             * Connections still open on the old files keep them until they close
+             * The pictures only the old db referred to are dropped along with it
+             */
+            File replacedFile = getContext().getDatabasePath(replaced.getDatabaseName());
+            Set<String> replacedPictures = readPictureReferences(replacedFile);
+            InventoryBackup.deleteDatabaseFiles(replacedFile);
+            releasePictures(mDBHelper.getWritableDatabase(), replacedPictures);
+            notifyChange(ProductContract.ProductEntry.CONTENT_URI);
+            notifyChange(ProductContract.SalesEntry.CONTENT_URI);
+
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            Log.i(LOG_TAG, "Restored " + result.getInt(ProductContract.EXTRA_SNAPSHOT_COUNT) + " snapshots into "
+                    + name + " in " + elapsedMillis + " ms, switching held writes up " + stallMillis + " ms");
+            result.putLong(ProductContract.EXTRA_ELAPSED_MILLIS, elapsedMillis);
+            result.putLong(ProductContract.EXTRA_WRITE_STALL_MILLIS, stallMillis);
+            return result;
+        }
+    }
+
+    /**
+     * Read the picture references of a db file no helper has open any more
+     *
+     * @return the references, empty if the file can't be read, which only leaves its pictures behind
+     */
+    private Set<String> readPictureReferences(File file) {
+        try {
+            SQLiteDatabase database = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            try {
+                return getPictureReferences(database, null, null);
+            } finally {
+                database.close();
+            }
+        } catch (SQLException e) {
+            Log.w(LOG_TAG, "Cannot read the pictures of " + file, e);
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Open the picture or the thumbnail of a single product for reading
+     * The files are streamed from the {@link PictureStore}, so callers never have to pull them through a Cursor
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        final int match = sUriMatcher.match(uri);
+        if (match == PRODUCT_EXPORT)
+            return openExport(uri, mode);
+
+        Lock lock = mSwitchLock.readLock();
+        lock.lock();
+        try {
+            return openPicture(uri, mode, match);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Open the picture or the thumbnail of a product while the db can't be switched
+     */
+    private ParcelFileDescriptor openPicture(Uri uri, String mode, int match) throws FileNotFoundException {
+        if (match != PRODUCT_PICTURE && match != PRODUCT_THUMBNAIL)
+            throw new FileNotFoundException("Cannot open unknown URI " + uri);
+        if (!"r".equals(mode))
+            throw new FileNotFoundException("Pictures can only be opened for reading: " + uri);
 
         /**
-         * Perform the update on the db and get the number of rows affected
+         * The picture URIs are products/#/picture and products/#/thumbnail, so the ID is the second path segment
          */
-        int rowsUpdated = database.update(ProductContract.ProductEntry.TABLE_NAME, values, selection, selectionArgs);
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        String reference = getStatements().getPicture(id);
+        if (ProductDBHelper.isLegacyPicture(reference)) {
+            /**
+             * The picture is still stored as a BLOB the version 2 migration hasn't moved yet, so move it now
+             */
+            try {
+                reference = mDBHelper.movePictureToStore(id);
+            } catch (IOException e) {
+                throw new FileNotFoundException("Cannot move picture of " + uri + ": " + e.getMessage());
+            }
+        }
+        if (reference == null)
+            throw new FileNotFoundException("No picture for " + uri);
+
+        File file;
+        if (match == PRODUCT_PICTURE)
+            file = mPictureStore.getFile(reference);
+        else {
+            /**
+             * Thumbnails are made when a picture is stored, but pictures stored before thumbnails existed
+             * get theirs the first time it is asked for
+             */
+            try {
+                file = mPictureStore.putThumbnail(reference);
+            } catch (IOException e) {
+                throw new FileNotFoundException("No thumbnail for " + uri + ": " + e.getMessage());
+            }
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Open a pipe the export is written into by a background thread while the caller reads it,
+     * so the export is never held whole in memory or in a file
+     */
+    private ParcelFileDescriptor openExport(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode))
+            throw new FileNotFoundException("Exports can only be opened for reading: " + uri);
+        String format = uri.getQueryParameter(ProductContract.QUERY_PARAMETER_FORMAT);
+        String mimeType = ProductExporter.getMimeType(format);
+        if (mimeType == null)
+            throw new FileNotFoundException("Unknown export format " + uri);
+        return openPipeHelper(uri, mimeType, null, format, mExporter);
+    }
+
+    /**
+     * Replace the picture bytes in the given values with the reference of the picture in the {@link PictureStore}
+     * A reference to a picture already in the store is kept as is
+     * The thumbnail of the picture is made right away, so the list never has to decode a full picture
+     * The picture is left pinned, the caller unpins it with {@link #unpinPictures(Collection)} once the row is written
+     *
+     * @return false if the picture could not be stored
+     */
+    private boolean storePicture(ContentValues values) {
+        Object picture = values.get(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE);
+        if (picture instanceof String && mPictureStore.pin((String) picture)) {
+            storeThumbnail((String) picture);
+            return true;
+        }
+        if (!(picture instanceof byte[]))
+            throw new IllegalArgumentException("Product requires valid picture");
+
+        String reference;
+        try {
+            reference = mPictureStore.put((byte[]) picture);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to store picture", e);
+            return false;
+        }
+        values.put(ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE, reference);
+        storeThumbnail(reference);
+        return true;
+    }
+
+    /**
+     * Make the thumbnail of a stored picture
+     * A missing thumbnail is made again when it's opened, so failing here doesn't fail the write
+     */
+    private void storeThumbnail(String reference) {
+        try {
+            mPictureStore.putThumbnail(reference);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to make thumbnail of picture " + reference, e);
+        }
+    }
+
+    /**
+     * Get the picture reference of a single product with the compiled lookup
+     */
+    private Set<String> getPictureReferences(long id) {
+        String picture = getStatements().getPicture(id);
+        return picture == null ? Collections.<String>emptySet() : Collections.singleton(picture);
+    }
+
+    /**
+     * Get the distinct picture references of the products matching the selection
+     */
+    private Set<String> getPictureReferences(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Set<String> pictures = new HashSet<>();
+        Cursor cursor = database.query(true, ProductContract.ProductEntry.TABLE_NAME,
+                new String[]{ProductDBHelper.PICTURE_REFERENCE}, selection, selectionArgs,
+                null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String picture = cursor.getString(0);
+                if (picture != null)
+                    pictures.add(picture);
+            }
+        } finally {
+            cursor.close();
+        }
+        return pictures;
+    }
+
+    /**
+     * Drop the pins of the pictures stored for rows that are now written
+     * Inside of a batch, the pins are held until the batch is committed or rolled back
+     */
+    private void unpinPictures(Collection<String> pictures) {
+        List<String> batchPinnedPictures = mBatchPinnedPictures.get();
+        if (batchPinnedPictures != null) {
+            batchPinnedPictures.addAll(pictures);
+            return;
+        }
 
+        for (String picture : pictures)
+            mPictureStore.unpin(picture);
+    }
+
+    /**
+     * Delete the given pictures from the {@link PictureStore} unless a product still refers to them,
+     * a write on any thread is about to, or a snapshot of the backup holds them
+     * Inside of a batch, the pictures are held back until the batch is committed
+     */
+    private void releasePictures(final SQLiteDatabase database, Set<String> pictures) {
+        Set<String> batchReleasedPictures = mBatchReleasedPictures.get();
+        if (batchReleasedPictures != null) {
+            batchReleasedPictures.addAll(pictures);
+            return;
+        }
+
+        PictureStore.References references = new PictureStore.References() {
+            @Override
+            public boolean isReferenced(String reference) {
+                /**
+                 * Stop at the first row, served by the picture index
+                 */
+                return DatabaseUtils.longForQuery(database, "SELECT EXISTS(SELECT 1 FROM "
+                        + ProductContract.ProductEntry.TABLE_NAME + " WHERE " + ProductDBHelper.PICTURE_SELECTION
+                        + ")", new String[]{reference}) != 0 || mBackup.holdsPicture(reference);
+            }
+        };
         /**
-         * If 1 or more rows were updated, then notify all listeners that the data at the given URI has changed
+         * A picture still stored as a BLOB isn't a valid reference, it goes away with its row
          */
-        if (rowsUpdated != 0)
+        for (String picture : pictures)
+            mPictureStore.release(picture, references);
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed
+     * Inside of a batch, the notification is held back until the batch is committed
+     * The cached rows the change covers are dropped along with the notification, so only once the change is committed
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+        } else {
+            invalidateCachedRows(uri);
             getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
 
-        /**
-         * Return the number of rows updated
-         */
-        return rowsUpdated;
+    /**
+     * Drop the cached rows of the products changed at the given URI
+     * A change of a single product, like an update, a delete or a sale, only drops the row of that product,
+     * a change of unknown products drops every row
+     */
+    private void invalidateCachedRows(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        if (match == PRODUCT_ID)
+            mRowCache.invalidate(ContentUris.parseId(uri));
+        else if (ProductContract.ProductEntry.CONTENT_URI.equals(uri))
+            mRowCache.invalidateAll();
     }
 }
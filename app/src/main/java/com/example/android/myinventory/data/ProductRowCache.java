@@ -0,0 +1,153 @@
+package com.example.android.myinventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory LRU of the single product rows read by ID, so opening a product the user just looked at doesn't query the db
+ * <p>
+ * The rows hold the columns of {@link #COLUMNS} and are sized by their strings. The picture column only holds the
+ * reference of the picture, the picture itself is never cached here.
+ * A row is dropped once a change of its product is committed. A read racing with a change never caches the row it
+ * read, since any change committed meanwhile bumps the generation the read started at.
+ */
+class ProductRowCache {
+    /**
+     * Columns of the cached rows, a projection of only these columns can be served from the cache
+     */
+    static final String[] COLUMNS = {ProductContract.ProductEntry._ID,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_NAME, ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY, ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL,
+            ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE};
+    /**
+     * Most bytes of rows kept
+     */
+    private static final int MAX_BYTES = 128 * 1024;
+    /**
+     * Bytes counted for a row besides its strings: the array, the boxed numbers and the entry of the LRU
+     */
+    private static final int ROW_OVERHEAD_BYTES = 96;
+
+    private static final Map<String, Integer> COLUMN_INDICES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < COLUMNS.length; i++)
+            COLUMN_INDICES.put(COLUMNS[i], i);
+    }
+
+    private final LruCache<Long, Object[]> mRows = new LruCache<Long, Object[]>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(Long id, Object[] row) {
+            int size = ROW_OVERHEAD_BYTES;
+            for (Object value : row) {
+                if (value instanceof String)
+                    size += ((String) value).length() * 2;
+            }
+            return size;
+        }
+    };
+    /**
+     * Bumped by every invalidation, guarded by this
+     */
+    private long mGeneration;
+
+    /**
+     * Check if the rows of a projection can be served from the cache
+     */
+    static boolean canServe(String[] projection) {
+        if (projection == null)
+            return false;
+        for (String column : projection) {
+            if (!COLUMN_INDICES.containsKey(column))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the generation to pass to {@link #put(long, Cursor, long, String[])} for a read starting now
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Get the cached row of a product
+     *
+     * @param projection accepted by {@link #canServe(String[])}
+     * @return a cursor holding the row, or null if it isn't cached
+     */
+    Cursor get(long id, String[] projection) {
+        Object[] row = mRows.get(id);
+        return row == null ? null : newCursor(row, projection);
+    }
+
+    /**
+     * Cache the row of a product read from the db, unless the product may have changed since the read started
+     *
+     * @param row        cursor of the {@link #COLUMNS} of the product, closed here
+     * @param generation returned by {@link #getGeneration()} before the read
+     * @param projection accepted by {@link #canServe(String[])}
+     * @return a cursor holding the row, or no row if the product doesn't exist
+     */
+    Cursor put(long id, Cursor row, long generation, String[] projection) {
+        Object[] values;
+        try {
+            if (!row.moveToFirst())
+                return new MatrixCursor(projection, 0);
+            values = new Object[]{row.getLong(0), row.getString(1), row.getInt(2), row.getInt(3), row.getInt(4),
+                    row.getString(5)};
+        } finally {
+            row.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration)
+                mRows.put(id, values);
+        }
+        return newCursor(values, projection);
+    }
+
+    /**
+     * Drop the row of a product, once its change is committed
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Drop every row, once a change of unknown products is committed
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    /**
+     * Get the number of lookups served from the cache
+     */
+    int hitCount() {
+        return mRows.hitCount();
+    }
+
+    /**
+     * Get the number of lookups that had to read the db
+     */
+    int missCount() {
+        return mRows.missCount();
+    }
+
+    private static Cursor newCursor(Object[] row, String[] projection) {
+        Object[] values = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++)
+            values[i] = row[COLUMN_INDICES.get(projection[i])];
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.android.myinventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled statements of the hot product writes and lookups, bound with primitives
+ * <p>
+ * Every statement is compiled the first time it's used and then kept, so the SQL is never built
+ * or parsed again and no {@link android.content.ContentValues} is needed.
+ * A {@link SQLiteStatement} holds its bind arguments, so a set of statements is only ever used by one thread.
+ * Any thread may close a set once its db is replaced, a statement running meanwhile finishes and later ones fail.
+ */
+class ProductStatements {
+    /**
+     * Db the statements run on, null once closed so a closed set doesn't keep the db reachable
+     */
+    private SQLiteDatabase mDatabase;
+    /**
+     * Every statement compiled so far, guarded by this
+     */
+    private final List<SQLiteStatement> mCompiled = new ArrayList<>();
+
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mUpdate;
+    private SQLiteStatement mUpdateWithPicture;
+    private SQLiteStatement mAdjust;
+    private SQLiteStatement mAdjustClamped;
+    private SQLiteStatement mQuantityById;
+    private SQLiteStatement mPictureById;
+    private SQLiteStatement mLowStockById;
+    private SQLiteStatement mInsertSale;
+
+    /**
+     * Constructs a new {@link ProductStatements}
+     *
+     * @param database the statements run on
+     */
+    ProductStatements(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Get the db the statements run on
+     *
+     * @return the db, or null once the statements are closed
+     */
+    synchronized SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Close every statement compiled so far, and drop the db
+     */
+    synchronized void close() {
+        for (SQLiteStatement statement : mCompiled)
+            statement.close();
+        mCompiled.clear();
+        mDatabase = null;
+    }
+
+    /**
+     * Compile a statement, kept to be closed with the set
+     *
+     * @throws IllegalStateException if the set was closed
+     */
+    private synchronized SQLiteStatement compile(String sql) {
+        if (mDatabase == null)
+            throw new IllegalStateException("Statements closed, the db was replaced");
+        SQLiteStatement statement = mDatabase.compileStatement(sql);
+        mCompiled.add(statement);
+        return statement;
+    }
+
+    /**
+     * Insert a product
+     *
+     * @return the ID of the new product, or -1 if the insert failed
+     */
+    long insert(String name, long price, long quantity, long reorderLevel, String picture) {
+        if (mInsert == null)
+            mInsert = compile("INSERT INTO " + ProductContract.ProductEntry.TABLE_NAME + " ("
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + ", "
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + ", "
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + ", "
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL + ", "
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + ") VALUES (?, ?, ?, ?, ?)");
+        mInsert.bindString(1, name);
+        mInsert.bindLong(2, price);
+        mInsert.bindLong(3, quantity);
+        mInsert.bindLong(4, reorderLevel);
+        mInsert.bindString(5, picture);
+        return mInsert.executeInsert();
+    }
+
+    /**
+     * Update the name, price, quantity and reorder level of a product, and its picture if given
+     *
+     * @param picture new reference of the picture, or null to keep the current one
+     * @return the number of rows updated
+     */
+    int update(long id, String name, long price, long quantity, long reorderLevel, String picture) {
+        SQLiteStatement update;
+        if (picture == null) {
+            if (mUpdate == null)
+                mUpdate = compile("UPDATE " + ProductContract.ProductEntry.TABLE_NAME + " SET "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + " = ?, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + " = ?, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " = ?, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL + " = ? WHERE "
+                        + ProductContract.ProductEntry._ID + " = ?");
+            update = mUpdate;
+        } else {
+            if (mUpdateWithPicture == null)
+                mUpdateWithPicture = compile("UPDATE " + ProductContract.ProductEntry.TABLE_NAME
+                        + " SET " + ProductContract.ProductEntry.COLUMN_PRODUCT_NAME + " = ?, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_PRICE + " = ?, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " = ?, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_REORDER_LEVEL + " = ?, "
+                        + ProductContract.ProductEntry.COLUMN_PRODUCT_PICTURE + " = ? WHERE "
+                        + ProductContract.ProductEntry._ID + " = ?");
+            update = mUpdateWithPicture;
+        }
+
+        update.bindString(1, name);
+        update.bindLong(2, price);
+        update.bindLong(3, quantity);
+        update.bindLong(4, reorderLevel);
+        if (picture == null) {
+            update.bindLong(5, id);
+        } else {
+            update.bindString(5, picture);
+            update.bindLong(6, id);
+        }
+        return update.executeUpdateDelete();
+    }
+
+    /**
+     * Change the quantity of a product by the given delta, unless it would go below 0
+     *
+     * @return the number of rows updated
+     */
+    int adjust(long id, long delta) {
+        if (mAdjust == null)
+            mAdjust = compile("UPDATE " + ProductContract.ProductEntry.TABLE_NAME + " SET "
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " = "
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?1 WHERE "
+                    + ProductContract.ProductEntry._ID + " = ?2 AND "
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?1 >= 0");
+        mAdjust.bindLong(1, delta);
+        mAdjust.bindLong(2, id);
+        return mAdjust.executeUpdateDelete();
+    }
+
+    /**
+     * Change the quantity of a product by the given delta, stopping at 0
+     *
+     * @return the number of rows updated
+     */
+    int adjustClamped(long id, long delta) {
+        if (mAdjustClamped == null)
+            mAdjustClamped = compile("UPDATE " + ProductContract.ProductEntry.TABLE_NAME
+                    + " SET " + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " = MAX("
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " + ?, 0) WHERE "
+                    + ProductContract.ProductEntry._ID + " = ?");
+        mAdjustClamped.bindLong(1, delta);
+        mAdjustClamped.bindLong(2, id);
+        return mAdjustClamped.executeUpdateDelete();
+    }
+
+    /**
+     * Get the quantity of a product
+     *
+     * @return the quantity, or -1 if there is no such product
+     */
+    long getQuantity(long id) {
+        if (mQuantityById == null)
+            mQuantityById = compile("SELECT "
+                    + ProductContract.ProductEntry.COLUMN_PRODUCT_QUANTITY + " FROM "
+                    + ProductContract.ProductEntry.TABLE_NAME + " WHERE " + ProductContract.ProductEntry._ID + " = ?");
+        mQuantityById.bindLong(1, id);
+        try {
+            return mQuantityById.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Append a quantity change to the sales ledger
+     * Must run in the transaction of the change
+     *
+     * @param delta     signed quantity change actually applied
+     * @param timestamp of the change, in ms since the epoch
+     * @return the ID of the ledger entry
+     */
+    long insertSale(long productId, long delta, long timestamp) {
+        if (mInsertSale == null)
+            mInsertSale = compile("INSERT INTO " + ProductContract.SalesEntry.TABLE_NAME + " ("
+                    + ProductContract.SalesEntry.COLUMN_PRODUCT_ID + ", "
+                    + ProductContract.SalesEntry.COLUMN_DELTA + ", "
+                    + ProductContract.SalesEntry.COLUMN_TIMESTAMP + ") VALUES (?, ?, ?)");
+        mInsertSale.bindLong(1, productId);
+        mInsertSale.bindLong(2, delta);
+        mInsertSale.bindLong(3, timestamp);
+        return mInsertSale.executeInsert();
+    }
+
+    /**
+     * Check if a product is at or below its reorder level
+     *
+     * @return false if it's above, or if there is no such product
+     */
+    boolean isLowStock(long id) {
+        if (mLowStockById == null)
+            mLowStockById = compile("SELECT count(*) FROM "
+                    + ProductContract.ProductEntry.TABLE_NAME + " WHERE " + ProductContract.ProductEntry._ID
+                    + " = ? AND " + ProductContract.ProductEntry.LOW_STOCK_SELECTION);
+        mLowStockById.bindLong(1, id);
+        return mLowStockById.simpleQueryForLong() != 0;
+    }
+
+    /**
+     * Get the reference of the picture of a product, read through {@link ProductDBHelper#PICTURE_REFERENCE}
+     *
+     * @return the reference, or null if there is no such product
+     */
+    String getPicture(long id) {
+        if (mPictureById == null)
+            mPictureById = compile("SELECT " + ProductDBHelper.PICTURE_REFERENCE + " FROM "
+                    + ProductContract.ProductEntry.TABLE_NAME + " WHERE " + ProductContract.ProductEntry._ID + " = ?");
+        mPictureById.bindLong(1, id);
+        try {
+            return mPictureById.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.android.myinventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the product inserts, updates and deletes to the provider on a single writer thread,
+ * so no product write runs on the UI thread
+ * <p>
+ * The writes are queued in order in a bounded queue. When it's full a write is refused instead of queued,
+ * so a caller producing writes faster than the db takes them finds out and can slow down.
+ * A background caller can instead wait for room in the queue, see {@link #bulkInsertBlocking}.
+ * The result of every write is handed back through a {@link Future}, and to a {@link Callback} on the UI thread.
+ */
+public class ProductWriter {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = ProductWriter.class.getSimpleName();
+    /**
+     * Number of writes that can wait for the writer thread
+     */
+    private static final int QUEUE_CAPACITY = 16;
+
+    private static ProductWriter sInstance;
+
+    /**
+     * Receives the result of a write on the UI thread
+     *
+     * @param <T> type of the result
+     */
+    public interface Callback<T> {
+        /**
+         * Called on the UI thread once the write is done
+         *
+         * @param result of the write, the URI of the new product or the number of rows affected
+         *               A failed write gives null or 0, like the provider does
+         */
+        void onWriteFinished(T result);
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final BlockingQueue<Runnable> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Get the writer of the app
+     *
+     * @param context of the app
+     */
+    public static synchronized ProductWriter getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new ProductWriter(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private ProductWriter(Context context) {
+        mResolver = context.getContentResolver();
+        /**
+         * The default abort policy refuses a write once the queue is full
+         */
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, mQueue, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, LOG_TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        /**
+         * The writer thread never times out, so the writes put straight into the queue always have it to run them
+         */
+        mExecutor.prestartCoreThread();
+    }
+
+    /**
+     * Insert a product
+     * The values are owned by the writer once handed over, and must not be changed anymore
+     *
+     * @param uri      to insert into
+     * @param values   of the product, with its picture if any
+     * @param callback receiving the URI of the new product, or null on failure, or null for no callback
+     * @return future of the URI of the new product, or null if the queue is full and the insert was refused
+     */
+    public Future<Uri> insert(final Uri uri, final ContentValues values, Callback<Uri> callback) {
+        return submit("insert " + uri, new Callable<Uri>() {
+            @Override
+            public Uri call() {
+                return mResolver.insert(uri, values);
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Insert many products in a single transaction
+     * The values are owned by the writer once handed over, and must not be changed anymore
+     *
+     * @param uri      to insert into
+     * @param values   of the products, with their pictures
+     * @param callback receiving the number of products inserted, or null for no callback
+     * @return future of the number of products inserted, or null if the queue is full and the insert was refused
+     */
+    public Future<Integer> bulkInsert(Uri uri, ContentValues[] values, Callback<Integer> callback) {
+        FutureTask<Integer> task = newBulkInsert(uri, values, callback);
+        return execute(task) ? task : null;
+    }
+
+    /**
+     * Insert many products in a single transaction, waiting for room in the queue if it's full
+     * Only to be called off the UI thread, by a producer that should go at the pace of the writer
+     * The values are owned by the writer once handed over, and must not be changed anymore
+     *
+     * @param uri      to insert into
+     * @param values   of the products, with their pictures
+     * @param callback receiving the number of products inserted, or null for no callback
+     * @return future of the number of products inserted
+     * @throws InterruptedException if interrupted while waiting for room, the insert isn't queued then
+     */
+    public Future<Integer> bulkInsertBlocking(Uri uri, ContentValues[] values, Callback<Integer> callback)
+            throws InterruptedException {
+        FutureTask<Integer> task = newBulkInsert(uri, values, callback);
+        mQueue.put(task);
+        return task;
+    }
+
+    private FutureTask<Integer> newBulkInsert(final Uri uri, final ContentValues[] values,
+                                              Callback<Integer> callback) {
+        return newTask("bulk insert " + values.length + " into " + uri, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mResolver.bulkInsert(uri, values);
+            }
+        }, 0, callback);
+    }
+
+    /**
+     * Update products
+     * The values are owned by the writer once handed over, and must not be changed anymore
+     *
+     * @param uri           of the products to update
+     * @param values        to update, with a new picture if any
+     * @param selection     restricting the update, or null
+     * @param selectionArgs of the selection, or null
+     * @param callback      receiving the number of rows updated, or null for no callback
+     * @return future of the number of rows updated, or null if the queue is full and the update was refused
+     */
+    public Future<Integer> update(final Uri uri, final ContentValues values, final String selection,
+                                  final String[] selectionArgs, Callback<Integer> callback) {
+        return submit("update " + uri, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mResolver.update(uri, values, selection, selectionArgs);
+            }
+        }, 0, callback);
+    }
+
+    /**
+     * Delete products
+     *
+     * @param uri           of the products to delete
+     * @param selection     restricting the delete, or null
+     * @param selectionArgs of the selection, or null
+     * @param callback      receiving the number of rows deleted, or null for no callback
+     * @return future of the number of rows deleted, or null if the queue is full and the delete was refused
+     */
+    public Future<Integer> delete(final Uri uri, final String selection, final String[] selectionArgs,
+                                  Callback<Integer> callback) {
+        return submit("delete " + uri, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mResolver.delete(uri, selection, selectionArgs);
+            }
+        }, 0, callback);
+    }
+
+    /**
+     * Get the number of writes that can still be queued before writes are refused
+     */
+    public int getRemainingCapacity() {
+        return mQueue.remainingCapacity();
+    }
+
+    /**
+     * Queue a write
+     *
+     * @param description of the write for the log
+     * @param write       run on the writer thread
+     * @param failure     result handed to the callback when the write throws
+     * @param callback    receiving the result on the UI thread, or null
+     * @return future of the result, or null if the queue is full
+     */
+    private <T> Future<T> submit(String description, Callable<T> write, T failure, Callback<T> callback) {
+        FutureTask<T> task = newTask(description, write, failure, callback);
+        return execute(task) ? task : null;
+    }
+
+    /**
+     * Queue a write unless the queue is full
+     *
+     * @return false if the write was refused
+     */
+    private boolean execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Write queue full, refused to " + task);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wrap a write into a task handing its result to the callback
+     *
+     * @param description of the write for the log
+     * @param write       run on the writer thread
+     * @param failure     result handed to the callback when the write throws
+     * @param callback    receiving the result on the UI thread, or null
+     */
+    private <T> FutureTask<T> newTask(final String description, Callable<T> write, final T failure,
+                                      final Callback<T> callback) {
+        return new FutureTask<T>(write) {
+            /**
+             * Called on the writer thread once the write is done, so getting the result doesn't block
+             */
+            @Override
+            protected void done() {
+                if (isCancelled())
+                    return;
+
+                T result;
+                try {
+                    result = get();
+                } catch (ExecutionException | InterruptedException e) {
+                    Log.e(LOG_TAG, "Failed to " + description, e);
+                    result = failure;
+                }
+
+                if (callback != null) {
+                    final T delivered = result;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onWriteFinished(delivered);
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public String toString() {
+                return description;
+            }
+        };
+    }
+}
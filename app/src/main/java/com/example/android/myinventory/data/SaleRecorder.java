@@ -0,0 +1,854 @@
+package com.example.android.myinventory.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.myinventory.InventoryMaintenanceService;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers the quantity changes of the sales in memory and writes them to the provider in groups
+ * <p>
+ * Recording a change appends one small record to the journal file before the change is shown, so a killed process
+ * never loses it, then adds it to a per product counter and to a queue drained by the recorder thread.
+ * The append is the only thing done under the journal lock: the records have to be in the order of their sequences,
+ * which a lock-free append can't keep, and the journal has to hold the change before it's shown. The recorder thread
+ * never holds the lock for anything but swapping the journal stream, it opens, closes and renames the files outside
+ * of it. The next journal starts {@link #OPENING_SEQUENCE_GAP} sequences ahead, so the changes recorded while it's
+ * opened still fit below it; the skipped sequences are never used, the provider only compares them.
+ * The counters are striped by product ID, so the list reading them and the recorder thread taking flushed changes
+ * off them rarely meet, and they're primitive, so recording a sale doesn't box anything.
+ * The recorder thread syncs the journal to the disk once per drained group, and counts the changes in the next group.
+ * The groups are flushed as one transaction after {@link #FLUSH_INTERVAL_MS} or once {@link #FLUSH_THRESHOLD}
+ * changes are waiting, whichever comes first.
+ * The journal sequence is stored in the same transaction, so replaying a journal after a crash never applies
+ * a change twice. A journal segment is only deleted once all of its changes are applied.
+ * Changes are journaled right away even while the journal of the previous run is being replayed: the new journal
+ * starts above the highest sequence left on the disk, which is never below the sequence stored by the provider.
+ */
+public class SaleRecorder {
+    /**
+     * Tag for the log messages
+     */
+    public static final String LOG_TAG = SaleRecorder.class.getSimpleName();
+    /**
+     * Longest time a change waits in memory before being flushed
+     */
+    private static final long FLUSH_INTERVAL_MS = 500;
+    /**
+     * Number of waiting changes that triggers a flush right away
+     */
+    private static final int FLUSH_THRESHOLD = 64;
+    /**
+     * Time to wait before replaying the journal again when the db can't be read
+     */
+    private static final long REPLAY_RETRY_MS = 5000;
+    /**
+     * Name of the journal receiving the new changes, as left by the versions before {@link #OPEN_JOURNAL_PREFIX}
+     */
+    private static final String JOURNAL_NAME = "sales.journal";
+    /**
+     * Prefix of the journal receiving the new changes, followed by the sequence of its opening record
+     * Every journal gets a name of its own, so the next one can be opened while the current one is still in use
+     */
+    private static final String OPEN_JOURNAL_PREFIX = JOURNAL_NAME + "-";
+    /**
+     * Prefix of the journal segments being flushed, followed by the highest sequence they hold
+     */
+    private static final String SEGMENT_PREFIX = JOURNAL_NAME + ".";
+    /**
+     * Size of a journal record: sequence(long), product ID(long) and delta(int)
+     * Every journal starts with a record of delta 0 holding the highest sequence given when it was opened
+     */
+    private static final int RECORD_SIZE = 20;
+    /**
+     * Sequences skipped by the opening record of a journal opened in the background, above the highest sequence
+     * given when it was opened, for the changes recorded until it replaces the current journal
+     */
+    private static final long OPENING_SEQUENCE_GAP = 1 << 16;
+
+    private static SaleRecorder sInstance;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final File mDirectory;
+    private final ScheduledExecutorService mExecutor;
+
+    /**
+     * Quantity changes not stored by the provider yet, per product ID, shown on top of the stored quantities
+     */
+    private final PendingDeltas mUnflushed = new PendingDeltas();
+    /**
+     * Number of changes not stored by the provider yet, so no counter is looked up while there is none
+     */
+    private final AtomicInteger mUnflushedChanges = new AtomicInteger();
+    /**
+     * Changes journaled but not counted in a group yet, drained by the recorder thread
+     * A change is queued under the journal lock, so a rotated journal only holds changes already drained
+     */
+    private final ConcurrentLinkedQueue<Change> mQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * Whether a drain of the queue is scheduled on the recorder thread
+     */
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    /**
+     * Guards the journal being appended to and the sequences
+     * Only held for the append of one record, or while the recorder thread swaps the journal for the next one
+     */
+    private final Object mJournalLock = new Object();
+    private final byte[] mRecordBuffer = new byte[RECORD_SIZE];
+    private FileOutputStream mJournal;
+    private File mJournalFile;
+    /**
+     * Number of changes appended to the journal since it was opened
+     */
+    private int mJournalChanges;
+    /**
+     * Highest sequence given to a change, above every sequence journaled or stored by a previous run
+     */
+    private long mSequence;
+
+    /**
+     * The fields below are only used on the recorder thread
+     * Journaled changes waiting to be flushed, per product ID, and the number of changes they add up
+     */
+    private final Map<Long, Integer> mBatch = new HashMap<>();
+    private int mBatchChanges;
+    /**
+     * Whether the journal left by a previous run was replayed, no group is flushed before
+     */
+    private boolean mReplayed;
+    private ScheduledFuture<?> mScheduledFlush;
+
+    private final Runnable mReplayTask = new Runnable() {
+        @Override
+        public void run() {
+            replayJournal();
+        }
+    };
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            drainQueue();
+        }
+    };
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            drainQueue();
+            flushPending();
+        }
+    };
+
+    /**
+     * Get the recorder of the app
+     *
+     * @param context of the app
+     */
+    public static synchronized SaleRecorder getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new SaleRecorder(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private SaleRecorder(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mDirectory = context.getFilesDir();
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, LOG_TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        startJournal();
+        mExecutor.execute(mReplayTask);
+    }
+
+    /**
+     * Keep the journals of the previous run as segments for the replay, and open a new journal numbered above them
+     * Only the file names and the last record of the journals are read, so it's cheap enough for the first caller
+     * A run that died while swapping journals leaves two of them, both are kept
+     */
+    private void startJournal() {
+        synchronized (mJournalLock) {
+            long highestSequence = 0;
+            List<File> journals = new ArrayList<>();
+            File[] children = mDirectory.listFiles();
+            if (children != null) {
+                for (File file : children) {
+                    String name = file.getName();
+                    if (name.equals(JOURNAL_NAME) || name.startsWith(OPEN_JOURNAL_PREFIX)) {
+                        journals.add(file);
+                        continue;
+                    }
+                    if (!name.startsWith(SEGMENT_PREFIX))
+                        continue;
+                    try {
+                        highestSequence = Math.max(highestSequence,
+                                Long.parseLong(name.substring(SEGMENT_PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w(LOG_TAG, "Unexpected journal segment " + name);
+                    }
+                }
+            }
+
+            try {
+                long[][] states = new long[journals.size()][];
+                for (int i = 0; i < states.length; i++) {
+                    states[i] = readJournalState(journals.get(i));
+                    highestSequence = Math.max(highestSequence, states[i][0]);
+                }
+                mSequence = highestSequence;
+                for (int i = 0; i < states.length; i++) {
+                    File journal = journals.get(i);
+                    if (states[i][1] == 0) {
+                        /**
+                         * Nothing but its opening record, whose sequence the new journal starts from
+                         */
+                        if (!journal.delete())
+                            throw new IOException("Failed to delete journal " + journal);
+                        continue;
+                    }
+                    /**
+                     * A segment may be named after a sequence above the changes it holds, never below
+                     */
+                    File segment = new File(mDirectory, SEGMENT_PREFIX + mSequence);
+                    while (segment.exists())
+                        segment = new File(mDirectory, SEGMENT_PREFIX + ++mSequence);
+                    if (!journal.renameTo(segment))
+                        throw new IOException("Failed to rotate journal at " + mSequence);
+                }
+                mJournalFile = newJournalFile(mSequence);
+                mJournal = openJournal(mJournalFile, mSequence, mRecordBuffer);
+                mJournalChanges = 0;
+            } catch (IOException e) {
+                /**
+                 * The journals left as they are are replayed by the next run. The changes of this run are still
+                 * counted in memory and flushed, they're only not safe from a crash
+                 */
+                mJournal = null;
+                mJournalFile = null;
+                mSequence = Math.max(mSequence, highestSequence);
+                Log.e(LOG_TAG, "Failed to start journal", e);
+            }
+        }
+    }
+
+    /**
+     * Read the highest sequence of a journal, and whether it holds any change
+     * The records are appended in the order of their sequences, so the last full record holds the highest one
+     *
+     * @return the highest sequence, 0 if there's no journal, and 1 if it holds changes, 0 otherwise
+     */
+    private static long[] readJournalState(File journal) throws IOException {
+        if (!journal.exists())
+            return new long[]{0, 0};
+        RandomAccessFile file = new RandomAccessFile(journal, "r");
+        try {
+            long records = file.length() / RECORD_SIZE;
+            if (records == 0)
+                return new long[]{0, 0};
+            /**
+             * A single record is either the opening record of delta 0, or a change of a journal of an older version
+             */
+            file.seek(RECORD_SIZE - 4);
+            boolean holdsChanges = records > 1 || file.readInt() != 0;
+            file.seek((records - 1) * RECORD_SIZE);
+            return new long[]{file.readLong(), holdsChanges ? 1 : 0};
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Record the sale of one unit of a product
+     *
+     * @param id of the product
+     */
+    public void recordSale(long id) {
+        record(id, -1);
+    }
+
+    /**
+     * Record a change of the quantity of a product
+     * Safe to call on the UI thread: the change is appended to the journal with a single small write, and nothing
+     * waits for the replay, the disk sync or the provider
+     *
+     * @param id    of the product
+     * @param delta signed quantity change
+     */
+    public void record(long id, int delta) {
+        if (delta == 0)
+            return;
+
+        synchronized (mJournalLock) {
+            long sequence = ++mSequence;
+            try {
+                writeRecord(mJournal, mRecordBuffer, sequence, id, delta);
+                mJournalChanges++;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to journal change " + sequence, e);
+            }
+            /**
+             * Counted before it's queued, so a flush can't take the change off its counter first
+             */
+            addUnflushed(id, delta);
+            mQueue.offer(new Change(id, delta));
+        }
+        if (mDrainScheduled.compareAndSet(false, true))
+            mExecutor.execute(mDrainTask);
+    }
+
+    /**
+     * Count a change not stored by the provider yet on top of the quantity of its product
+     */
+    private void addUnflushed(long id, int delta) {
+        mUnflushed.add(id, delta);
+        mUnflushedChanges.incrementAndGet();
+    }
+
+    /**
+     * Get the quantity change of a product that isn't visible in the provider yet
+     * Add it to the stored quantity to show the up to date quantity right away
+     *
+     * @param id of the product
+     * @return signed quantity change
+     */
+    public int getPendingDelta(long id) {
+        /**
+         * Skip the lock of the stripe when no sale is waiting, which is the case most of the time the list scrolls
+         */
+        if (mUnflushedChanges.get() == 0)
+            return 0;
+        return mUnflushed.get(id);
+    }
+
+    /**
+     * Flush the waiting changes without waiting for the interval
+     *
+     * @return future completed once the changes are written
+     */
+    public Future<?> flush() {
+        return mExecutor.submit(mFlushTask);
+    }
+
+    /**
+     * Add the journaled changes to the next group, and sync the journal to the disk once for all of them
+     * The group is flushed right away once it's large enough, but only after the previous run was replayed
+     */
+    private void drainQueue() {
+        if (!drainIntoBatch())
+            return;
+
+        FileOutputStream journal;
+        synchronized (mJournalLock) {
+            journal = mJournal;
+        }
+        syncJournal(journal);
+
+        if (!mReplayed)
+            return;
+        /**
+         * Flush after the interval, or right away once enough changes are waiting
+         */
+        if (mBatchChanges >= FLUSH_THRESHOLD)
+            flushPending();
+        else if (mScheduledFlush == null)
+            mScheduledFlush = mExecutor.schedule(mFlushTask, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Move the queued changes to the next group
+     *
+     * @return whether any change was queued
+     */
+    private boolean drainIntoBatch() {
+        boolean drained = false;
+        Change change;
+        while ((change = mQueue.poll()) != null) {
+            addToBatch(change.mId, change.mDelta);
+            drained = true;
+        }
+        return drained;
+    }
+
+    private void addToBatch(long id, int delta) {
+        Integer batched = mBatch.get(id);
+        mBatch.put(id, batched == null ? delta : batched + delta);
+        mBatchChanges++;
+    }
+
+    /**
+     * Hand the waiting changes over to the provider in a single transaction
+     * Runs on the recorder thread only
+     */
+    private void flushPending() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        if (!mReplayed)
+            return;
+
+        /**
+         * Open the next journal if the current one holds changes, outside of the lock
+         */
+        long openingSequence;
+        synchronized (mJournalLock) {
+            drainIntoBatch();
+            if (mBatch.isEmpty())
+                return;
+            openingSequence = mJournal != null && mJournalChanges != 0 ? mSequence + OPENING_SEQUENCE_GAP : -1;
+        }
+        File nextFile = null;
+        FileOutputStream next = null;
+        if (openingSequence != -1) {
+            nextFile = newJournalFile(openingSequence);
+            try {
+                next = openJournal(nextFile, openingSequence, new byte[RECORD_SIZE]);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to open journal", e);
+            }
+        }
+
+        /**
+         * Swap the journals, the current one now only holds changes covered by this flush
+         * The retired journal is synced, closed and renamed once the lock is released, so recording a change
+         * never waits for the disk or the file system
+         */
+        long sequence;
+        FileOutputStream retired = null;
+        File retiredFile = null;
+        synchronized (mJournalLock) {
+            drainIntoBatch();
+            sequence = mSequence;
+            if (next != null && mSequence < openingSequence) {
+                retired = mJournal;
+                retiredFile = mJournalFile;
+                mJournal = next;
+                mJournalFile = nextFile;
+                mJournalChanges = 0;
+                mSequence = openingSequence;
+                next = null;
+            }
+        }
+        if (next != null) {
+            /**
+             * More changes than the gap were recorded meanwhile, the current journal is rotated by the next flush
+             */
+            closeJournal(next);
+            nextFile.delete();
+        }
+        if (retired != null)
+            retireJournal(retired, retiredFile, sequence);
+
+        int size = mBatch.size();
+        int changes = mBatchChanges;
+        long[] ids = new long[size];
+        int[] deltas = new int[size];
+        long[] sequences = new long[size];
+        int index = 0;
+        for (Map.Entry<Long, Integer> entry : mBatch.entrySet()) {
+            ids[index] = entry.getKey();
+            deltas[index] = entry.getValue();
+            sequences[index] = sequence;
+            index++;
+        }
+
+        Bundle result;
+        try {
+            result = applyAdjustments(ids, deltas, sequences);
+        } catch (RuntimeException e) {
+            /**
+             * Keep the changes for a later flush, their journal segments stay until a flush covers them
+             */
+            Log.e(LOG_TAG, "Failed to flush " + size + " changes, retrying later", e);
+            mScheduledFlush = mExecutor.schedule(mFlushTask, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        mBatch.clear();
+        mBatchChanges = 0;
+
+        /**
+         * The provider shows the changes now, so stop adding them to its quantities before telling the list,
+         * a row read in between would show them twice
+         */
+        for (int i = 0; i < size; i++)
+            mUnflushed.add(ids[i], -deltas[i]);
+        mUnflushedChanges.addAndGet(-changes);
+        notifyAdjusted(result.getLongArray(ProductContract.EXTRA_ADJUSTED_IDS));
+
+        deleteSegments(result.getLong(ProductContract.EXTRA_SEQUENCE));
+        alertLowStock(result);
+    }
+
+    /**
+     * Notify the listeners of the products a group of changes adjusted, the provider leaves it to the recorder
+     */
+    private void notifyAdjusted(long[] adjustedIds) {
+        if (adjustedIds == null || adjustedIds.length == 0)
+            return;
+        for (long id : adjustedIds)
+            mResolver.notifyChange(ProductContract.ProductEntry.buildChangeUri(id, ProductContract.OP_UPDATE), null);
+        mResolver.notifyChange(ProductContract.ProductStatsEntry.CONTENT_URI, null);
+        mResolver.notifyChange(ProductContract.SalesEntry.CONTENT_URI, null);
+    }
+
+    /**
+     * Apply the given changes through the provider
+     *
+     * @return the result of the provider, holding the highest journal sequence applied so far
+     */
+    private Bundle applyAdjustments(long[] ids, int[] deltas, long[] sequences) {
+        Bundle extras = new Bundle();
+        extras.putLongArray(ProductContract.EXTRA_IDS, ids);
+        extras.putIntArray(ProductContract.EXTRA_DELTAS, deltas);
+        extras.putLongArray(ProductContract.EXTRA_SEQUENCES, sequences);
+
+        Bundle result = mResolver.call(ProductContract.ProductEntry.CONTENT_URI,
+                ProductContract.METHOD_APPLY_ADJUSTMENTS, null, extras);
+        if (result == null)
+            throw new IllegalStateException("Provider did not apply the adjustments");
+        return result;
+    }
+
+    /**
+     * Read the highest journal sequence the provider applied, without applying anything
+     */
+    private long readStoredSequence() {
+        return applyAdjustments(new long[0], new int[0], new long[0]).getLong(ProductContract.EXTRA_SEQUENCE);
+    }
+
+    /**
+     * Raise one alert for the products a group of changes took down to their reorder level
+     * The changes are already applied, so failing to alert must not put them back
+     */
+    private void alertLowStock(Bundle result) {
+        long[] lowStockIds = result.getLongArray(ProductContract.EXTRA_LOW_STOCK_IDS);
+        if (lowStockIds == null || lowStockIds.length == 0)
+            return;
+        try {
+            InventoryMaintenanceService.startCheckLowStock(mContext, lowStockIds);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to check the low stock of " + lowStockIds.length + " products", e);
+        }
+    }
+
+    /**
+     * Apply the changes left in the journal segments by a previous run
+     * Runs on the recorder thread before any group is flushed, the changes recorded meanwhile are already journaled
+     * in the new journal and wait in the next group
+     * If a segment or the stored sequence can't be read, nothing is deleted and the replay is tried again later
+     */
+    private void replayJournal() {
+        List<File> files = new ArrayList<>();
+        File[] children = mDirectory.listFiles();
+        if (children != null) {
+            for (File file : children) {
+                if (file.getName().startsWith(SEGMENT_PREFIX))
+                    files.add(file);
+            }
+        }
+
+        List<long[]> records = new ArrayList<>();
+        long storedSequence;
+        try {
+            for (File file : files)
+                readRecords(file, records);
+            storedSequence = readStoredSequence();
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to replay journal, retrying later", e);
+            mExecutor.schedule(mReplayTask, REPLAY_RETRY_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        /**
+         * Only reached if the journal couldn't be read at start: the next flush must still be numbered above
+         * the stored sequence, or the provider would skip it
+         */
+        synchronized (mJournalLock) {
+            mSequence = Math.max(mSequence, storedSequence);
+        }
+
+        /**
+         * The changes the provider didn't apply join the next group, the others are skipped
+         * Their segments are deleted by the flush applying them
+         */
+        int replayed = 0;
+        for (long[] record : records) {
+            if (record[0] <= storedSequence || record[2] == 0)
+                continue;
+            long id = record[1];
+            int delta = (int) record[2];
+            addToBatch(id, delta);
+            addUnflushed(id, delta);
+            replayed++;
+        }
+        if (replayed == 0)
+            deleteSegments(storedSequence);
+        mReplayed = true;
+
+        if (replayed != 0)
+            Log.i(LOG_TAG, replayed + " journaled changes replayed");
+        /**
+         * Flush the replayed changes along with the ones recorded during the replay
+         */
+        drainQueue();
+        if (replayed != 0 || !mBatch.isEmpty())
+            flushPending();
+    }
+
+    /**
+     * Read the records of a journal file
+     *
+     * @param file    to read
+     * @param records receiving the sequence, product ID and delta of every record
+     * @return the highest sequence read
+     */
+    private static long readRecords(File file, List<long[]> records) throws IOException {
+        long highestSequence = 0;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            while (true) {
+                long sequence = in.readLong();
+                long id = in.readLong();
+                int delta = in.readInt();
+                records.add(new long[]{sequence, id, delta});
+                highestSequence = Math.max(highestSequence, sequence);
+            }
+        } catch (EOFException e) {
+            /**
+             * End of the journal, a record cut short by a crash is dropped as it was never counted
+             */
+        } finally {
+            in.close();
+        }
+        return highestSequence;
+    }
+
+    /**
+     * Get the file of a journal opened at the given sequence
+     */
+    private File newJournalFile(long openingSequence) {
+        return new File(mDirectory, OPEN_JOURNAL_PREFIX + openingSequence);
+    }
+
+    /**
+     * Start a new journal with the opening record holding the given sequence
+     *
+     * @param buffer for the opening record, not shared with another thread
+     */
+    private static FileOutputStream openJournal(File file, long openingSequence, byte[] buffer) throws IOException {
+        FileOutputStream journal = new FileOutputStream(file);
+        try {
+            writeRecord(journal, buffer, openingSequence, 0, 0);
+        } catch (IOException e) {
+            closeJournal(journal);
+            file.delete();
+            throw e;
+        }
+        return journal;
+    }
+
+    private static void closeJournal(FileOutputStream journal) {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to close journal", e);
+        }
+    }
+
+    /**
+     * Wait for the journal to be written to the disk, not only to the file system cache
+     */
+    private static void syncJournal(FileOutputStream journal) {
+        if (journal == null)
+            return;
+        try {
+            journal.getFD().sync();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to sync journal", e);
+        }
+    }
+
+    /**
+     * Append a record to a journal with a single write, so the process can be killed right after
+     * The current journal must only be written with the journal lock held and its buffer
+     */
+    private static void writeRecord(FileOutputStream journal, byte[] buffer, long sequence, long id, int delta)
+            throws IOException {
+        if (journal == null)
+            throw new IOException("Journal is not open");
+
+        for (int i = 0; i < 8; i++)
+            buffer[i] = (byte) (sequence >>> (56 - i * 8));
+        for (int i = 0; i < 8; i++)
+            buffer[8 + i] = (byte) (id >>> (56 - i * 8));
+        for (int i = 0; i < 4; i++)
+            buffer[16 + i] = (byte) (delta >>> (24 - i * 8));
+        journal.write(buffer);
+    }
+
+    /**
+     * Turn a journal swapped out by a flush into a segment named after the highest sequence it holds
+     * A journal that can't be renamed is left as it is, the next run turns it into a segment
+     *
+     * @param journal  swapped out, nothing appends to it any more
+     * @param file     of the journal
+     * @param sequence highest sequence it holds
+     */
+    private void retireJournal(FileOutputStream journal, File file, long sequence) {
+        syncJournal(journal);
+        closeJournal(journal);
+        File segment = new File(mDirectory, SEGMENT_PREFIX + sequence);
+        if (!file.renameTo(segment))
+            Log.e(LOG_TAG, "Failed to rotate journal at " + sequence);
+    }
+
+    /**
+     * Delete the journal segments whose changes are all applied
+     * A segment is named after its highest sequence, and every change up to the applied sequence was either stored
+     * by an earlier flush or was part of the group that stored it
+     */
+    private void deleteSegments(long appliedSequence) {
+        File[] children = mDirectory.listFiles();
+        if (children == null)
+            return;
+
+        for (File file : children) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX))
+                continue;
+            try {
+                if (Long.parseLong(name.substring(SEGMENT_PREFIX.length())) <= appliedSequence)
+                    file.delete();
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "Unexpected journal segment " + name);
+            }
+        }
+    }
+
+    /**
+     * Quantity changes per product ID, split in stripes locked on their own
+     * Every stripe keeps its IDs sorted in primitive arrays, so neither the IDs nor the changes are boxed
+     */
+    private static class PendingDeltas {
+        private static final int STRIPES = 16;
+
+        private final Stripe[] mStripes = new Stripe[STRIPES];
+
+        PendingDeltas() {
+            for (int i = 0; i < STRIPES; i++)
+                mStripes[i] = new Stripe();
+        }
+
+        /**
+         * Add a change to the one of a product, dropping it once it's back to 0
+         */
+        void add(long id, int delta) {
+            Stripe stripe = getStripe(id);
+            synchronized (stripe) {
+                stripe.add(id, delta);
+            }
+        }
+
+        /**
+         * @return the change of a product, 0 if there's none
+         */
+        int get(long id) {
+            Stripe stripe = getStripe(id);
+            synchronized (stripe) {
+                return stripe.get(id);
+            }
+        }
+
+        private Stripe getStripe(long id) {
+            int hash = (int) (id ^ (id >>> 32));
+            hash ^= hash >>> 16;
+            return mStripes[hash & (STRIPES - 1)];
+        }
+    }
+
+    /**
+     * Sorted product IDs of a stripe and their changes, guarded by itself
+     */
+    private static class Stripe {
+        private long[] mIds = new long[4];
+        private int[] mDeltas = new int[4];
+        private int mSize;
+
+        void add(long id, int delta) {
+            int index = Arrays.binarySearch(mIds, 0, mSize, id);
+            if (index >= 0) {
+                int sum = mDeltas[index] + delta;
+                if (sum != 0) {
+                    mDeltas[index] = sum;
+                    return;
+                }
+                System.arraycopy(mIds, index + 1, mIds, index, mSize - index - 1);
+                System.arraycopy(mDeltas, index + 1, mDeltas, index, mSize - index - 1);
+                mSize--;
+                return;
+            }
+
+            index = ~index;
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+                mDeltas = Arrays.copyOf(mDeltas, mSize * 2);
+            }
+            System.arraycopy(mIds, index, mIds, index + 1, mSize - index);
+            System.arraycopy(mDeltas, index, mDeltas, index + 1, mSize - index);
+            mIds[index] = id;
+            mDeltas[index] = delta;
+            mSize++;
+        }
+
+        int get(long id) {
+            int index = Arrays.binarySearch(mIds, 0, mSize, id);
+            return index >= 0 ? mDeltas[index] : 0;
+        }
+    }
+
+    /**
+     * Quantity change journaled, waiting to join a group
+     */
+    private static class Change {
+        final long mId;
+        final int mDelta;
+
+        Change(long id, int delta) {
+            mId = id;
+            mDelta = delta;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.myinventory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the digits written by {@link DigitFormatter}, and that writing them allocates nothing
+ */
+public class DigitFormatterTest {
+    private static final int[] VALUES = {0, 1, 9, 10, 42, 99, 100, 12345, -1, -10, -987654, Integer.MAX_VALUE,
+            Integer.MIN_VALUE};
+
+    @Test
+    public void format_matchesToString() throws Exception {
+        char[] buffer = new char[DigitFormatter.MAX_INT_CHARS + 2];
+        for (int value : VALUES) {
+            int end = DigitFormatter.format(value, buffer, 2);
+            assertEquals(Integer.toString(value), new String(buffer, 2, end - 2));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void format_rejectsShortBuffer() throws Exception {
+        DigitFormatter.format(1, new char[DigitFormatter.MAX_INT_CHARS], 1);
+    }
+
+    @Test
+    public void format_allocatesNothing() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        long threadId = Thread.currentThread().getId();
+        char[] buffer = new char[DigitFormatter.MAX_INT_CHARS];
+        int binds = 100000;
+
+        /**
+         * Warm up, then measure what reading the counter costs by itself
+         */
+        formatAll(buffer, binds);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long overhead = threads.getThreadAllocatedBytes(threadId) - before;
+
+        before = threads.getThreadAllocatedBytes(threadId);
+        int checksum = formatAll(buffer, binds);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before - overhead;
+
+        /**
+         * Any allocation per call would add up to megabytes over all the calls
+         */
+        assertTrue("Allocated " + allocated + " bytes formatting " + binds + " values (" + checksum + ")",
+                allocated < 1024);
+    }
+
+    private static int formatAll(char[] buffer, int count) {
+        int checksum = 0;
+        for (int i = 0; i < count; i++)
+            checksum += DigitFormatter.format(i * 7919 - count, buffer, 0);
+        return checksum;
+    }
+}